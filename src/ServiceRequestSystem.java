@@ -1,30 +1,118 @@
 package src;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
 import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.Scanner;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
 
 public class ServiceRequestSystem {
     // ====== Constants / Config ======
@@ -45,32 +133,130 @@ public class ServiceRequestSystem {
             "General Services - Equipment",
             "General Services - Other"
     };
+    // Department groups; each is stored and locked independently (see Shard).
+    private static final String[] SHARD_NAMES = {"IT Support", "Facilities", "HR Services", "General Services"};
     private static final String ADMIN_PIN = "1234"; // simple admin gate for demo
+    private static final int PAGE_SIZE = 20;
 
     // ====== Program State ======
-    private static final Scanner scanner = new Scanner(System.in);
+    private static ConsoleInput console;
     private static final RequestManager requestManager = new RequestManager();
     private static final ReportGenerator reportGenerator = new ReportGenerator(requestManager);
     private static final FileHandler fileHandler = new FileHandler(requestManager);
+    private static final Maintenance maintenance = Maintenance.fromProperties(requestManager, fileHandler);
+    private static final Admission admission = Admission.fromProperties();
+    private static final NotificationDispatcher notifier = NotificationDispatcher.fromProperties(requestManager.outbox(), fileHandler.dataDir());
+    private static ReplicationPrimary replicationPrimary;
+    private static ReplicationFollower replicationFollower;
 
+    // Options: --primary <port> ships every change to standbys; --standby <host:port> runs a
+    // read-only replica; --replication-bench [seconds] measures lag between two local nodes;
+    // --bench [tickets] runs the workload benchmark and reports metrics overhead;
+    // --admission-bench [seconds] load-tests ticket intake at normal and 10x arrival rates;
+    // --batch <file|-> runs a command file without prompts (see BatchRunner).
+    // The data directory can be changed with -Dsrs.dataDir=<dir>.
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--bench")) {
+            Benchmark.run(args.length > 1 ? Integer.parseInt(args[1]) : 2000);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--replication-bench")) {
+            ReplicationBench.run(args.length > 1 ? Integer.parseInt(args[1]) : 5);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--admission-bench")) {
+            AdmissionBench.run(args.length > 1 ? Integer.parseInt(args[1]) : 5);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--batch")) {
+            ConsoleOutput.install();
+            int failed;
+            try {
+                failed = new BatchRunner(requestManager, reportGenerator, fileHandler).run(args.length > 1 ? args[1] : "-");
+            } catch (IOException e) {
+                System.out.println("[ERROR] Batch aborted: " + e.getMessage());
+                failed = 1;
+            }
+            System.out.flush();
+            if (failed > 0) System.exit(1);
+            return;
+        }
+        console = new ConsoleInput(System.in, ConsoleOutput.install());
         printBanner();
-        try {
-            fileHandler.loadData();
-            if (requestManager.getUsers().isEmpty()) {
-                seedSampleData();
-                fileHandler.saveData();
+        registerGauges();
+        String standbyOf = null;
+        int primaryPort = -1;
+        for (int i = 0; i + 1 < args.length; i++) {
+            if (args[i].equals("--standby")) standbyOf = args[i + 1];
+            if (args[i].equals("--primary")) primaryPort = Integer.parseInt(args[i + 1]);
+        }
+        if (standbyOf != null) {
+            try {
+                String[] hp = standbyOf.split(":");
+                replicationFollower = ReplicationFollower.connect(requestManager, hp[0], Integer.parseInt(hp[1]));
+                System.out.println("Running as read-only standby of " + standbyOf);
+            } catch (Exception e) {
+                System.out.println("[ERROR] Cannot reach primary: " + e.getMessage());
+                return;
             }
-        } catch (Exception e) {
-            System.out.println("[WARN] Failed to load data: " + e.getMessage());
+        } else {
+            try {
+                fileHandler.loadData();
+                if (requestManager.getUsers().isEmpty()) {
+                    seedSampleData();
+                    fileHandler.saveData();
+                }
+            } catch (Exception e) {
+                System.out.println("[WARN] Failed to load data: " + e.getMessage());
+            }
+            if (primaryPort >= 0) startPrimary(primaryPort);
         }
+        maintenance.schedule(Integer.getInteger("srs.maintenanceMinutes", 60));
+        notifier.schedule(Integer.getInteger("srs.notifySeconds", 5));
         mainMenu();
-        // Auto-save on exit
+        if (replicationPrimary != null) replicationPrimary.close();
+        if (replicationFollower != null) replicationFollower.close();
+        BackgroundTasks.awaitIdle();
+        // Auto-save on exit; a standby never loaded the data directory, so it must not overwrite it
+        if (requestManager.isReadOnly()) {
+            System.out.println("\nStandby stopped. Goodbye!");
+        } else {
+            try {
+                fileHandler.saveData();
+                System.out.println("\nData saved. Goodbye!");
+            } catch (Exception e) {
+                System.out.println("[WARN] Failed to save data on exit: " + e.getMessage());
+            }
+        }
         try {
-            fileHandler.saveData();
-            System.out.println("\nData saved. Goodbye!");
+            notifier.flush();
         } catch (Exception e) {
-            System.out.println("[WARN] Failed to save data on exit: " + e.getMessage());
+            System.out.println("[WARN] Notifications will be sent on the next start: " + e.getMessage());
+        }
+        System.out.flush();
+    }
+
+    private static void registerGauges() {
+        for (Shard s : requestManager.getShards()) Metrics.gauge("tickets{shard=\"" + s.key + "\"}", s::size);
+        Metrics.gauge("users", () -> requestManager.readUsers(() -> requestManager.getUsers().size()));
+        Metrics.gauge("dirty_tickets", () -> requestManager.dirtyTickets.size());
+        Metrics.gauge("dirty_users", () -> requestManager.dirtyUsers.size());
+        Metrics.gauge("unsaved_changes", () -> requestManager.hasChanges() ? 1 : 0);
+        Metrics.gauge("snapshots_open", requestManager::openSnapshots);
+        Metrics.gauge("submissions_waiting", admission::waiting);
+        Metrics.gauge("submissions_in_flight", admission::inFlight);
+        Metrics.gauge("query_cache_entries", () -> requestManager.getCache().size());
+        Metrics.gauge("query_cache_hit_rate_percent", QueryCache::hitRatePercent);
+        Metrics.gauge("heap_used_bytes", () -> Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
+        Metrics.gauge("heap_max_bytes", () -> Runtime.getRuntime().maxMemory());
+    }
+
+    private static void startPrimary(int port) {
+        try {
+            replicationPrimary = ReplicationPrimary.start(requestManager, port);
+            System.out.println("Replication primary listening on port " + replicationPrimary.port());
+        } catch (IOException e) {
+            System.out.println("[WARN] Replication disabled: " + e.getMessage());
         }
     }
 
@@ -91,29 +277,35 @@ public class ServiceRequestSystem {
             System.out.println("7. Exit System");
             System.out.print("\nEnter your choice: ");
             int choice = readIntInRange(1, 7);
-            switch (choice) {
-                case 1:
-                    submitNewRequestFlow();
-                    break;
-                case 2:
-                    viewMyRequestsFlow();
-                    break;
-                case 3:
-                    adminPanel();
-                    break;
-                case 4:
-                    reportsMenu();
-                    break;
-                case 5:
-                    dataManagementMenu();
-                    break;
-                case 6:
-                    helpMenu();
-                    break;
-                case 7:
-                    return;
-                default:
-                    break;
+            try {
+                switch (choice) {
+                    case 1:
+                        submitNewRequestFlow();
+                        break;
+                    case 2:
+                        viewMyRequestsFlow();
+                        break;
+                    case 3:
+                        adminPanel();
+                        break;
+                    case 4:
+                        reportsMenu();
+                        break;
+                    case 5:
+                        dataManagementMenu();
+                        break;
+                    case 6:
+                        helpMenu();
+                        break;
+                    case 7:
+                        return;
+                    default:
+                        break;
+                }
+            } catch (IllegalStateException e) {
+                // raised by RequestManager when this node is a read-only standby, while a load or restore runs,
+                // for a ticket that changed under the flow, and when a submission is turned away (see Admission)
+                System.out.println("[ERROR] " + e.getMessage());
             }
         }
     }
@@ -121,6 +313,11 @@ public class ServiceRequestSystem {
     // ====== Menu Flows ======
     private static void submitNewRequestFlow() {
         System.out.println("\n=== New Service Request ===");
+        if (requestManager.isReadOnly()) {
+            System.out.println("This node is a read-only standby; submit requests on the primary.");
+            pause();
+            return;
+        }
         String ticketIdPreview = requestManager.previewNextTicketId();
         System.out.println("Ticket ID: " + ticketIdPreview + " (Auto-generated)\n");
 
@@ -136,14 +333,33 @@ public class ServiceRequestSystem {
         String subject = prompt("Subject");
         String description = promptMultiline("Description (end with a single '.' on a new line)");
 
+        List<DuplicateIndex.Match> duplicates = requestManager.findDuplicates(category, subject, description);
+        if (!duplicates.isEmpty()) {
+            System.out.println("\nThis looks like an open request that already exists:");
+            for (DuplicateIndex.Match m : duplicates) {
+                StringBuilder line = new StringBuilder(String.format("  %-8s | %-11s | %3d%% similar | ",
+                        m.request.ticketId, m.request.status, m.similarityPercent()));
+                RequestRenderer.truncated(line, m.request.subject, 40);
+                System.out.println(line);
+            }
+        }
+
         System.out.print("\nSubmit Request? (Y/N): ");
         if (!yesNo()) {
             System.out.println("Cancelled.");
             return;
         }
 
-        User user = requestManager.findOrCreateUserByEmail(email, name, dept, "USER", phone);
-        ServiceRequest req = requestManager.createRequest(user, category, priority, subject, description);
+        // Refusals surface as IllegalStateException, reported by the main menu.
+        ServiceRequest req = admission.run(email, () -> {
+            User user = requestManager.findOrCreateUserByEmail(email, name, dept, "USER", phone);
+            return requestManager.createRequest(user, category, priority, subject, description);
+        });
+        if (!duplicates.isEmpty()) {
+            ServiceRequest original = duplicates.get(0).request;
+            System.out.print("Link it to " + original.ticketId + " as a duplicate? (Y/N): ");
+            if (yesNo()) requestManager.linkDuplicate(req, original);
+        }
         System.out.println("\nRequest submitted successfully!");
         System.out.println("Your Ticket ID: " + req.ticketId + " (save this for reference)\n");
         System.out.println(req.toDisplayString());
@@ -198,7 +414,7 @@ public class ServiceRequestSystem {
 
     private static void adminPanel() {
         System.out.print("\nEnter Admin PIN: ");
-        String pin = scanner.nextLine().trim();
+        String pin = console.nextLine().trim();
         if (!ADMIN_PIN.equals(pin)) {
             System.out.println("Invalid PIN.");
             return;
@@ -211,9 +427,10 @@ public class ServiceRequestSystem {
             System.out.println("4. Add Admin/Agent/User");
             System.out.println("5. Manage Users (List/Delete)");
             System.out.println("6. Export Request Details to Text");
-            System.out.println("7. Back");
+            System.out.println("7. Bulk Operations");
+            System.out.println("8. Back");
             System.out.print("Enter choice: ");
-            int choice = readIntInRange(1, 7);
+            int choice = readIntInRange(1, 8);
             switch (choice) {
                 case 1:
                     manageAllRequestsFlow();
@@ -234,6 +451,9 @@ public class ServiceRequestSystem {
                     exportSingleRequestFlow();
                     break;
                 case 7:
+                    bulkOperationsFlow();
+                    break;
+                case 8:
                     return;
                 default:
                     break;
@@ -247,11 +467,17 @@ public class ServiceRequestSystem {
             System.out.println("1. Summary Statistics");
             System.out.println("2. Requests by Category");
             System.out.println("3. Requests by Priority");
-            System.out.println("4. Average Resolution Time");
-            System.out.println("5. Export All Requests to CSV");
-            System.out.println("6. Back");
+            System.out.println("4. Requests by Department");
+            System.out.println("5. Average Resolution Time");
+            System.out.println("6. Resolution Time Percentiles");
+            System.out.println("7. Throughput Trend (Created/Resolved)");
+            System.out.println("8. Agent Performance");
+            System.out.println("9. Department Demand");
+            System.out.println("10. Export All Requests to CSV");
+            System.out.println("11. Export Daily Rollups to CSV");
+            System.out.println("12. Back");
             System.out.print("Enter choice: ");
-            int choice = readIntInRange(1, 6);
+            int choice = readIntInRange(1, 12);
             switch (choice) {
                 case 1:
                     reportGenerator.printSummaryStatistics();
@@ -263,17 +489,42 @@ public class ServiceRequestSystem {
                     reportGenerator.printByPriority();
                     break;
                 case 4:
-                    reportGenerator.printAverageResolutionTime();
+                    reportGenerator.printByDepartment();
                     break;
                 case 5:
-                    try {
-                        Path p = fileHandler.exportAllRequestsCsv();
-                        System.out.println("Exported to: " + p.toAbsolutePath());
-                    } catch (Exception e) {
-                        System.out.println("[ERROR] Export failed: " + e.getMessage());
-                    }
+                    reportGenerator.printAverageResolutionTime();
                     break;
-                case 6:
+                case 6: {
+                    LocalDate[] range = promptDateRange();
+                    reportGenerator.printResolutionPercentiles(range[0], range[1]);
+                    break;
+                }
+                case 7: {
+                    LocalDate[] range = promptDateRange();
+                    System.out.println("Granularity: 1=Hourly, 2=Daily");
+                    boolean hourly = readIntInRange(1, 2) == 1;
+                    reportGenerator.printThroughputTrend(range[0], range[1], hourly);
+                    break;
+                }
+                case 8: {
+                    LocalDate[] range = promptDateRange();
+                    reportGenerator.printAgentPerformance(range[0], range[1]);
+                    break;
+                }
+                case 9: {
+                    LocalDate[] range = promptDateRange();
+                    reportGenerator.printDepartmentDemand(range[0], range[1]);
+                    break;
+                }
+                case 10:
+                    BackgroundTasks.submit("CSV export", pr -> "exported to " + fileHandler.exportAllRequestsCsv(pr).toAbsolutePath());
+                    break;
+                case 11: {
+                    LocalDate[] range = promptDateRange();
+                    BackgroundTasks.submit("Rollup export", pr -> "exported to " + fileHandler.exportRollupsCsv(range[0], range[1]).toAbsolutePath());
+                    break;
+                }
+                case 12:
                     return;
                 default:
                     break;
@@ -289,28 +540,127 @@ public class ServiceRequestSystem {
             System.out.println("2. Load Data");
             System.out.println("3. Create Backup (timestamped)");
             System.out.println("4. Restore from Latest Backup");
-            System.out.println("5. Back");
+            System.out.println("5. Replication Status / Promote Standby");
+            System.out.println("6. System Diagnostics");
+            System.out.println("7. Flight Recorder");
+            System.out.println("8. Run Maintenance Now (" + maintenance.settings() + ")");
+            System.out.println("9. Send Notifications Now (" + notifier.settings() + ")");
+            System.out.println("10. Back");
             System.out.print("Enter choice: ");
-            int choice = readIntInRange(1, 5);
+            int choice = readIntInRange(1, 10);
+            try {
+                switch (choice) {
+                    case 1:
+                        requestManager.checkWritable();
+                        BackgroundTasks.submit("Save", pr -> { fileHandler.saveData(pr); return "saved"; });
+                        break;
+                    case 2:
+                        requestManager.checkWritable();
+                        BackgroundTasks.submit("Load", pr -> { fileHandler.loadData(pr); return requestManager.size() + " requests loaded"; });
+                        break;
+                    case 3:
+                        BackgroundTasks.submit("Backup", pr -> "backup at " + fileHandler.createBackup(pr).toAbsolutePath());
+                        break;
+                    case 4:
+                        requestManager.checkWritable();
+                        BackgroundTasks.submit("Restore", pr -> { fileHandler.restoreLatestBackup(pr); return "restored latest backup"; });
+                        break;
+                    case 5:
+                        replicationStatusFlow();
+                        break;
+                    case 6:
+                        diagnosticsMenu();
+                        continue;
+                    case 7:
+                        flightRecorderMenu();
+                        continue;
+                    case 8:
+                        requestManager.checkWritable();
+                        maintenance.submit(true);
+                        break;
+                    case 9:
+                        BackgroundTasks.submit("Notifications", pr -> notifier.flush() + " notifications sent");
+                        break;
+                    case 10:
+                        return;
+                    default:
+                        break;
+                }
+            } catch (Exception e) {
+                System.out.println("[ERROR] " + e.getMessage());
+            }
+            pause();
+        }
+    }
+
+    private static void diagnosticsMenu() {
+        while (true) {
+            System.out.println("\n=== System Diagnostics ===");
+            System.out.println("1. Show Metrics");
+            System.out.println("2. Export Prometheus Metrics");
+            System.out.println("3. Reset Metrics");
+            System.out.println("4. Storage Statistics");
+            System.out.println("5. Rewrite Data Files (retrains the compression dictionary)");
+            System.out.println("6. Back");
+            System.out.print("Enter choice: ");
+            int choice = readIntInRange(1, 6);
             try {
                 switch (choice) {
                     case 1:
-                        fileHandler.saveData();
-                        System.out.println("Saved.");
+                        Metrics.printSummary();
                         break;
                     case 2:
-                        fileHandler.loadData();
-                        System.out.println("Loaded.");
+                        Path p = fileHandler.exportMetrics();
+                        System.out.println("Metrics written to: " + p.toAbsolutePath());
                         break;
                     case 3:
-                        Path p = fileHandler.createBackup();
-                        System.out.println("Backup at: " + p.toAbsolutePath());
+                        Metrics.reset();
+                        System.out.println("Timers and counters reset.");
                         break;
                     case 4:
-                        fileHandler.restoreLatestBackup();
-                        System.out.println("Restored latest backup.");
+                        System.out.println(fileHandler.storageStats());
                         break;
                     case 5:
+                        requestManager.markAllDirty();
+                        BackgroundTasks.submit("Rewrite", pr -> { fileHandler.saveData(pr); return "data files rewritten"; });
+                        break;
+                    case 6:
+                        return;
+                    default:
+                        break;
+                }
+            } catch (Exception e) {
+                System.out.println("[ERROR] " + e.getMessage());
+            }
+            pause();
+        }
+    }
+
+    private static void flightRecorderMenu() {
+        while (true) {
+            System.out.println("\n=== Flight Recorder ===");
+            System.out.println(FlightRecording.status());
+            System.out.println("1. Start Recording");
+            System.out.println("2. Dump Recording to File");
+            System.out.println("3. Stop Recording");
+            System.out.println("4. Back");
+            System.out.print("Enter choice: ");
+            int choice = readIntInRange(1, 4);
+            try {
+                switch (choice) {
+                    case 1:
+                        FlightRecording.start();
+                        System.out.println("Recording started.");
+                        break;
+                    case 2:
+                        Path p = fileHandler.dumpFlightRecording();
+                        System.out.println("Recording written to: " + p.toAbsolutePath() + " (open with JDK Mission Control or 'jfr print')");
+                        break;
+                    case 3:
+                        FlightRecording.stop();
+                        System.out.println("Recording stopped.");
+                        break;
+                    case 4:
                         return;
                     default:
                         break;
@@ -322,13 +672,53 @@ public class ServiceRequestSystem {
         }
     }
 
+    private static void replicationStatusFlow() {
+        if (replicationPrimary != null) {
+            System.out.println(replicationPrimary.status());
+        } else if (replicationFollower != null) {
+            System.out.println(replicationFollower.status());
+            if (requestManager.isReadOnly()) {
+                System.out.print("Promote this standby to primary? (Y/N): ");
+                if (yesNo()) {
+                    replicationFollower.close();
+                    try {
+                        fileHandler.attachIds();
+                    } catch (IOException e) {
+                        System.out.println("[WARN] Ticket IDs will not survive a crash: " + e.getMessage());
+                    }
+                    requestManager.setReadOnly(false);
+                    requestManager.markAllDirty(); // local files predate the replicated state
+                    System.out.println("Promoted. This node now accepts writes.");
+                    String port = prompt("Serve standbys on port (blank to skip)");
+                    if (!port.isEmpty()) startPrimary(Integer.parseInt(port));
+                }
+            }
+        } else {
+            System.out.println("Replication is not enabled (start with --primary <port> or --standby <host:port>).");
+        }
+    }
+
     private static void helpMenu() {
         System.out.println("\n=== Help & Documentation ===");
-        System.out.println("- Submit New Request: Create a service request with category, priority, subject, description.");
+        System.out.println("- Submit New Request: Create a service request with category, priority, subject, description. Submissions are rate limited per email.");
         System.out.println("- View My Requests: Find your requests by email. Add follow-up comments.");
         System.out.println("- Administrator Panel: Requires PIN. Manage, assign, update and export requests.");
-        System.out.println("- Generate Reports: Summary, breakdown by category/priority, average resolution time, export CSV.");
-        System.out.println("- Data Management: Save/Load data, backups.");
+        System.out.println("- Bulk Operations (Administrator Panel): change status, reassign or comment on many tickets at once,");
+        System.out.println("    selected by ticket IDs (REQ-001, REQ-002) or an Advanced Query; saved once when done.");
+        System.out.println("- Advanced Query: clauses joined by AND, optional SORT BY created|priority|status.");
+        System.out.println("    Fields: status, category, priority, created, updated, resolved, text, email, agent.");
+        System.out.println("    Operators: = != < <= > >= ~ (contains). priority<=HIGH means HIGH or more urgent.");
+        System.out.println("    Dates: yyyy-MM-dd or \"yyyy-MM-dd HH:mm:ss\"; quote values containing spaces.");
+        System.out.println("- Generate Reports: Summary, breakdown by category/priority/department, resolution time (average, p50/p90/p99), throughput trend, agent performance (closes/day, median handle time, reopen rate), department demand, export CSV (tickets or daily rollups).");
+        System.out.println("- Data Management: Save/Load data, backups. Tickets are stored per department under data/shards/.");
+        System.out.println("- System Diagnostics (under Data Management): operation latencies, counters, Prometheus export.");
+        System.out.println("- Flight Recorder (under Data Management): record ticket, query, report and file events to a .jfr file.");
+        System.out.println("- Maintenance: closes RESOLVED tickets after 7 days and archives CLOSED tickets idle for 365 days");
+        System.out.println("    to data/archive/ (-Dsrs.autoCloseDays, -Dsrs.retentionDays; runs every -Dsrs.maintenanceMinutes=60).");
+        System.out.println("- Notifications: owners get one digest of status changes, assignments and comments per");
+        System.out.println("    run (every -Dsrs.notifySeconds=5) in data/notifications/digests.log, or as .eml files in");
+        System.out.println("    data/notifications/outgoing/ with -Dsrs.notifySink=mail. Unsent ones survive a restart.");
+        System.out.println("- Replication: run with --primary <port> and start a read-only copy with --standby <host:port>.");
         System.out.println("\nStatus Flow: OPEN -> IN_PROGRESS -> RESOLVED -> CLOSED.");
         System.out.println("Categories include IT Support, Facilities, HR Services, General.");
         pause();
@@ -336,13 +726,11 @@ public class ServiceRequestSystem {
 
     // ====== Sub-Flows ======
     private static void listRequestsForUser(User user) {
-        List<ServiceRequest> list = requestManager.listByUserEmail(user.email);
+        List<ServiceRequest> list = browse(requestManager.queryByUser(user));
         if (list.isEmpty()) {
             System.out.println("No requests found.");
             return;
         }
-        sortSelectionMenu(list);
-        printRequestTable(list);
         viewDetailsOption(list);
     }
 
@@ -358,15 +746,12 @@ public class ServiceRequestSystem {
             }
             return;
         }
-        List<ServiceRequest> list = requestManager.searchByKeyword(keyword).stream()
-                .filter(r -> r.userEmail.equalsIgnoreCase(user.email))
-                .collect(Collectors.toList());
+        List<ServiceRequest> list = browse(requestManager.queryByKeyword(keyword)
+                .and(r -> r.userEmail.equalsIgnoreCase(user.email)));
         if (list.isEmpty()) {
             System.out.println("No matching requests.");
             return;
         }
-        sortSelectionMenu(list);
-        printRequestTable(list);
         viewDetailsOption(list);
     }
 
@@ -386,8 +771,7 @@ public class ServiceRequestSystem {
             System.out.println("No comment entered. Cancelled.");
             return;
         }
-        r.addComment(user.name + ": " + c);
-        requestManager.markChanged();
+        requestManager.addComment(r, user.name + ": " + c);
         System.out.println("Comment added.");
         System.out.println(r.toDisplayString());
         pause();
@@ -398,13 +782,11 @@ public class ServiceRequestSystem {
             System.out.println("You are not a Support Agent.");
             return;
         }
-        List<ServiceRequest> list = requestManager.listByAssignedAgent(user.name);
+        List<ServiceRequest> list = browse(requestManager.queryByAssignedAgent(user.name));
         if (list.isEmpty()) {
             System.out.println("No requests assigned to you.");
             return;
         }
-        sortSelectionMenu(list);
-        printRequestTable(list);
         System.out.println("Select an action:");
         System.out.println("1. View Details");
         System.out.println("2. Update Status");
@@ -426,8 +808,8 @@ public class ServiceRequestSystem {
                 requestManager.updateStatus(r, status, user.name);
                 if ("RESOLVED".equalsIgnoreCase(status)) {
                     String note = prompt("Resolution note");
-                    r.resolutionNotes = note;
-                    r.addComment("[RESOLVED] " + note);
+                    requestManager.setResolutionNotes(r, note);
+                    requestManager.addComment(r, "[RESOLVED] " + note);
                 }
                 System.out.println("Status updated.");
                 break;
@@ -440,8 +822,7 @@ public class ServiceRequestSystem {
                     break;
                 }
                 String c = prompt("Comment");
-                r.addComment(user.name + ": " + c);
-                requestManager.markChanged();
+                requestManager.addComment(r, user.name + ": " + c);
                 System.out.println("Comment added.");
                 break;
             }
@@ -462,36 +843,48 @@ public class ServiceRequestSystem {
             System.out.println("5. Filter by Date Range");
             System.out.println("6. Search by Keyword");
             System.out.println("7. View by User (email)");
-            System.out.println("8. Back");
+            System.out.println("8. Advanced Query");
+            System.out.println("9. Back");
             System.out.print("Enter choice: ");
-            int ch = readIntInRange(1, 8);
-            List<ServiceRequest> list = new ArrayList<>();
-            if (ch == 1) list = requestManager.listAll();
-            else if (ch == 2) list = requestManager.filterByStatus(pickFromList("Status", STATUSES));
-            else if (ch == 3) list = requestManager.filterByCategory(pickFromList("Category", CATEGORY_GROUPS));
-            else if (ch == 4) list = requestManager.filterByPriority(pickFromList("Priority", PRIORITIES));
+            int ch = readIntInRange(1, 9);
+            RequestQuery q = null;
+            if (ch == 1) q = requestManager.queryAll();
+            else if (ch == 2) q = requestManager.queryByStatus(pickFromList("Status", STATUSES));
+            else if (ch == 3) q = requestManager.queryByCategory(pickFromList("Category", CATEGORY_GROUPS));
+            else if (ch == 4) q = requestManager.queryByPriority(pickFromList("Priority", PRIORITIES));
             else if (ch == 5) {
+                System.out.println("Date field: 1=Created, 2=Last Updated, 3=Resolved");
+                int field = readIntInRange(1, 3);
                 System.out.println("Enter From date-time (yyyy-MM-dd HH:mm:ss) or blank for no lower bound:");
-                String from = scanner.nextLine().trim();
+                String from = console.nextLine().trim();
                 System.out.println("Enter To date-time (yyyy-MM-dd HH:mm:ss) or blank for no upper bound:");
-                String to = scanner.nextLine().trim();
+                String to = console.nextLine().trim();
                 LocalDateTime f = from.isEmpty() ? null : LocalDateTime.parse(from, DTF);
                 LocalDateTime t = to.isEmpty() ? null : LocalDateTime.parse(to, DTF);
-                list = requestManager.filterByDateRange(f, t);
+                q = requestManager.queryByDateRange(field, f, t);
             } else if (ch == 6) {
                 String kw = prompt("Keyword");
-                list = requestManager.searchByKeyword(kw);
+                q = requestManager.queryByKeyword(kw);
             } else if (ch == 7) {
                 String em = prompt("User Email");
-                list = requestManager.listByUserEmail(em);
-            } else if (ch == 8) return;
+                q = requestManager.queryByUserEmail(em);
+            } else if (ch == 8) {
+                System.out.println("Example: status=OPEN AND priority<=HIGH AND created>2025-01-01 AND text~\"vpn\" SORT BY priority");
+                try {
+                    QueryPlanner.Plan plan = requestManager.planQuery(prompt("Query"));
+                    System.out.println(plan.explain());
+                    q = plan.query;
+                } catch (IllegalArgumentException e) {
+                    System.out.println("[ERROR] " + e.getMessage());
+                    continue;
+                }
+            } else if (ch == 9) return;
 
+            List<ServiceRequest> list = browse(q);
             if (list.isEmpty()) {
                 System.out.println("No results.");
                 continue;
             }
-            sortSelectionMenu(list);
-            printRequestTable(list);
             System.out.println("Select an action:");
             System.out.println("1. View Details");
             System.out.println("2. Update Status");
@@ -529,9 +922,7 @@ public class ServiceRequestSystem {
         ServiceRequest r = requestManager.findById(id);
         if (r == null) { System.out.println("Not found."); return; }
         String agentName = prompt("Assign to Agent (name)");
-        r.assignedAgent = agentName;
-        r.addComment("[ASSIGN] Assigned to " + agentName);
-        requestManager.markChanged();
+        requestManager.assignRequest(r, agentName);
         System.out.println("Assigned.");
     }
 
@@ -543,8 +934,8 @@ public class ServiceRequestSystem {
         requestManager.updateStatus(r, status, "ADMIN");
         if ("RESOLVED".equals(status)) {
             String note = prompt("Resolution note");
-            r.resolutionNotes = note;
-            r.addComment("[RESOLVED] " + note);
+            requestManager.setResolutionNotes(r, note);
+            requestManager.addComment(r, "[RESOLVED] " + note);
         }
         System.out.println("Status updated.");
     }
@@ -554,8 +945,7 @@ public class ServiceRequestSystem {
         ServiceRequest r = requestManager.findById(id);
         if (r == null) { System.out.println("Not found."); return; }
         String c = prompt("Comment");
-        r.addComment("Admin: " + c);
-        requestManager.markChanged();
+        requestManager.addComment(r, "Admin: " + c);
         System.out.println("Comment added.");
     }
 
@@ -565,6 +955,64 @@ public class ServiceRequestSystem {
         System.out.println(ok ? "Deleted." : "Ticket not found.");
     }
 
+    // Applies one change to every selected ticket, then saves once in the background.
+    private static void bulkOperationsFlow() {
+        System.out.println("\n=== Bulk Operations ===");
+        if (requestManager.isReadOnly()) {
+            System.out.println("This node is a read-only standby; run bulk operations on the primary.");
+            return;
+        }
+        System.out.println("Select tickets by ID (REQ-001, REQ-002 ...) or by query, e.g. status=OPEN AND created<2025-01-01");
+        List<String> missing = new ArrayList<>();
+        List<ServiceRequest> targets;
+        try {
+            targets = requestManager.selectForBulk(prompt("Tickets"), missing);
+        } catch (IllegalArgumentException e) {
+            System.out.println("[ERROR] " + e.getMessage());
+            return;
+        }
+        if (!missing.isEmpty()) System.out.println("Not found: " + String.join(", ", missing));
+        if (targets.isEmpty()) {
+            System.out.println("No matching tickets.");
+            return;
+        }
+        printRequestTable(targets.subList(0, Math.min(PAGE_SIZE, targets.size())), 0);
+        if (targets.size() > PAGE_SIZE) System.out.println("... and " + (targets.size() - PAGE_SIZE) + " more");
+
+        System.out.println("1. Change Status");
+        System.out.println("2. Reassign");
+        System.out.println("3. Add Comment");
+        System.out.println("4. Cancel");
+        BulkChange change;
+        switch (readIntInRange(1, 4)) {
+            case 1: {
+                String status = pickFromList("New Status", STATUSES);
+                String note = "RESOLVED".equals(status) ? prompt("Resolution note") : null;
+                change = BulkChange.status(status, "ADMIN", note);
+                break;
+            }
+            case 2:
+                change = BulkChange.assign(prompt("Assign to Agent (name)"));
+                break;
+            case 3: {
+                String c = prompt("Comment");
+                if (c.isEmpty()) return;
+                change = BulkChange.comment("Admin: " + c);
+                break;
+            }
+            default:
+                return;
+        }
+        System.out.print(targets.size() + " tickets: " + change.describe() + ". Proceed? (Y/N): ");
+        if (!yesNo()) return;
+        BackgroundTasks.submit("Bulk update", pr -> {
+            BulkResult result = requestManager.bulkUpdate(targets, change, pr);
+            if (result.changed == 0) return result.toString();
+            fileHandler.saveData(pr);
+            return result + ", saved";
+        });
+    }
+
     private static void createUserFlow() {
         System.out.println("\n=== Create User ===");
         String name = prompt("Name");
@@ -611,24 +1059,33 @@ public class ServiceRequestSystem {
         }
     }
 
-    private static void sortSelectionMenu(List<ServiceRequest> list) {
+    private static SortKey sortSelectionMenu() {
         System.out.println("Sort by: 1=Created, 2=Priority, 3=Status, 4=None");
         int s = readIntInRange(1, 4);
         switch (s) {
-            case 1:
-                list.sort(Comparator.comparing((ServiceRequest r) -> r.createdDate));
-                break;
-            case 2:
-                list.sort(Comparator.comparingInt(ServiceRequestSystem::priorityRank));
-                break;
-            case 3:
-                list.sort(Comparator.comparing((ServiceRequest r) -> r.status));
-                break;
-            case 4:
-                break;
-            default:
-                break;
+            case 1: return SortKey.CREATED;
+            case 2: return SortKey.PRIORITY;
+            case 3: return SortKey.STATUS;
+            default: return SortKey.NONE;
+        }
+    }
+
+    // Pages through a query; returns every row shown so row numbers stay valid for selection.
+    private static List<ServiceRequest> browse(RequestQuery q) {
+        if (q.sort == null) q.sort = sortSelectionMenu();
+        q.limit = PAGE_SIZE;
+        List<ServiceRequest> shown = new ArrayList<>();
+        while (true) {
+            Page page = requestManager.query(q);
+            if (page.items.isEmpty()) break;
+            printRequestTable(page.items, shown.size());
+            shown.addAll(page.items);
+            if (page.nextCursor == null) break;
+            System.out.print("Show next page? (Y/N): ");
+            if (!yesNo()) break;
+            q.cursor = page.nextCursor;
         }
+        return shown;
     }
 
     private static int priorityRank(ServiceRequest r) {
@@ -641,16 +1098,11 @@ public class ServiceRequestSystem {
         }
     }
 
-    private static void printRequestTable(List<ServiceRequest> list) {
-        System.out.printf("%-3s | %-8s | %-9s | %-8s | %-20s | %-19s | %s\n",
-                "#", "Ticket", "Status", "Priority", "Category", "Created", "Subject");
-        System.out.println(String.join("", Collections.nCopies(108, "-")));
-        for (int i = 0; i < list.size(); i++) {
-            ServiceRequest r = list.get(i);
-            System.out.printf("%-3d | %-8s | %-9s | %-8s | %-20s | %-19s | %s\n",
-                    i + 1, r.ticketId, r.status, r.priority,
-                    truncate(r.category, 20), r.createdDate.format(DTF), truncate(r.subject, 40));
-        }
+    // Header is printed only for the first page; rows are numbered from startRow + 1.
+    private static void printRequestTable(List<ServiceRequest> list, int startRow) {
+        StringBuilder sb = RequestRenderer.buffer();
+        RequestRenderer.appendTable(sb, list, startRow);
+        System.out.print(sb);
     }
 
     private static void viewDetailsOption(List<ServiceRequest> list) {
@@ -674,14 +1126,14 @@ public class ServiceRequestSystem {
     // ====== Input Helpers ======
     private static String prompt(String label) {
         System.out.print(label + ": ");
-        return scanner.nextLine().trim();
+        return console.nextLine().trim();
     }
 
     private static String promptMultiline(String label) {
         System.out.println(label + ":");
         StringBuilder sb = new StringBuilder();
         while (true) {
-            String line = scanner.nextLine();
+            String line = console.nextLine();
             if (line.equals(".")) break;
             sb.append(line).append('\n');
         }
@@ -689,13 +1141,13 @@ public class ServiceRequestSystem {
     }
 
     private static boolean yesNo() {
-        String s = scanner.nextLine().trim().toLowerCase(Locale.ROOT);
+        String s = console.nextLine().trim().toLowerCase(Locale.ROOT);
         return s.startsWith("y");
     }
 
     private static int readIntInRange(int min, int max) {
         while (true) {
-            String s = scanner.nextLine().trim();
+            String s = console.nextLine().trim();
             try {
                 int v = Integer.parseInt(s);
                 if (v < min || v > max) throw new NumberFormatException();
@@ -716,14 +1168,28 @@ public class ServiceRequestSystem {
         return options[idx - 1];
     }
 
-    private static void pause() {
-        System.out.print("\nPress ENTER to continue...");
-        scanner.nextLine();
+    // Blank input means unbounded on that side.
+    private static LocalDate[] promptDateRange() {
+        LocalDate[] range = new LocalDate[2];
+        String[] labels = {"From date (yyyy-MM-dd) or blank for no lower bound", "To date (yyyy-MM-dd) or blank for no upper bound"};
+        for (int i = 0; i < 2; i++) {
+            while (true) {
+                String s = prompt(labels[i]);
+                if (s.isEmpty()) break;
+                try {
+                    range[i] = LocalDate.parse(s);
+                    break;
+                } catch (Exception e) {
+                    System.out.println("Invalid date.");
+                }
+            }
+        }
+        return range;
     }
 
-    private static String truncate(String s, int max) {
-        if (s == null) return "";
-        return s.length() <= max ? s : s.substring(0, max - 3) + "...";
+    private static void pause() {
+        System.out.print("\nPress ENTER to continue...");
+        console.nextLine();
     }
 
     private static void seedSampleData() {
@@ -736,8 +1202,8 @@ public class ServiceRequestSystem {
         ServiceRequest r1 = requestManager.createRequest(user1, "IT Support - Software", "HIGH",
                 "Laptop crashed", "Blue screen on startup, needs urgent fix");
         requestManager.updateStatus(r1, "IN_PROGRESS", agent.name);
-        r1.assignedAgent = agent.name;
-        r1.addComment(agent.name + ": Investigating BSOD.");
+        requestManager.assignRequest(r1, agent.name);
+        requestManager.addComment(r1, agent.name + ": Investigating BSOD.");
 
         ServiceRequest r2 = requestManager.createRequest(user2, "Facilities - Maintenance", "MEDIUM",
                 "Air conditioner leaking", "Water dripping from AC unit in room 204");
@@ -746,8 +1212,8 @@ public class ServiceRequestSystem {
         ServiceRequest r3 = requestManager.createRequest(user1, "HR Services - Payroll", "LOW",
                 "Payslip correction", "Incorrect tax calculation in June payslip");
         requestManager.updateStatus(r3, "RESOLVED", admin.name);
-        r3.resolutionNotes = "Corrected payroll entry and reissued payslip";
-        r3.addComment("Admin: " + r3.resolutionNotes);
+        requestManager.setResolutionNotes(r3, "Corrected payroll entry and reissued payslip");
+        requestManager.addComment(r3, "Admin: " + r3.resolutionNotes);
     }
 
     // ====== Data Models ======
@@ -759,6 +1225,14 @@ public class ServiceRequestSystem {
         LocalDateTime createdDate, lastUpdated, resolvedDate;
         String resolutionNotes;
         List<String> comments = new ArrayList<>();
+        LocalDateTime firstResponseDate; // derived from comments, not persisted
+        LocalDateTime[] closedAt, reopenedAt; // status changes into and out of RESOLVED/CLOSED, derived like firstResponseDate; null when none
+        int[] minHash; // text signature while the ticket is in a DuplicateIndex, not persisted
+        private int seq = -1; // numeric part of ticketId, parsed lazily for ordering
+        long version; // bumped on every change, see RequestManager.DirtyMark
+        long epoch; // of the last change, see Versions
+        TicketVersion older; // earlier states still needed by open snapshots, newest first
+        private FormattedDate createdText, updatedText, resolvedText;
 
         ServiceRequest() {}
 
@@ -773,57 +1247,136 @@ public class ServiceRequestSystem {
             this.subject = subject;
             this.description = description;
             this.status = "OPEN";
-            this.createdDate = LocalDateTime.now();
+            this.createdDate = LocalDateTime.now().truncatedTo(ChronoUnit.SECONDS); // as stored, so durations match after a reload
             this.lastUpdated = this.createdDate;
             this.assignedAgent = "";
         }
 
         void addComment(String c) {
+            addComment(c, LocalDateTime.now());
+        }
+
+        void addComment(String c, LocalDateTime at) {
             if (c == null || c.trim().isEmpty()) return;
-            String ts = LocalDateTime.now().format(DTF);
-            comments.add("[" + ts + "] " + c);
-            this.lastUpdated = LocalDateTime.now();
+            comments.add("[" + at.format(DTF) + "] " + c);
+            this.lastUpdated = at;
         }
 
-        String toDisplayString() {
-            StringBuilder sb = new StringBuilder();
-            sb.append("\n=== Request Details ===\n");
-            sb.append("Ticket ID: ").append(ticketId).append('\n');
-            sb.append("Status: ").append(status).append('\n');
-            sb.append("Created: ").append(createdDate.format(DTF)).append('\n');
-            sb.append("Priority: ").append(priority).append('\n');
-            sb.append('\n');
-            sb.append("User: ").append(userName).append(" (" ).append(userDept).append(")\n");
-            sb.append("Email: ").append(userEmail).append('\n');
-            sb.append('\n');
-            sb.append("Subject: ").append(subject).append('\n');
-            sb.append("Category: ").append(category).append('\n');
-            sb.append('\n');
-            sb.append("Description:\n").append(description).append('\n');
-            sb.append('\n');
-            sb.append("Assignment: ").append(assignedAgent == null ? "" : assignedAgent).append('\n');
-            sb.append("Last Update: ").append(lastUpdated == null ? "" : lastUpdated.format(DTF)).append('\n');
-            if (resolvedDate != null) {
-                sb.append("Resolved: ").append(resolvedDate.format(DTF)).append('\n');
-            }
-            if (resolutionNotes != null && !resolutionNotes.trim().isEmpty()) {
-                sb.append("Resolution Notes: ").append(resolutionNotes).append('\n');
+        // Shared by the single-ticket and bulk paths; callers hold the shard's write lock.
+        void applyStatus(String newStatus, String actor, LocalDateTime at) {
+            if (isTerminal(status) != isTerminal(newStatus)) recordTransition(newStatus, at);
+            status = newStatus;
+            lastUpdated = at;
+            addComment("[STATUS] -> " + newStatus + (actor == null ? "" : (" by " + actor)), at);
+            if ("RESOLVED".equals(newStatus) || "CLOSED".equals(newStatus)) resolvedDate = at.truncatedTo(ChronoUnit.SECONDS);
+            // seconds only, as deriveHistory reads it back from the comment after a reload
+            if (firstResponseDate == null) firstResponseDate = at.truncatedTo(ChronoUnit.SECONDS);
+        }
+
+        void applyAssignment(String agentName, LocalDateTime at) {
+            assignedAgent = agentName;
+            addComment("[ASSIGN] Assigned to " + agentName, at);
+            if (firstResponseDate == null) firstResponseDate = at.truncatedTo(ChronoUnit.SECONDS);
+        }
+
+        // Replaces every persisted field with those of o (used when applying replicated state).
+        void copyFrom(ServiceRequest o) {
+            userName = o.userName; userDept = o.userDept; userEmail = o.userEmail; userPhone = o.userPhone;
+            category = o.category; priority = o.priority; subject = o.subject; description = o.description;
+            status = o.status; assignedAgent = o.assignedAgent;
+            createdDate = o.createdDate; lastUpdated = o.lastUpdated; resolvedDate = o.resolvedDate;
+            resolutionNotes = o.resolutionNotes;
+            comments = new ArrayList<>(o.comments);
+            deriveHistory();
+        }
+
+        // A detached copy of the current state for snapshots that must not see the coming change.
+        ServiceRequest frozenCopy() {
+            ServiceRequest c = new ServiceRequest();
+            c.ticketId = ticketId; c.seq = seq; c.version = version; c.epoch = epoch;
+            c.userName = userName; c.userDept = userDept; c.userEmail = userEmail; c.userPhone = userPhone;
+            c.category = category; c.priority = priority; c.subject = subject; c.description = description;
+            c.status = status; c.assignedAgent = assignedAgent;
+            c.createdDate = createdDate; c.lastUpdated = lastUpdated; c.resolvedDate = resolvedDate;
+            c.resolutionNotes = resolutionNotes;
+            c.comments = new ArrayList<>(comments);
+            c.firstResponseDate = firstResponseDate;
+            c.closedAt = closedAt; c.reopenedAt = reopenedAt; // replaced, never written in place
+            return c;
+        }
+
+        int seq() {
+            if (seq < 0) seq = parseSeq(ticketId);
+            return seq;
+        }
+
+        static int parseSeq(String ticketId) {
+            try {
+                return Integer.parseInt(ticketId.substring(ticketId.indexOf('-') + 1));
+            } catch (Exception e) {
+                return 0;
             }
-            sb.append('\n');
-            sb.append("Comments:\n");
-            if (comments.isEmpty()) {
-                sb.append("(None)\n");
-            } else {
-                for (String c : comments) sb.append("- ").append(c).append('\n');
+        }
+
+        static boolean isTerminal(String status) { return "RESOLVED".equals(status) || "CLOSED".equals(status); }
+
+        // Closes and reopens alternate, starting with a close: RESOLVED -> CLOSED is not a new close.
+        private void recordTransition(String newStatus, LocalDateTime at) {
+            at = at.truncatedTo(ChronoUnit.SECONDS); // as deriveHistory reads it back
+            if (isTerminal(newStatus)) closedAt = append(closedAt, at);
+            else reopenedAt = append(reopenedAt, at);
+        }
+
+        private static LocalDateTime[] append(LocalDateTime[] a, LocalDateTime t) {
+            if (a == null) return new LocalDateTime[]{t};
+            LocalDateTime[] b = Arrays.copyOf(a, a.length + 1);
+            b[a.length] = t;
+            return b;
+        }
+
+        // Replays the status and assignment comments: the first of either counts as the first
+        // response, and status comments give the closes and reopens. Tickets start OPEN.
+        void deriveHistory() {
+            firstResponseDate = null;
+            closedAt = reopenedAt = null;
+            String current = "OPEN";
+            for (String c : comments) {
+                if (c.length() < 22 || c.charAt(0) != '[') continue;
+                String body = c.substring(22);
+                boolean statusChange = body.startsWith("[STATUS] -> ");
+                if (!statusChange && (firstResponseDate != null || !body.startsWith("[ASSIGN] "))) continue;
+                LocalDateTime at;
+                try {
+                    at = LocalDateTime.parse(c.substring(1, 20), DTF);
+                } catch (Exception e) {
+                    continue;
+                }
+                if (firstResponseDate == null) firstResponseDate = at;
+                if (!statusChange) continue;
+                int end = body.indexOf(' ', 12);
+                String next = end < 0 ? body.substring(12) : body.substring(12, end);
+                if (isTerminal(current) != isTerminal(next)) recordTransition(next, at);
+                current = next;
             }
+        }
+
+        String toDisplayString() {
+            StringBuilder sb = RequestRenderer.buffer();
+            RequestRenderer.appendDetails(sb, this);
             return sb.toString();
         }
+
+        // Formatted timestamps are kept until the date they were made from changes.
+        String createdText() { return (createdText = FormattedDate.of(createdText, createdDate)).text; }
+        String updatedText() { return (updatedText = FormattedDate.of(updatedText, lastUpdated)).text; }
+        String resolvedText() { return (resolvedText = FormattedDate.of(resolvedText, resolvedDate)).text; }
     }
 
     static class User {
         String userId, name, department, role; // ADMIN, AGENT, USER
         String email, phone;
-        List<String> requestHistory = new ArrayList<>(); // ticket IDs
+        TicketSeqs requestHistory = new TicketSeqs(); // the user's own tickets; guarded by the users lock
+        long version;
 
         @Override
         public String toString() {
@@ -832,370 +1385,6084 @@ public class ServiceRequestSystem {
         }
     }
 
-    // ====== Core Logic ======
-    static class RequestManager {
-        private final List<ServiceRequest> requests = new ArrayList<>();
-        private final Map<String, ServiceRequest> byId = new HashMap<>();
-        private final Map<String, Integer> idNumeric = new HashMap<>();
-        private int nextSeq = 1;
-
-        private final List<User> users = new ArrayList<>();
-        private boolean changed = false;
+    // A user's tickets as sorted ticket numbers (REQ-000123 -> 123): an int per ticket rather than
+    // a String, and the per-user index behind View My Requests. Persisted as '#' followed by Base64
+    // of the gaps between consecutive numbers as varints, typically one or two bytes per ticket.
+    static final class TicketSeqs {
+        private static final int[] EMPTY = new int[0];
+        private int[] seqs = EMPTY;
+        private int size;
 
-        void markChanged() { changed = true; }
-        boolean hasChanges() { return changed; }
-        void clearChanges() { changed = false; }
+        int size() { return size; }
+        boolean isEmpty() { return size == 0; }
+        int get(int i) { return seqs[i]; }
 
-        // Accessors for external modules
-        List<User> getUsers() { return users; }
-        List<ServiceRequest> getRequests() { return requests; }
+        boolean contains(int seq) { return Arrays.binarySearch(seqs, 0, size, seq) >= 0; }
 
-        String previewNextTicketId() { return String.format("REQ-%03d", nextSeq); }
+        boolean add(int seq) {
+            int i = size == 0 || seqs[size - 1] < seq ? -size - 1 : Arrays.binarySearch(seqs, 0, size, seq);
+            if (i >= 0) return false;
+            i = -i - 1;
+            if (size == seqs.length) seqs = Arrays.copyOf(seqs, Math.max(4, size * 2));
+            System.arraycopy(seqs, i, seqs, i + 1, size - i);
+            seqs[i] = seq;
+            size++;
+            return true;
+        }
 
-        private void calibrateNextSeq() {
-            int max = 0;
-            for (String id : byId.keySet()) {
-                try {
-                    String num = id.replace("REQ-", "");
-                    max = Math.max(max, Integer.parseInt(num));
-                } catch (Exception ignored) {}
-            }
-            nextSeq = Math.max(nextSeq, max + 1);
+        boolean remove(int seq) {
+            int i = Arrays.binarySearch(seqs, 0, size, seq);
+            if (i < 0) return false;
+            System.arraycopy(seqs, i + 1, seqs, i, size - i - 1);
+            size--;
+            return true;
         }
 
-        ServiceRequest createRequest(User user, String category, String priority, String subject, String description) {
-            String ticketId = String.format("REQ-%03d", nextSeq++);
-            ServiceRequest r = new ServiceRequest(ticketId, user, category, priority, subject, description);
-            requests.add(r);
-            byId.put(ticketId, r);
-            if (user != null) user.requestHistory.add(ticketId);
-            changed = true;
-            return r;
+        // Returns the number of entries removed.
+        int removeIf(IntPredicate p) {
+            int w = 0;
+            for (int i = 0; i < size; i++) if (!p.test(seqs[i])) seqs[w++] = seqs[i];
+            int removed = size - w;
+            size = w;
+            return removed;
         }
 
-        boolean deleteRequest(String ticketId) {
-            ServiceRequest r = byId.remove(ticketId);
-            if (r == null) return false;
-            requests.remove(r);
-            for (User u : users) u.requestHistory.remove(ticketId);
-            changed = true;
-            return true;
+        String encode() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(size * 2);
+            int prev = 0;
+            for (int i = 0; i < size; i++) {
+                int gap = seqs[i] - prev;
+                prev = seqs[i];
+                while ((gap & ~0x7f) != 0) {
+                    out.write((gap & 0x7f) | 0x80);
+                    gap >>>= 7;
+                }
+                out.write(gap);
+            }
+            return "#" + Base64.getEncoder().withoutPadding().encodeToString(out.toByteArray());
         }
 
-        void updateStatus(ServiceRequest r, String status, String actor) {
-            if (r == null) return;
-            r.status = status;
-            r.lastUpdated = LocalDateTime.now();
-            r.addComment("[STATUS] -> " + status + (actor == null ? "" : (" by " + actor)));
-            if ("RESOLVED".equals(status) || "CLOSED".equals(status)) {
-                r.resolvedDate = LocalDateTime.now();
+        // Reads the '#' form, or the older list of ticket IDs joined by ";;".
+        static TicketSeqs decode(String field, Function<String, String> legacyDecoder) {
+            TicketSeqs t = new TicketSeqs();
+            if (field.startsWith("#")) {
+                byte[] b = Base64.getDecoder().decode(field.substring(1));
+                t.seqs = new int[b.length];
+                int prev = 0;
+                for (int i = 0; i < b.length; ) {
+                    int gap = 0;
+                    for (int shift = 0; ; shift += 7) {
+                        int x = b[i++];
+                        gap |= (x & 0x7f) << shift;
+                        if ((x & 0x80) == 0) break;
+                    }
+                    prev += gap;
+                    t.seqs[t.size++] = prev;
+                }
+                return t;
             }
-            changed = true;
+            String hist = legacyDecoder.apply(field);
+            if (hist.trim().isEmpty()) return t;
+            for (String id : hist.split(";;")) {
+                int seq = ServiceRequest.parseSeq(id.trim());
+                if (seq > 0) t.add(seq);
+            }
+            return t;
         }
+    }
 
-        ServiceRequest findById(String ticketId) {
-            return byId.get(ticketId);
+    // ====== Core Logic ======
+    static class RequestManager {
+        private static final Metrics.Timer T_CREATE = Metrics.timer("request.create", 8);
+        private static final Metrics.Timer T_DELETE = Metrics.timer("request.delete");
+        private static final Metrics.Timer T_STATUS = Metrics.timer("request.update_status", 8);
+        private static final Metrics.Timer T_ASSIGN = Metrics.timer("request.assign", 8);
+        private static final Metrics.Timer T_COMMENT = Metrics.timer("request.comment", 8);
+        private static final Metrics.Timer T_LIST_ALL = Metrics.timer("list.all");
+        private static final Metrics.Timer T_LIST_USER = Metrics.timer("list.by_user");
+        private static final Metrics.Timer T_LIST_AGENT = Metrics.timer("list.by_agent");
+        private static final Metrics.Timer T_FILTER_STATUS = Metrics.timer("filter.status");
+        private static final Metrics.Timer T_FILTER_CATEGORY = Metrics.timer("filter.category");
+        private static final Metrics.Timer T_FILTER_PRIORITY = Metrics.timer("filter.priority");
+        private static final Metrics.Timer T_FILTER_DATES = Metrics.timer("filter.date_range");
+        private static final Metrics.Timer T_PLAN = Metrics.timer("query.plan");
+        private static final Metrics.Timer T_QUERY = Metrics.timer("query.page");
+        private static final Metrics.Timer T_SEARCH = Metrics.timer("search.keyword");
+        private static final Metrics.Timer T_DUPLICATES = Metrics.timer("search.duplicates");
+        private static final LongAdder DUPLICATES_LINKED = Metrics.counter("duplicates_linked");
+        private static final Metrics.Timer T_BULK = Metrics.timer("request.bulk");
+        private static final LongAdder BULK_CHANGED = Metrics.counter("bulk_tickets_changed");
+        private static final Pattern BULK_ID = Pattern.compile("(?i)REQ-\\d+");
+        private static final int BULK_CHUNK = 4096; // tickets per write-lock hold
+        private static final Metrics.Timer T_USER_CREATE = Metrics.timer("user.create");
+        private static final Metrics.Timer T_USER_DELETE = Metrics.timer("user.delete");
+        private static final Metrics.Timer T_REPLACE = Metrics.timer("data.replace_all");
+        private static final LongAdder ROWS_SCANNED = Metrics.counter("query_rows_scanned");
+
+        // Indexes each cached query reads; see RequestIndex.Field.
+        static final RequestIndex.Field[] DEP_STATUS = {RequestIndex.Field.STATUS};
+        static final RequestIndex.Field[] DEP_CATEGORY = {RequestIndex.Field.CATEGORY};
+        static final RequestIndex.Field[] DEP_PRIORITY = {RequestIndex.Field.PRIORITY};
+        static final RequestIndex.Field[] DEP_EMAIL = {RequestIndex.Field.EMAIL};
+        static final RequestIndex.Field[] DEP_AGENT = {RequestIndex.Field.AGENT};
+        static final RequestIndex.Field[] DEP_TEXT = {RequestIndex.Field.TEXT};
+        static final RequestIndex.Field[] DEP_CREATED = {RequestIndex.Field.CREATED};
+        static final RequestIndex.Field[] DEP_UPDATED = {RequestIndex.Field.UPDATED};
+        static final RequestIndex.Field[] DEP_RESOLVED = {RequestIndex.Field.RESOLVED};
+
+        // One shard per department group; each owns its tickets, indexes and lock.
+        private final Shard[] shards;
+        private final Map<String, ServiceRequest> byId = new ConcurrentHashMap<>();
+        private final IdAllocator ids = new IdAllocator();
+        private final Outbox outbox = new Outbox();
+        private final QueryCache cache = new QueryCache(512, 200_000);
+
+        private final List<User> users = new ArrayList<>();
+        private final Map<String, User> usersByEmail = new HashMap<>(); // normalized email -> first user with it; users lock
+        private final Versions versions = new Versions();
+        private final ReentrantReadWriteLock usersLock = new ReentrantReadWriteLock();
+        private final ShardedAnalytics analytics;
+        private final List<MutationListener> listeners = new CopyOnWriteArrayList<>();
+        private volatile boolean readOnly = false;
+        private volatile boolean reloading;
+
+        // Records changed since the last save, keyed by ticket ID / user ID. Every change leaves a new
+        // mark; a save clears only the marks it wrote, so changes made while it runs stay dirty.
+        static final class DirtyMark {
+            final Shard shard; // null for users
+            final long version;
+
+            DirtyMark(Shard shard, long version) {
+                this.shard = shard;
+                this.version = version;
+            }
         }
 
-        List<ServiceRequest> listAll() { return new ArrayList<>(requests); }
+        private final Map<String, DirtyMark> dirtyTickets = new ConcurrentHashMap<>();
+        private final Map<String, DirtyMark> dirtyUsers = new ConcurrentHashMap<>();
+        private volatile boolean fullRewrite = false; // on-disk files may not match memory at all
 
-        List<ServiceRequest> listByUserEmail(String email) {
-            return requests.stream().filter(r -> r.userEmail.equalsIgnoreCase(email)).collect(Collectors.toList());
+        RequestManager() {
+            shards = new Shard[SHARD_NAMES.length];
+            for (int i = 0; i < shards.length; i++) shards[i] = new Shard(SHARD_NAMES[i]);
+            analytics = new ShardedAnalytics(shards);
         }
 
-        List<ServiceRequest> listByAssignedAgent(String agentName) {
-            return requests.stream().filter(r -> agentName.equalsIgnoreCase(r.assignedAgent)).collect(Collectors.toList());
+        void addListener(MutationListener l) { listeners.add(l); }
+        void removeListener(MutationListener l) { listeners.remove(l); }
+
+        boolean isReadOnly() { return readOnly; }
+        void setReadOnly(boolean readOnly) { this.readOnly = readOnly; }
+
+        // Set while a load or restore replaces the data; changes made meanwhile would be lost.
+        void setReloading(boolean reloading) { this.reloading = reloading; }
+
+        private void checkWritable() {
+            checkNotStandby();
+            if (reloading) throw new IllegalStateException("Data is being loaded or restored; try again when it finishes.");
         }
 
-        List<ServiceRequest> filterByStatus(String status) {
-            return requests.stream().filter(r -> r.status.equalsIgnoreCase(status)).collect(Collectors.toList());
+        private void checkNotStandby() {
+            if (readOnly) throw new IllegalStateException("This node is a read-only standby.");
         }
 
-        List<ServiceRequest> filterByCategory(String category) {
-            return requests.stream().filter(r -> r.category.equalsIgnoreCase(category)).collect(Collectors.toList());
+        // Callers hold the shard's write lock. A ticket looked up before it was archived, deleted or
+        // reloaded is no longer the live object, and a change to it would be lost.
+        private void checkLive(ServiceRequest r) {
+            if (byId.get(r.ticketId) != r) throw new IllegalStateException("Ticket " + r.ticketId + " was archived, deleted or reloaded; look it up again.");
         }
 
-        List<ServiceRequest> filterByPriority(String priority) {
-            return requests.stream().filter(r -> r.priority.equalsIgnoreCase(priority)).collect(Collectors.toList());
+        boolean hasChanges() { return fullRewrite || !dirtyTickets.isEmpty() || !dirtyUsers.isEmpty(); }
+
+        // Callers hold the shard's or the users' write lock. A standby does not track changes: it
+        // never saves, and promotion marks everything dirty.
+        private void markDirty(Shard s, ServiceRequest r) {
+            if (!readOnly) dirtyTickets.put(r.ticketId, new DirtyMark(s, ++r.version));
         }
 
-        List<ServiceRequest> filterByDateRange(LocalDateTime from, LocalDateTime to) {
-            return requests.stream().filter(r -> {
-                boolean ok = true;
-                if (from != null) ok &= !r.createdDate.isBefore(from);
-                if (to != null) ok &= !r.createdDate.isAfter(to);
-                return ok;
-            }).collect(Collectors.toList());
+        private void markDirty(User u) {
+            if (!readOnly) dirtyUsers.put(u.userId, new DirtyMark(null, ++u.version));
         }
 
-        List<ServiceRequest> searchByKeyword(String keyword) {
-            String kw = keyword.toLowerCase(Locale.ROOT);
-            return requests.stream().filter(r ->
-                    (r.subject != null && r.subject.toLowerCase(Locale.ROOT).contains(kw)) ||
-                    (r.description != null && r.description.toLowerCase(Locale.ROOT).contains(kw))
-            ).collect(Collectors.toList());
+        // The next save rewrites every file (after a migration or a standby promotion).
+        void markAllDirty() { fullRewrite = true; }
+        boolean needsFullRewrite() { return fullRewrite; }
+        Map<String, DirtyMark> dirtyTickets() { return new HashMap<>(dirtyTickets); }
+        Map<String, DirtyMark> dirtyUsers() { return new HashMap<>(dirtyUsers); }
+
+        void clearDirty(Map<String, DirtyMark> tickets, Map<String, DirtyMark> savedUsers, boolean full) {
+            tickets.forEach(dirtyTickets::remove);
+            savedUsers.forEach(dirtyUsers::remove);
+            if (full) fullRewrite = false;
         }
 
-        // ===== Users =====
-        Optional<User> findUserByEmail(String email) {
-            return users.stream().filter(u -> u.email.equalsIgnoreCase(email)).findFirst();
+        // Accessors for external modules
+        List<User> getUsers() { return users; }
+        int size() { return byId.size(); }
+        Shard[] getShards() { return shards; }
+        List<ServiceRequest> getRequests() { return listAll(); }
+        ShardedAnalytics getAnalytics() { return analytics; }
+
+        // Categories are "<Group> - <Sub>"; anything unrecognised lands in the last shard.
+        Shard shardFor(String category) {
+            if (category != null) {
+                for (Shard s : shards) if (category.startsWith(s.name)) return s;
+            }
+            return shards[shards.length - 1];
         }
 
-        User findOrCreateUserByEmail(String email, String name, String dept, String role, String phone) {
-            Optional<User> u = findUserByEmail(email);
-            return u.orElseGet(() -> createUser(name, dept, role, email, phone));
+        String previewNextTicketId() { return IdAllocator.format(ids.peek()); }
+
+        IdAllocator ids() { return ids; }
+        Outbox outbox() { return outbox; }
+
+        // Only needed when no high-water mark has been persisted yet (data from older versions).
+        void calibrateIds() {
+            for (ServiceRequest r : byId.values()) ids.observe(r.seq());
         }
 
-        User createUser(String name, String dept, String role, String email, String phone) {
-            User u = new User();
-            u.userId = UUID.randomUUID().toString().substring(0, 8).toUpperCase(Locale.ROOT);
-            u.name = name; u.department = dept; u.role = role; u.email = email; u.phone = phone;
-            users.add(u);
-            changed = true;
-            return u;
+        ServiceRequest createRequest(User user, String category, String priority, String subject, String description) {
+            long t0 = T_CREATE.start();
+            try {
+                checkWritable();
+                TicketEvent ev = TicketEvent.start();
+                String ticketId = IdAllocator.format(ids.next());
+                while (byId.containsKey(ticketId)) ticketId = IdAllocator.format(ids.next()); // stale high-water mark
+                ServiceRequest r = new ServiceRequest(ticketId, user, category, priority, subject, description);
+                Shard s = shardFor(category);
+                s.lock.writeLock().lock();
+                try {
+                    s.requests.add(r);
+                    byId.put(ticketId, r);
+                    afterChange(s, r);
+                } finally {
+                    s.lock.writeLock().unlock();
+                }
+                if (user != null) {
+                    usersLock.writeLock().lock();
+                    try {
+                        user.requestHistory.add(r.seq());
+                        markDirty(user);
+                    } finally {
+                        usersLock.writeLock().unlock();
+                    }
+                }
+                ev.end("create", r, null);
+                return r;
+            } finally {
+                T_CREATE.stop(t0);
+            }
         }
 
-        boolean deleteUserByEmail(String email) {
-            Optional<User> u = findUserByEmail(email);
-            if (u.isEmpty()) return false;
-            if (!u.get().requestHistory.isEmpty()) return false; // do not delete if linked
-            users.remove(u.get());
-            changed = true;
+        boolean deleteRequest(String ticketId) {
+            long t0 = T_DELETE.start();
+            try {
+                checkWritable();
+                TicketEvent ev = TicketEvent.start();
+                ServiceRequest r = byId.get(ticketId);
+                if (!removeTicket(ticketId)) return false;
+                ev.end("delete", r, r.status);
+                return true;
+            } finally {
+                T_DELETE.stop(t0);
+            }
+        }
+
+        private boolean removeTicket(String ticketId) {
+            ServiceRequest r = byId.get(ticketId);
+            if (r == null) return false;
+            Shard s = shardFor(r.category);
+            s.lock.writeLock().lock();
+            try {
+                if (byId.remove(ticketId) == null) return false;
+                s.requests.remove(r);
+                beforeChange(s, r);
+                s.duplicates.remove(r);
+                markDirty(s, r);
+                s.index.touchAll();
+                for (MutationListener l : listeners) l.ticketDeleted(ticketId);
+            } finally {
+                s.lock.writeLock().unlock();
+            }
+            usersLock.writeLock().lock();
+            try {
+                User owner = ownerOf(r);
+                if (owner != null && owner.requestHistory.remove(r.seq())) markDirty(owner);
+            } finally {
+                usersLock.writeLock().unlock();
+            }
             return true;
         }
 
-        // ===== Persistence support =====
-        void replaceAll(List<User> users, List<ServiceRequest> requests) {
-            this.users.clear();
-            this.users.addAll(users);
-            this.requests.clear();
-            this.requests.addAll(requests);
-            this.byId.clear();
-            for (ServiceRequest r : requests) this.byId.put(r.ticketId, r);
-            calibrateNextSeq();
-            this.changed = false;
+        void updateStatus(ServiceRequest r, String status, String actor) {
+            long t0 = T_STATUS.start();
+            try {
+                if (r == null) return;
+                checkWritable();
+                TicketEvent ev = TicketEvent.start();
+                String previous = r.status;
+                Shard s = shardFor(r.category);
+                s.lock.writeLock().lock();
+                try {
+                    checkLive(r);
+                    beforeChange(s, r);
+                    r.applyStatus(status, actor, LocalDateTime.now());
+                    afterChange(s, r);
+                    if (!status.equals(previous)) notifyStatus(r, previous, actor);
+                } finally {
+                    s.lock.writeLock().unlock();
+                }
+                ev.end("status", r, previous);
+            } finally {
+                T_STATUS.stop(t0);
+            }
         }
-    }
 
-    // ====== Reporting ======
-    static class ReportGenerator {
-        private final RequestManager rm;
-        ReportGenerator(RequestManager rm) { this.rm = rm; }
+        void assignRequest(ServiceRequest r, String agentName) {
+            long t0 = T_ASSIGN.start();
+            try {
+                if (r == null) return;
+                checkWritable();
+                TicketEvent ev = TicketEvent.start();
+                Shard s = shardFor(r.category);
+                s.lock.writeLock().lock();
+                try {
+                    checkLive(r);
+                    String previous = r.assignedAgent;
+                    beforeChange(s, r);
+                    r.applyAssignment(agentName, LocalDateTime.now());
+                    afterChange(s, r);
+                    if (!Objects.equals(agentName, previous)) outbox.record(r, Notification.Kind.ASSIGN, agentName);
+                } finally {
+                    s.lock.writeLock().unlock();
+                }
+                ev.end("assign", r, r.status);
+            } finally {
+                T_ASSIGN.stop(t0);
+            }
+        }
 
-        void printSummaryStatistics() {
-            List<ServiceRequest> all = rm.listAll();
-            long total = all.size();
-            long open = all.stream().filter(r -> r.status.equals("OPEN")).count();
-            long inprog = all.stream().filter(r -> r.status.equals("IN_PROGRESS")).count();
-            long resolved = all.stream().filter(r -> r.status.equals("RESOLVED")).count();
-            long closed = all.stream().filter(r -> r.status.equals("CLOSED")).count();
-            System.out.println("Total: " + total + ", Open: " + open + ", In Progress: " + inprog + ", Resolved: " + resolved + ", Closed: " + closed);
+        void addComment(ServiceRequest r, String comment) {
+            long t0 = T_COMMENT.start();
+            try {
+                if (r == null) return;
+                checkWritable();
+                TicketEvent ev = TicketEvent.start();
+                Shard s = shardFor(r.category);
+                s.lock.writeLock().lock();
+                try {
+                    checkLive(r);
+                    beforeChange(s, r);
+                    r.addComment(comment);
+                    afterChange(s, r);
+                    outbox.record(r, Notification.Kind.COMMENT, comment);
+                } finally {
+                    s.lock.writeLock().unlock();
+                }
+                ev.end("comment", r, r.status);
+            } finally {
+                T_COMMENT.stop(t0);
+            }
         }
 
-        void printByCategory() {
-            Map<String, Long> map = rm.listAll().stream().collect(Collectors.groupingBy(r -> r.category, Collectors.counting()));
-            map.entrySet().stream().sorted(Map.Entry.comparingByKey()).forEach(e ->
-                    System.out.printf("%-30s : %d%n", e.getKey(), e.getValue()));
+        void setResolutionNotes(ServiceRequest r, String notes) {
+            if (r == null) return;
+            checkWritable();
+            Shard s = shardFor(r.category);
+            s.lock.writeLock().lock();
+            try {
+                checkLive(r);
+                beforeChange(s, r);
+                r.resolutionNotes = notes;
+                afterChange(s, r);
+            } finally {
+                s.lock.writeLock().unlock();
+            }
         }
 
-        void printByPriority() {
-            Map<String, Long> map = rm.listAll().stream().collect(Collectors.groupingBy(r -> r.priority, Collectors.counting()));
-            map.entrySet().stream().sorted((a, b) -> Integer.compare(rank(a.getKey()), rank(b.getKey())))
-                    .forEach(e -> System.out.printf("%-8s : %d%n", e.getKey(), e.getValue()));
+        // ===== Bulk operations =====
+        // A selection is either ticket IDs separated by commas or spaces, or query language text.
+        // IDs that do not exist are added to missing.
+        List<ServiceRequest> selectForBulk(String spec, List<String> missing) {
+            String[] tokens = spec.trim().split("[,\\s]+");
+            boolean ids = !spec.isBlank();
+            for (String t : tokens) ids &= BULK_ID.matcher(t).matches();
+            if (!ids) return matchAll(planQuery(spec).query);
+            Set<ServiceRequest> picked = new LinkedHashSet<>();
+            for (String t : tokens) {
+                ServiceRequest r = byId.get(t.toUpperCase(Locale.ROOT));
+                if (r == null) missing.add(t);
+                else picked.add(r);
+            }
+            return new ArrayList<>(picked);
         }
 
-        private int rank(String p) {
-            String v = p == null ? "" : p.toUpperCase(Locale.ROOT);
-            switch (v) {
-                case "CRITICAL": return 0;
-                case "HIGH": return 1;
-                case "MEDIUM": return 2;
-                default: return 3;
+        // Every match of q in ticket order, without paging.
+        List<ServiceRequest> matchAll(RequestQuery q) {
+            List<ServiceRequest> all = gather(s -> {
+                Scan scan = q.scan.apply(s.index);
+                List<ServiceRequest> out = new ArrayList<>();
+                long scanned = 0;
+                for (ServiceRequest r : scan.rows == null ? s.requests : scan.rows) {
+                    scanned++;
+                    if (scan.filter.test(r)) out.add(r);
+                }
+                ROWS_SCANNED.add(scanned);
+                return out;
+            });
+            all.sort(Comparator.comparingInt(ServiceRequest::seq));
+            return all;
+        }
+
+        // Applies one change to many tickets. Each shard's write lock is taken once per chunk rather
+        // than once per ticket, every ticket gets the same timestamp, and the time indexes and the
+        // duplicate index are updated once per chunk. Tickets already in the requested state are
+        // left alone. Nothing is written to disk here: the changed tickets are marked dirty and go
+        // out with the next save.
+        BulkResult bulkUpdate(List<ServiceRequest> targets, BulkChange change, Progress progress) {
+            long t0 = T_BULK.start();
+            try {
+                checkWritable();
+                long started = System.nanoTime();
+                LocalDateTime now = LocalDateTime.now();
+                Map<Shard, List<ServiceRequest>> byShard = new LinkedHashMap<>();
+                for (ServiceRequest r : targets) byShard.computeIfAbsent(shardFor(r.category), k -> new ArrayList<>()).add(r);
+                progress.begin("updating tickets", targets.size());
+                int changed = 0, unchanged = 0, gone = 0;
+                for (Map.Entry<Shard, List<ServiceRequest>> e : byShard.entrySet()) {
+                    Shard s = e.getKey();
+                    List<ServiceRequest> list = e.getValue();
+                    for (int from = 0; from < list.size(); from += BULK_CHUNK) {
+                        List<ServiceRequest> chunk = list.subList(from, Math.min(list.size(), from + BULK_CHUNK));
+                        s.lock.writeLock().lock();
+                        try {
+                            List<ServiceRequest> batch = new ArrayList<>(chunk.size());
+                            for (ServiceRequest r : chunk) {
+                                progress.step();
+                                if (byId.get(r.ticketId) != r) gone++; // deleted since selection
+                                else if (change.isNoOp(r)) unchanged++;
+                                else batch.add(r);
+                            }
+                            s.index.removeAll(batch);
+                            List<ServiceRequest> closed = new ArrayList<>();
+                            for (ServiceRequest r : batch) {
+                                TicketEvent ev = TicketEvent.start();
+                                String previous = r.status;
+                                versions.beforeChange(r);
+                                s.analytics.remove(r);
+                                change.apply(r, now);
+                                s.analytics.add(r);
+                                if (DuplicateIndex.isOpen(r)) s.duplicates.update(r);
+                                else closed.add(r);
+                                markDirty(s, r);
+                                for (MutationListener l : listeners) l.ticketChanged(r);
+                                switch (change.kind) {
+                                    case STATUS: notifyStatus(r, previous, change.actor); break;
+                                    case ASSIGN: outbox.record(r, Notification.Kind.ASSIGN, change.value); break;
+                                    default: outbox.record(r, Notification.Kind.COMMENT, change.value);
+                                }
+                                ev.end("bulk." + change.kind.name().toLowerCase(Locale.ROOT), r, previous);
+                            }
+                            s.index.addAll(batch);
+                            s.duplicates.removeAll(closed);
+                            changed += batch.size();
+                        } finally {
+                            s.lock.writeLock().unlock();
+                        }
+                    }
+                }
+                BULK_CHANGED.add(changed);
+                return new BulkResult(targets.size(), changed, unchanged, gone, (System.nanoTime() - started) / 1_000_000);
+            } finally {
+                T_BULK.stop(t0);
             }
         }
 
-        void printAverageResolutionTime() {
-            List<ServiceRequest> resolved = rm.listAll().stream().filter(r -> r.resolvedDate != null).collect(Collectors.toList());
-            if (resolved.isEmpty()) { System.out.println("No resolved requests."); return; }
-            double avgMinutes = resolved.stream()
-                    .mapToLong(r -> Duration.between(r.createdDate, r.resolvedDate).toMinutes())
-                    .average().orElse(0);
-            System.out.printf("Average resolution time: %.1f minutes%n", avgMinutes);
+        // Drops tickets that have been written to the archive, in one pass per shard. Tickets that
+        // changed since (guard fails) stay. Owners' histories are left to pruneHistories, which
+        // handles them for many tickets at once instead of scanning every user per ticket.
+        int dropArchived(List<ServiceRequest> batch, Predicate<ServiceRequest> guard) {
+            checkWritable();
+            Map<Shard, List<ServiceRequest>> byShard = new LinkedHashMap<>();
+            for (ServiceRequest r : batch) byShard.computeIfAbsent(shardFor(r.category), k -> new ArrayList<>()).add(r);
+            int dropped = 0;
+            for (Map.Entry<Shard, List<ServiceRequest>> e : byShard.entrySet()) {
+                Shard s = e.getKey();
+                s.lock.writeLock().lock();
+                try {
+                    List<ServiceRequest> gone = new ArrayList<>();
+                    for (ServiceRequest r : e.getValue()) {
+                        if (byId.get(r.ticketId) == r && guard.test(r)) gone.add(r);
+                    }
+                    Set<ServiceRequest> set = Collections.newSetFromMap(new IdentityHashMap<>());
+                    set.addAll(gone);
+                    s.requests.removeIf(set::contains);
+                    s.duplicates.removeAll(gone);
+                    for (ServiceRequest r : gone) {
+                        TicketEvent ev = TicketEvent.start();
+                        byId.remove(r.ticketId);
+                        s.analytics.remove(r);
+                        markDirty(s, r);
+                        for (MutationListener l : listeners) l.ticketDeleted(r.ticketId);
+                        ev.end("archive", r, r.status);
+                    }
+                    s.index.removeAll(gone); // after the analytics, as in afterChange
+                    dropped += gone.size();
+                } finally {
+                    s.lock.writeLock().unlock();
+                }
+            }
+            return dropped;
         }
-    }
 
-    // ====== File I/O ======
-    static class FileHandler {
-        private final RequestManager rm;
-        private final Path dataDir = Paths.get("data");
-        private final Path exportDir = Paths.get("exports");
-        private final Path requestsFile = dataDir.resolve("requests.txt");
-        private final Path usersFile = dataDir.resolve("users.txt");
+        // Removes IDs of tickets that no longer exist from the histories of users[from, to).
+        // Returns the number of entries removed.
+        int pruneHistories(int from, int to) {
+            checkWritable();
+            usersLock.writeLock().lock();
+            try {
+                int pruned = 0;
+                for (int i = from; i < Math.min(to, users.size()); i++) {
+                    User u = users.get(i);
+                    int removed = u.requestHistory.removeIf(seq -> !byId.containsKey(IdAllocator.format(seq)));
+                    if (removed > 0) {
+                        pruned += removed;
+                        markDirty(u);
+                    }
+                }
+                return pruned;
+            } finally {
+                usersLock.writeLock().unlock();
+            }
+        }
 
-        FileHandler(RequestManager rm) { this.rm = rm; }
+        int userCount() {
+            usersLock.readLock().lock();
+            try {
+                return users.size();
+            } finally {
+                usersLock.readLock().unlock();
+            }
+        }
 
-        void ensureDirs() throws IOException {
-            if (!Files.exists(dataDir)) Files.createDirectories(dataDir);
-            if (!Files.exists(exportDir)) Files.createDirectories(exportDir);
+        // Under the shard's write lock, right after the change (see Outbox).
+        private void notifyStatus(ServiceRequest r, String previous, String actor) {
+            outbox.record(r, Notification.Kind.STATUS, previous + " -> " + r.status + (actor == null || actor.isEmpty() ? "" : " by " + actor));
         }
 
-        void saveData() throws IOException {
-            ensureDirs();
-            try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(usersFile, StandardCharsets.UTF_8))) {
-                for (User u : rm.getUsers()) {
-                    String line = String.join("|",
-                            enc(u.userId), enc(u.name), enc(u.department), enc(u.role), enc(u.email), enc(u.phone),
-                            enc(String.join(";;", u.requestHistory))
-                    );
-                    out.println(line);
+        // Every mutation of an indexed field is bracketed by these two calls, under the shard's write lock.
+        private void beforeChange(Shard s, ServiceRequest r) {
+            versions.beforeChange(r);
+            s.analytics.remove(r);
+            s.index.remove(r);
+        }
+
+        // The index bump invalidates cached reports, so it comes after the analytics they read.
+        private void afterChange(Shard s, ServiceRequest r) {
+            s.analytics.add(r);
+            s.index.add(r);
+            s.duplicates.update(r);
+            markDirty(s, r);
+            for (MutationListener l : listeners) l.ticketChanged(r);
+        }
+
+        // ===== Replication apply (bypasses the read-only check) =====
+        void applyTicket(ServiceRequest incoming) {
+            Shard s = shardFor(incoming.category);
+            s.lock.writeLock().lock();
+            try {
+                ServiceRequest r = byId.get(incoming.ticketId);
+                if (r == null) {
+                    r = incoming;
+                    r.deriveHistory();
+                    s.requests.add(r);
+                    byId.put(r.ticketId, r);
+                    linkToOwner(r);
+                } else {
+                    beforeChange(s, r);
+                    r.copyFrom(incoming);
                 }
+                afterChange(s, r);
+            } finally {
+                s.lock.writeLock().unlock();
             }
-            try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(requestsFile, StandardCharsets.UTF_8))) {
-                for (ServiceRequest r : rm.getRequests()) {
-                    String commentsJoined = r.comments.stream().map(FileHandler::enc).collect(Collectors.joining(";;"));
-                    String line = String.join("|",
-                            enc(r.ticketId), enc(r.userName), enc(r.userDept), enc(r.userEmail), enc(r.userPhone),
-                            enc(r.category), enc(r.priority), enc(r.subject), enc(r.description), enc(r.status),
-                            enc(nullToEmpty(r.assignedAgent)), enc(dt(r.createdDate)), enc(dt(r.lastUpdated)),
-                            enc(dt(r.resolvedDate)), enc(nullToEmpty(r.resolutionNotes)), enc(commentsJoined)
-                    );
-                    out.println(line);
-                }
+            ids.observe(incoming.seq());
+        }
+
+        // New tickets are appended to their owner's history here rather than shipped as a user change.
+        private void linkToOwner(ServiceRequest r) {
+            usersLock.writeLock().lock();
+            try {
+                User owner = ownerOf(r);
+                if (owner != null && owner.requestHistory.add(r.seq())) markDirty(owner);
+            } finally {
+                usersLock.writeLock().unlock();
             }
-            rm.clearChanges();
         }
 
-        void loadData() throws IOException {
-            ensureDirs();
-            List<User> users = new ArrayList<>();
-            List<ServiceRequest> reqs = new ArrayList<>();
-            if (Files.exists(usersFile)) {
-                try (BufferedReader br = Files.newBufferedReader(usersFile, StandardCharsets.UTF_8)) {
-                    String line;
-                    while ((line = br.readLine()) != null) {
-                        String[] parts = split(line);
-                        if (parts.length < 7) continue;
-                        User u = new User();
-                        u.userId = dec(parts[0]);
-                        u.name = dec(parts[1]);
-                        u.department = dec(parts[2]);
-                        u.role = dec(parts[3]);
-                        u.email = dec(parts[4]);
-                        u.phone = dec(parts[5]);
-                        String hist = dec(parts[6]);
-                        if (!hist.trim().isEmpty()) Collections.addAll(u.requestHistory, hist.split(";;"));
-                        users.add(u);
+        void applyTicketDelete(String ticketId) { removeTicket(ticketId); }
+
+        void applyReset() {
+            Map<Shard, List<ServiceRequest>> empty = new HashMap<>();
+            for (Shard s : shards) empty.put(s, new ArrayList<>());
+            reset(new ArrayList<>(), empty);
+        }
+
+        void applyUser(User incoming) {
+            usersLock.writeLock().lock();
+            try {
+                User existing = null;
+                for (User u : users) if (u.userId.equals(incoming.userId)) { existing = u; break; }
+                if (existing == null) {
+                    users.add(incoming);
+                    indexEmail(incoming);
+                    existing = incoming;
+                } else {
+                    String oldEmail = existing.email;
+                    existing.name = incoming.name; existing.department = incoming.department; existing.role = incoming.role;
+                    existing.email = incoming.email; existing.phone = incoming.phone;
+                    existing.requestHistory = incoming.requestHistory;
+                    if (!emailKey(oldEmail).equals(emailKey(existing.email))) {
+                        reindexEmail(oldEmail);
+                        indexEmail(existing);
                     }
                 }
+                markDirty(existing);
+                for (MutationListener l : listeners) l.userChanged(existing);
+            } finally {
+                usersLock.writeLock().unlock();
             }
-            if (Files.exists(requestsFile)) {
-                try (BufferedReader br = Files.newBufferedReader(requestsFile, StandardCharsets.UTF_8)) {
-                    String line;
-                    while ((line = br.readLine()) != null) {
-                        String[] p = split(line);
-                        if (p.length < 16) continue;
-                        ServiceRequest r = new ServiceRequest();
-                        r.ticketId = dec(p[0]);
-                        r.userName = dec(p[1]);
-                        r.userDept = dec(p[2]);
-                        r.userEmail = dec(p[3]);
-                        r.userPhone = dec(p[4]);
-                        r.category = dec(p[5]);
-                        r.priority = dec(p[6]);
-                        r.subject = dec(p[7]);
-                        r.description = dec(p[8]);
-                        r.status = dec(p[9]);
-                        r.assignedAgent = emptyToNull(dec(p[10]));
-                        r.createdDate = parseDt(dec(p[11]));
-                        r.lastUpdated = parseDt(dec(p[12]));
-                        r.resolvedDate = parseDt(dec(p[13]));
-                        r.resolutionNotes = emptyToNull(dec(p[14]));
-                        String commentsJoined = dec(p[15]);
-                        if (!commentsJoined.trim().isEmpty()) {
-                            for (String c : commentsJoined.split(";;")) r.comments.add(dec(c));
-                        }
-                        reqs.add(r);
+        }
+
+        void applyUserDelete(String userId) {
+            usersLock.writeLock().lock();
+            try {
+                for (User u : users) {
+                    if (u.userId.equals(userId)) {
+                        users.remove(u);
+                        reindexEmail(u.email);
+                        markDirty(u);
+                        for (MutationListener l : listeners) l.userDeleted(u);
+                        break;
                     }
                 }
+            } finally {
+                usersLock.writeLock().unlock();
             }
-            rm.replaceAll(users, reqs);
         }
 
-        Path exportAllRequestsCsv() throws IOException {
-            ensureDirs();
-            Path csv = exportDir.resolve("requests.csv");
-            try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(csv, StandardCharsets.UTF_8))) {
-                out.println("TicketId,Status,Priority,Category,Created,User,Department,Email,Subject,AssignedAgent");
-                for (ServiceRequest r : rm.getRequests()) {
-                    out.printf("%s,%s,%s,%s,%s,%s,%s,%s,%s,%s%n",
-                            csvEsc(r.ticketId), csvEsc(r.status), csvEsc(r.priority), csvEsc(r.category), csvEsc(dt(r.createdDate)),
-                            csvEsc(r.userName), csvEsc(r.userDept), csvEsc(r.userEmail), csvEsc(r.subject), csvEsc(nullToEmpty(r.assignedAgent)));
+        // Runs fn with every shard and the user list read-locked, i.e. against a frozen state.
+        <T> T readAll(Supplier<T> fn) {
+            for (Shard s : shards) s.lock.readLock().lock();
+            usersLock.readLock().lock();
+            try {
+                return fn.get();
+            } finally {
+                usersLock.readLock().unlock();
+                for (Shard s : shards) s.lock.readLock().unlock();
+            }
+        }
+
+        // ===== Snapshots =====
+        Snapshot openSnapshot() {
+            return readAll(() -> {
+                Map<Shard, List<ServiceRequest>> members = new LinkedHashMap<>();
+                for (Shard s : shards) members.put(s, new ArrayList<>(s.requests));
+                return new Snapshot(this, versions.register(), members);
+            });
+        }
+
+        // Trims the copies kept for snapshots; with none left open they all go.
+        void releaseSnapshot(long epoch) {
+            NavigableSet<Long> open = versions.release(epoch);
+            for (ServiceRequest r : versions.drainRetained()) {
+                Shard s = shardFor(r.category);
+                s.lock.writeLock().lock();
+                try {
+                    Versions.trim(r, open);
+                    if (r.older != null) versions.retain(r);
+                } finally {
+                    s.lock.writeLock().unlock();
                 }
             }
-            return csv;
         }
 
-        Path exportRequestDetails(ServiceRequest r) throws IOException {
-            ensureDirs();
-            Path txt = exportDir.resolve(r.ticketId + ".txt");
-            try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(txt, StandardCharsets.UTF_8))) {
-                out.print(r.toDisplayString());
+        int openSnapshots() { return versions.openCount(); }
+
+        ServiceRequest findById(String ticketId) {
+            return byId.get(ticketId);
+        }
+
+        // Scatter: runs fn on every shard in parallel under its read lock. Gather: concatenates in shard order.
+        private <T> List<T> gather(Function<Shard, List<T>> fn) {
+            return Arrays.stream(shards).parallel()
+                    .map(s -> s.read(() -> fn.apply(s)))
+                    .flatMap(List::stream)
+                    .collect(Collectors.toList());
+        }
+
+        List<ServiceRequest> listAll() {
+            long t0 = T_LIST_ALL.start();
+            try {
+                return gather(s -> new ArrayList<>(s.requests));
+            } finally {
+                T_LIST_ALL.stop(t0);
             }
-            return txt;
         }
 
-        Path createBackup() throws IOException {
-            ensureDirs();
-            String ts = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss"));
-            Path dir = dataDir.resolve("backup_" + ts);
-            Files.createDirectories(dir);
-            if (Files.exists(usersFile)) Files.copy(usersFile, dir.resolve("users.txt"));
-            if (Files.exists(requestsFile)) Files.copy(requestsFile, dir.resolve("requests.txt"));
-            return dir;
+        List<ServiceRequest> listByUserEmail(String email) {
+            long t0 = T_LIST_USER.start();
+            try {
+                QueryEvent ev = QueryEvent.start("list.by_user", email);
+                Optional<User> owner = findUserByEmail(email);
+                if (owner.isPresent()) return ev.end(requestsOf(owner.get()));
+                return ev.end(cachedList("list.by_user:" + RequestIndex.norm(email), DEP_EMAIL, () -> gather(s -> new ArrayList<>(s.index.byEmail(email)))));
+            } finally {
+                T_LIST_USER.stop(t0);
+            }
         }
 
-        void restoreLatestBackup() throws IOException {
-            ensureDirs();
-            File[] backups = dataDir.toFile().listFiles((d, n) -> n.startsWith("backup_"));
-            if (backups == null || backups.length == 0) throw new IOException("No backups found.");
-            File latest = backups[0];
-            for (File f : backups) if (f.getName().compareTo(latest.getName()) > 0) latest = f;
-            Path dir = latest.toPath();
-            Path u = dir.resolve("users.txt");
-            Path r = dir.resolve("requests.txt");
-            if (Files.exists(u)) Files.copy(u, usersFile, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
-            if (Files.exists(r)) Files.copy(r, requestsFile, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
-            loadData();
+        List<ServiceRequest> listByAssignedAgent(String agentName) {
+            long t0 = T_LIST_AGENT.start();
+            try {
+                QueryEvent ev = QueryEvent.start("list.by_agent", agentName);
+                return ev.end(cachedList("list.by_agent:" + RequestIndex.norm(agentName), DEP_AGENT, () -> gather(s -> new ArrayList<>(s.index.byAgent(agentName)))));
+            } finally {
+                T_LIST_AGENT.stop(t0);
+            }
         }
 
-        private static String enc(String s) {
-            if (s == null) s = "";
-            return java.util.Base64.getEncoder().encodeToString(s.getBytes(StandardCharsets.UTF_8));
+        List<ServiceRequest> filterByStatus(String status) {
+            long t0 = T_FILTER_STATUS.start();
+            try {
+                QueryEvent ev = QueryEvent.start("filter.status", status);
+                return ev.end(cachedList("filter.status:" + RequestIndex.norm(status), DEP_STATUS, () -> gather(s -> new ArrayList<>(s.index.byStatus(status)))));
+            } finally {
+                T_FILTER_STATUS.stop(t0);
+            }
         }
 
-        private static String dec(String s) {
+        List<ServiceRequest> filterByCategory(String category) {
+            long t0 = T_FILTER_CATEGORY.start();
             try {
-                return new String(java.util.Base64.getDecoder().decode(s), StandardCharsets.UTF_8);
-            } catch (IllegalArgumentException e) {
-                // fallback for plain text (older format)
-                return s;
+                Shard s = shardFor(category);
+                QueryEvent ev = QueryEvent.start("filter.category", category);
+                return ev.end(cachedList("filter.category:" + RequestIndex.norm(category), DEP_CATEGORY, () -> s.read(() -> new ArrayList<>(s.index.byCategory(category)))));
+            } finally {
+                T_FILTER_CATEGORY.stop(t0);
             }
         }
 
-        private static String[] split(String line) {
-            // tokens are base64, but separator is '|'
-            return line.split("\\|", -1);
+        List<ServiceRequest> filterByPriority(String priority) {
+            long t0 = T_FILTER_PRIORITY.start();
+            try {
+                QueryEvent ev = QueryEvent.start("filter.priority", priority);
+                return ev.end(cachedList("filter.priority:" + RequestIndex.norm(priority), DEP_PRIORITY, () -> gather(s -> new ArrayList<>(s.index.byPriority(priority)))));
+            } finally {
+                T_FILTER_PRIORITY.stop(t0);
+            }
         }
 
-        private static String dt(LocalDateTime t) { return t == null ? "" : t.format(DTF); }
-        private static LocalDateTime parseDt(String s) { return (s == null || s.trim().isEmpty()) ? null : LocalDateTime.parse(s, DTF); }
-        private static String nullToEmpty(String s) { return s == null ? "" : s; }
-        private static String emptyToNull(String s) { return (s == null || s.trim().isEmpty()) ? null : s; }
-        private static String csvEsc(String s) {
-            if (s == null) return "";
-            String v = s.replace("\"", "\"\"");
-            if (v.contains(",") || v.contains("\n") || v.contains("\"")) return "\"" + v + "\"";
+        List<ServiceRequest> filterByDateRange(LocalDateTime from, LocalDateTime to) {
+            long t0 = T_FILTER_DATES.start();
+            try {
+                QueryEvent ev = QueryEvent.start("filter.created", from + ".." + to);
+                return ev.end(cachedList("filter.created:" + from + ".." + to, DEP_CREATED, () -> gather(s -> s.index.created.range(from, to))));
+            } finally {
+                T_FILTER_DATES.stop(t0);
+            }
+        }
+
+        List<ServiceRequest> filterByUpdatedRange(LocalDateTime from, LocalDateTime to) {
+            long t0 = T_FILTER_DATES.start();
+            try {
+                QueryEvent ev = QueryEvent.start("filter.updated", from + ".." + to);
+                return ev.end(cachedList("filter.updated:" + from + ".." + to, DEP_UPDATED, () -> gather(s -> s.index.updated.range(from, to))));
+            } finally {
+                T_FILTER_DATES.stop(t0);
+            }
+        }
+
+        List<ServiceRequest> filterByResolvedRange(LocalDateTime from, LocalDateTime to) {
+            long t0 = T_FILTER_DATES.start();
+            try {
+                QueryEvent ev = QueryEvent.start("filter.resolved", from + ".." + to);
+                return ev.end(cachedList("filter.resolved:" + from + ".." + to, DEP_RESOLVED, () -> gather(s -> s.index.resolved.range(from, to))));
+            } finally {
+                T_FILTER_DATES.stop(t0);
+            }
+        }
+
+        // For incremental sync: everything touched strictly after the given time.
+        List<ServiceRequest> listUpdatedSince(LocalDateTime since) {
+            long t0 = T_FILTER_DATES.start();
+            try {
+                QueryEvent ev = QueryEvent.start("filter.updated_since", String.valueOf(since));
+                return ev.end(cachedList("filter.updated_since:" + since, DEP_UPDATED, () -> gather(s -> s.index.updated.since(since))));
+            } finally {
+                T_FILTER_DATES.stop(t0);
+            }
+        }
+
+        // ===== Paged queries =====
+        RequestQuery queryAll() { return new RequestQuery(null, r -> true); }
+
+        RequestQuery queryByStatus(String status) {
+            return new RequestQuery(idx -> idx.byStatus(status), r -> r.status.equalsIgnoreCase(status));
+        }
+
+        RequestQuery queryByCategory(String category) {
+            return new RequestQuery(idx -> idx.byCategory(category), r -> r.category.equalsIgnoreCase(category));
+        }
+
+        RequestQuery queryByPriority(String priority) {
+            return new RequestQuery(idx -> idx.byPriority(priority), r -> r.priority.equalsIgnoreCase(priority));
+        }
+
+        // field: 1=created, 2=last updated, 3=resolved
+        RequestQuery queryByDateRange(int field, LocalDateTime from, LocalDateTime to) {
+            return new RequestQuery(idx -> (field == 1 ? idx.created : field == 2 ? idx.updated : idx.resolved).view(from, to), r -> true);
+        }
+
+        RequestQuery queryByKeyword(String keyword) {
+            String kw = keyword.toLowerCase(Locale.ROOT);
+            return new RequestQuery(null, r -> matchesKeyword(r, kw));
+        }
+
+        // Pages over the user's own ticket list: each shard is handed just that user's tickets in it.
+        RequestQuery queryByUser(User u) {
+            Map<RequestIndex, List<ServiceRequest>> mine = new HashMap<>();
+            for (ServiceRequest r : requestsOf(u)) mine.computeIfAbsent(shardFor(r.category).index, k -> new ArrayList<>()).add(r);
+            return new RequestQuery(idx -> mine.getOrDefault(idx, Collections.emptyList()), r -> byId.get(r.ticketId) == r);
+        }
+
+        RequestQuery queryByUserEmail(String email) {
+            return new RequestQuery(idx -> idx.byEmail(email), r -> r.userEmail.equalsIgnoreCase(email));
+        }
+
+        RequestQuery queryByAssignedAgent(String agentName) {
+            return new RequestQuery(idx -> idx.byAgent(agentName), r -> agentName.equalsIgnoreCase(r.assignedAgent));
+        }
+
+        // Each shard picks its own driving index, so the explanation lists one plan per shard.
+        QueryPlanner.Plan planQuery(String text) {
+            long t0 = T_PLAN.start();
+            try {
+                QueryPlanner planner = QueryPlanner.parse(text);
+                List<String> steps = new ArrayList<>();
+                for (Shard s : shards) {
+                    List<String> shardSteps = new ArrayList<>();
+                    s.read(() -> planner.scan(s.index, shardSteps));
+                    steps.add(s.name + ": " + String.join("; ", shardSteps));
+                }
+                steps.add(planner.sortStep());
+                return new QueryPlanner.Plan(planner.toQuery(), steps);
+            } finally {
+                T_PLAN.stop(t0);
+            }
+        }
+
+        // Scatter-gather top-K: each shard selects its own top-K after the cursor, then the
+        // per-shard winners are merged. Never sorts or copies the full result.
+        Page query(RequestQuery q) {
+            long t0 = T_QUERY.start();
+            try {
+                SortKey sort = q.sort == null ? SortKey.NONE : q.sort;
+                Comparator<ServiceRequest> cmp = sort.comparator();
+                ServiceRequest anchor = q.cursor == null ? null : Page.decodeCursor(q.cursor, sort);
+                int limit = Math.max(1, q.limit);
+                QueryEvent ev = QueryEvent.start("query.page", sort.name());
+                LongAdder scannedTotal = new LongAdder();
+                AtomicBoolean more = new AtomicBoolean();
+                List<ServiceRequest> merged = gather(s -> {
+                    Scan scan = q.scan.apply(s.index);
+                    PriorityQueue<ServiceRequest> heap = new PriorityQueue<>(limit + 1, cmp.reversed());
+                    long scanned = 0;
+                    for (ServiceRequest r : scan.rows == null ? s.requests : scan.rows) {
+                        scanned++;
+                        if (!scan.filter.test(r)) continue;
+                        if (anchor != null && cmp.compare(r, anchor) <= 0) continue;
+                        if (heap.size() < limit) {
+                            heap.add(r);
+                        } else {
+                            more.set(true);
+                            if (cmp.compare(r, heap.peek()) < 0) {
+                                heap.poll();
+                                heap.add(r);
+                            }
+                        }
+                    }
+                    ROWS_SCANNED.add(scanned);
+                    scannedTotal.add(scanned);
+                    return new ArrayList<>(heap);
+                });
+                merged.sort(cmp);
+                List<ServiceRequest> items = merged.size() > limit ? new ArrayList<>(merged.subList(0, limit)) : merged;
+                boolean hasMore = more.get() || merged.size() > limit;
+                String next = hasMore ? Page.encodeCursor(sort, items.get(items.size() - 1)) : null;
+                ev.scanned = scannedTotal.sum();
+                return new Page(ev.end(items), next);
+            } finally {
+                T_QUERY.stop(t0);
+            }
+        }
+
+        // ===== Result cache =====
+        QueryCache getCache() { return cache; }
+
+        private long[] stamps(RequestIndex.Field[] deps) {
+            long[] v = new long[shards.length * deps.length];
+            int i = 0;
+            for (Shard s : shards) {
+                for (RequestIndex.Field f : deps) v[i++] = s.index.version(f);
+            }
             return v;
         }
+
+        // Stamps are read before computing, so a change that races with the computation leaves
+        // the entry stale rather than wrong.
+        <T> T cached(String key, RequestIndex.Field[] deps, Supplier<T> compute, ToIntFunction<T> weight) {
+            long[] v = stamps(deps);
+            @SuppressWarnings("unchecked")
+            T hit = (T) cache.get(key, v);
+            if (hit != null) return hit;
+            T value = compute.get();
+            cache.put(key, v, value, weight.applyAsInt(value));
+            return value;
+        }
+
+        // Cached lists are shared, so callers get their own copy.
+        private List<ServiceRequest> cachedList(String key, RequestIndex.Field[] deps, Supplier<List<ServiceRequest>> compute) {
+            return new ArrayList<>(cached(key, deps, () -> Collections.unmodifiableList(compute.get()), List::size));
+        }
+
+        static boolean matchesKeyword(ServiceRequest r, String kwLower) {
+            return (r.subject != null && r.subject.toLowerCase(Locale.ROOT).contains(kwLower)) ||
+                    (r.description != null && r.description.toLowerCase(Locale.ROOT).contains(kwLower));
+        }
+
+        List<ServiceRequest> searchByKeyword(String keyword) {
+            long t0 = T_SEARCH.start();
+            try {
+                String kw = keyword.toLowerCase(Locale.ROOT);
+                QueryEvent ev = QueryEvent.start("search.keyword", keyword);
+                return ev.end(cachedList("search.keyword:" + kw, DEP_TEXT, () -> gather(s -> s.requests.stream().filter(r -> matchesKeyword(r, kw)).collect(Collectors.toList()))));
+            } finally {
+                T_SEARCH.stop(t0);
+            }
+        }
+
+        // ===== Users =====
+        // Open tickets in the same category with near-identical text, closest first (see DuplicateIndex).
+        List<DuplicateIndex.Match> findDuplicates(String category, String subject, String description) {
+            long t0 = T_DUPLICATES.start();
+            try {
+                int[] sig = MinHash.of(subject, description);
+                Shard s = shardFor(category);
+                return s.read(() -> s.duplicates.find(category, sig, 3));
+            } finally {
+                T_DUPLICATES.stop(t0);
+            }
+        }
+
+        // Cross-references the two tickets in their comments. Both owners are notified, so neither
+        // comment names the other ticket's reporter.
+        void linkDuplicate(ServiceRequest duplicate, ServiceRequest original) {
+            addComment(duplicate, "[DUPLICATE] Duplicate of " + original.ticketId);
+            addComment(original, "[DUPLICATE] " + duplicate.ticketId + " was reported as a duplicate of this request");
+            DUPLICATES_LINKED.increment();
+        }
+
+        private static String emailKey(String email) { return email == null ? "" : email.trim().toLowerCase(Locale.ROOT); }
+
+        // Callers hold the users write lock.
+        private void indexEmail(User u) { usersByEmail.putIfAbsent(emailKey(u.email), u); }
+
+        // After a user with this email left or changed address: the next user with it, if any, takes over.
+        private void reindexEmail(String email) {
+            String key = emailKey(email);
+            usersByEmail.remove(key);
+            for (User u : users) {
+                if (emailKey(u.email).equals(key)) {
+                    usersByEmail.put(key, u);
+                    break;
+                }
+            }
+        }
+
+        // Callers hold the users lock.
+        private User ownerOf(ServiceRequest r) { return usersByEmail.get(emailKey(r.userEmail)); }
+
+        // After a load: every ticket is listed under its owner, also in data written before tickets
+        // were tracked per user or that lost entries.
+        private void linkOwners() {
+            usersLock.writeLock().lock();
+            try {
+                for (ServiceRequest r : byId.values()) {
+                    User owner = ownerOf(r);
+                    if (owner != null && owner.requestHistory.add(r.seq())) markDirty(owner);
+                }
+            } finally {
+                usersLock.writeLock().unlock();
+            }
+        }
+
+        // The user's tickets in ticket order, straight from their ticket list: O(tickets of the user).
+        List<ServiceRequest> requestsOf(User u) {
+            int[] seqs;
+            usersLock.readLock().lock();
+            try {
+                seqs = new int[u.requestHistory.size()];
+                for (int i = 0; i < seqs.length; i++) seqs[i] = u.requestHistory.get(i);
+            } finally {
+                usersLock.readLock().unlock();
+            }
+            List<ServiceRequest> out = new ArrayList<>(seqs.length);
+            for (int seq : seqs) {
+                ServiceRequest r = byId.get(IdAllocator.format(seq));
+                if (r != null) out.add(r);
+            }
+            return out;
+        }
+
+        Optional<User> findUserByEmail(String email) {
+            usersLock.readLock().lock();
+            try {
+                return Optional.ofNullable(usersByEmail.get(emailKey(email)));
+            } finally {
+                usersLock.readLock().unlock();
+            }
+        }
+
+        User findOrCreateUserByEmail(String email, String name, String dept, String role, String phone) {
+            checkWritable();
+            usersLock.writeLock().lock();
+            try {
+                Optional<User> u = findUserByEmail(email);
+                return u.orElseGet(() -> createUser(name, dept, role, email, phone));
+            } finally {
+                usersLock.writeLock().unlock();
+            }
+        }
+
+        User createUser(String name, String dept, String role, String email, String phone) {
+            long t0 = T_USER_CREATE.start();
+            try {
+                checkWritable();
+                User u = new User();
+                u.userId = UUID.randomUUID().toString().substring(0, 8).toUpperCase(Locale.ROOT);
+                u.name = name; u.department = dept; u.role = role; u.email = email; u.phone = phone;
+                usersLock.writeLock().lock();
+                try {
+                    users.add(u);
+                    indexEmail(u);
+                    markDirty(u);
+                    for (MutationListener l : listeners) l.userChanged(u);
+                } finally {
+                    usersLock.writeLock().unlock();
+                }
+                return u;
+            } finally {
+                T_USER_CREATE.stop(t0);
+            }
+        }
+
+        boolean deleteUserByEmail(String email) {
+            long t0 = T_USER_DELETE.start();
+            try {
+                checkWritable();
+                usersLock.writeLock().lock();
+                try {
+                    Optional<User> u = findUserByEmail(email);
+                    if (u.isEmpty()) return false;
+                    if (!u.get().requestHistory.isEmpty()) return false; // do not delete if linked
+                    users.remove(u.get());
+                    reindexEmail(email);
+                    markDirty(u.get());
+                    for (MutationListener l : listeners) l.userDeleted(u.get());
+                    return true;
+                } finally {
+                    usersLock.writeLock().unlock();
+                }
+            } finally {
+                T_USER_DELETE.stop(t0);
+            }
+        }
+
+        // Runs fn while holding the users read lock (used by persistence).
+        <T> T readUsers(Supplier<T> fn) {
+            usersLock.readLock().lock();
+            try {
+                return fn.get();
+            } finally {
+                usersLock.readLock().unlock();
+            }
+        }
+
+        // ===== Persistence support =====
+        void replaceAll(List<User> users, List<ServiceRequest> requests) {
+            Map<Shard, List<ServiceRequest>> routed = new HashMap<>();
+            for (Shard s : shards) routed.put(s, new ArrayList<>());
+            for (ServiceRequest r : requests) routed.get(shardFor(r.category)).add(r);
+            replaceAll(users, routed);
+        }
+
+        void replaceAll(List<User> users, Map<Shard, List<ServiceRequest>> byShard) {
+            long t0 = T_REPLACE.start();
+            try {
+                checkNotStandby();
+                reset(users, byShard);
+            } finally {
+                T_REPLACE.stop(t0);
+            }
+        }
+
+        private void reset(List<User> users, Map<Shard, List<ServiceRequest>> byShard) {
+            usersLock.writeLock().lock();
+            try {
+                this.users.clear();
+                this.users.addAll(users);
+                usersByEmail.clear();
+                for (User u : users) indexEmail(u);
+                dirtyUsers.clear();
+            } finally {
+                usersLock.writeLock().unlock();
+            }
+            this.byId.clear();
+            dirtyTickets.clear();
+            fullRewrite = false;
+            Arrays.stream(shards).parallel().forEach(s -> {
+                List<ServiceRequest> list = byShard.getOrDefault(s, Collections.emptyList());
+                s.lock.writeLock().lock();
+                try {
+                    s.requests.clear();
+                    s.requests.addAll(list);
+                    s.analytics.clear();
+                    for (ServiceRequest r : list) {
+                        byId.put(r.ticketId, r);
+                        r.deriveHistory();
+                        s.analytics.add(r);
+                    }
+                    s.index.rebuild(list);
+                    s.duplicates.rebuild(list);
+                } finally {
+                    s.lock.writeLock().unlock();
+                }
+            });
+            linkOwners();
+            for (MutationListener l : listeners) l.reloaded();
+        }
+    }
+
+    // Hands out ticket numbers from an AtomicLong. Numbers are leased in blocks whose upper bound is
+    // persisted before any number from the block is used, so after a crash the allocator resumes
+    // above everything it may have issued (unused numbers in the last block are skipped).
+    // Block size doubles while leases are used up quickly, up to MAX_BLOCK.
+    static class IdAllocator {
+        private static final long MIN_BLOCK = 32;
+        private static final long MAX_BLOCK = 1 << 20;
+
+        private final AtomicLong next = new AtomicLong(1);
+        private volatile long leaseEnd = Long.MAX_VALUE; // exclusive; unbounded until a store is attached
+        private long block = MIN_BLOCK;
+        private long leasedAt;
+        private Path store;
+
+        long next() {
+            long v = next.getAndIncrement();
+            if (v < leaseEnd) return v;
+            synchronized (this) {
+                while (v >= leaseEnd) extendLease(v);
+            }
+            return v;
+        }
+
+        long peek() { return next.get(); }
+
+        // Makes sure numbers up to seq are never handed out again.
+        void observe(long seq) {
+            next.accumulateAndGet(seq + 1, Math::max);
+        }
+
+        // Binds the allocator to a high-water-mark file. Returns false if none was stored yet.
+        synchronized boolean attach(Path file) throws IOException {
+            store = file;
+            boolean found = Files.exists(file);
+            if (found) {
+                String text = new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+                if (!text.isEmpty()) observe(Long.parseLong(text) - 1);
+            }
+            leaseEnd = next.get(); // first allocation leases and persists a fresh block
+            return found;
+        }
+
+        private void extendLease(long needed) {
+            if (store == null) {
+                leaseEnd = Long.MAX_VALUE;
+                return;
+            }
+            long now = System.nanoTime();
+            if (leasedAt != 0 && now - leasedAt < 1_000_000_000L) block = Math.min(block * 2, MAX_BLOCK);
+            else if (leasedAt != 0 && now - leasedAt > 60_000_000_000L) block = MIN_BLOCK;
+            leasedAt = now;
+            extendLeaseTo(Math.max(leaseEnd == Long.MAX_VALUE ? 0 : leaseEnd, needed + 1) + block);
+        }
+
+        private void extendLeaseTo(long end) {
+            try {
+                Path tmp = store.resolveSibling(store.getFileName() + ".tmp");
+                try (FileChannel ch = FileChannel.open(tmp,
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    ch.write(ByteBuffer.wrap((end + "\n").getBytes(StandardCharsets.UTF_8)));
+                    ch.force(true);
+                }
+                Files.move(tmp, store, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot persist ticket ID lease", e);
+            }
+            leaseEnd = end;
+        }
+
+        // Gives back the unused part of the current block so a clean restart continues without a gap.
+        synchronized void release() throws IOException {
+            if (store == null) return;
+            leaseEnd = 0; // concurrent allocators now wait here until the new mark is written
+            long n = next.get();
+            try {
+                extendLeaseTo(n);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        // Same output as String.format("REQ-%03d", n) without the Formatter machinery.
+        static String format(long n) {
+            int digits = 1;
+            for (long t = n; t >= 10; t /= 10) digits++;
+            int width = Math.max(3, digits);
+            byte[] buf = new byte[4 + width];
+            buf[0] = 'R'; buf[1] = 'E'; buf[2] = 'Q'; buf[3] = '-';
+            for (int i = buf.length - 1; i >= 4; i--, n /= 10) buf[i] = (byte) ('0' + n % 10);
+            return new String(buf, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    // Notified after each committed change, while the affected shard (or user list) is still locked.
+    // Implementations must only record or enqueue; they must not block. Request-history updates
+    // follow from ticket creation and deletion, so they are not reported as user changes.
+    interface MutationListener {
+        void ticketChanged(ServiceRequest r);
+        void ticketDeleted(String ticketId);
+        void userChanged(User u);
+        void userDeleted(User u);
+        default void reloaded() {}
+    }
+
+    // ====== Query Cache ======
+    // Bounded LRU of query and report results, keyed by the normalized query. Each entry keeps the
+    // index version stamps it was computed against; a lookup with different stamps is a miss and
+    // drops the entry, so only queries over indexes that actually changed are recomputed.
+    static class QueryCache {
+        private static final LongAdder HITS = Metrics.counter("query_cache_hits");
+        private static final LongAdder MISSES = Metrics.counter("query_cache_misses");
+        private static final LongAdder STALE = Metrics.counter("query_cache_invalidations");
+        private static final LongAdder EVICTIONS = Metrics.counter("query_cache_evictions");
+
+        private final int maxEntries;
+        private final long maxWeight; // total result rows held
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+        private long weight;
+
+        private static final class Entry {
+            final long[] stamps;
+            final Object value;
+            final int weight;
+
+            Entry(long[] stamps, Object value, int weight) {
+                this.stamps = stamps;
+                this.value = value;
+                this.weight = weight;
+            }
+        }
+
+        QueryCache(int maxEntries, long maxWeight) {
+            this.maxEntries = maxEntries;
+            this.maxWeight = maxWeight;
+        }
+
+        synchronized Object get(String key, long[] stamps) {
+            Entry e = entries.get(key);
+            if (e != null && Arrays.equals(e.stamps, stamps)) {
+                HITS.increment();
+                return e.value;
+            }
+            if (e != null) {
+                entries.remove(key);
+                weight -= e.weight;
+                STALE.increment();
+            }
+            MISSES.increment();
+            return null;
+        }
+
+        synchronized void put(String key, long[] stamps, Object value, int w) {
+            if (value == null || w > maxWeight / 4) return; // one huge result should not flush everything else
+            Entry old = entries.put(key, new Entry(stamps, value, w));
+            if (old != null) weight -= old.weight;
+            weight += w;
+            Iterator<Entry> it = entries.values().iterator();
+            while ((entries.size() > maxEntries || weight > maxWeight) && it.hasNext()) {
+                Entry eldest = it.next();
+                it.remove();
+                weight -= eldest.weight;
+                EVICTIONS.increment();
+            }
+        }
+
+        synchronized int size() { return entries.size(); }
+
+        synchronized void clear() {
+            entries.clear();
+            weight = 0;
+        }
+
+        // Percentage of lookups served from the cache since the metrics were last reset.
+        static long hitRatePercent() {
+            long hits = HITS.sum(), total = hits + MISSES.sum();
+            return total == 0 ? 0 : hits * 100 / total;
+        }
+    }
+
+    // ====== Rendering ======
+    // Writes request tables and detail views into a reusable per-thread buffer, so a page is
+    // printed with a single write. Output matches the earlier printf/StringBuilder code byte for byte.
+    static final class RequestRenderer {
+        // "%-3d | %-8s | %-9s | %-8s | %-20s | %-19s | %s\n"; category and subject are truncated
+        private static final int[] WIDTHS = {3, 8, 9, 8, 20, 19};
+        private static final String HEADER;
+        private static final String RULE = String.join("", Collections.nCopies(108, "-")) + System.lineSeparator();
+        private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(() -> new StringBuilder(8192));
+
+        static {
+            StringBuilder sb = new StringBuilder();
+            String[] titles = {"#", "Ticket", "Status", "Priority", "Category", "Created"};
+            for (int i = 0; i < titles.length; i++) cell(sb, titles[i], WIDTHS[i]);
+            HEADER = sb.append("Subject").append('\n').toString();
+        }
+
+        private RequestRenderer() {}
+
+        // Empties and returns this thread's buffer; oversized buffers are dropped rather than kept.
+        static StringBuilder buffer() {
+            StringBuilder sb = BUFFER.get();
+            if (sb.capacity() > (1 << 20)) {
+                sb = new StringBuilder(8192);
+                BUFFER.set(sb);
+            }
+            sb.setLength(0);
+            return sb;
+        }
+
+        static void appendTable(StringBuilder sb, List<ServiceRequest> list, int startRow) {
+            if (startRow == 0) sb.append(HEADER).append(RULE);
+            for (int i = 0; i < list.size(); i++) {
+                ServiceRequest r = list.get(i);
+                int start = sb.length();
+                sb.append(startRow + i + 1);
+                pad(sb, start, WIDTHS[0]);
+                cell(sb, r.ticketId, WIDTHS[1]);
+                cell(sb, r.status, WIDTHS[2]);
+                cell(sb, r.priority, WIDTHS[3]);
+                start = sb.length();
+                truncated(sb, r.category, 20);
+                pad(sb, start, WIDTHS[4]);
+                cell(sb, r.createdText(), WIDTHS[5]);
+                truncated(sb, r.subject, 40);
+                sb.append('\n');
+            }
+        }
+
+        static void appendDetails(StringBuilder sb, ServiceRequest r) {
+            sb.append("\n=== Request Details ===\n");
+            sb.append("Ticket ID: ").append(r.ticketId).append('\n');
+            sb.append("Status: ").append(r.status).append('\n');
+            sb.append("Created: ").append(r.createdText()).append('\n');
+            sb.append("Priority: ").append(r.priority).append('\n');
+            sb.append('\n');
+            sb.append("User: ").append(r.userName).append(" (" ).append(r.userDept).append(")\n");
+            sb.append("Email: ").append(r.userEmail).append('\n');
+            sb.append('\n');
+            sb.append("Subject: ").append(r.subject).append('\n');
+            sb.append("Category: ").append(r.category).append('\n');
+            sb.append('\n');
+            sb.append("Description:\n").append(r.description).append('\n');
+            sb.append('\n');
+            sb.append("Assignment: ").append(r.assignedAgent == null ? "" : r.assignedAgent).append('\n');
+            sb.append("Last Update: ").append(r.updatedText()).append('\n');
+            if (r.resolvedDate != null) {
+                sb.append("Resolved: ").append(r.resolvedText()).append('\n');
+            }
+            if (r.resolutionNotes != null && !r.resolutionNotes.trim().isEmpty()) {
+                sb.append("Resolution Notes: ").append(r.resolutionNotes).append('\n');
+            }
+            sb.append('\n');
+            sb.append("Comments:\n");
+            if (r.comments.isEmpty()) {
+                sb.append("(None)\n");
+            } else {
+                for (String c : r.comments) sb.append("- ").append(c).append('\n');
+            }
+        }
+
+        // Left-justified like %-Ns (null prints as "null"), followed by the column separator.
+        private static void cell(StringBuilder sb, String v, int width) {
+            int start = sb.length();
+            sb.append(v);
+            pad(sb, start, width);
+        }
+
+        private static void pad(StringBuilder sb, int start, int width) {
+            for (int n = width - (sb.length() - start); n > 0; n--) sb.append(' ');
+            sb.append(" | ");
+        }
+
+        private static void truncated(StringBuilder sb, String s, int max) {
+            if (s == null) return;
+            if (s.length() <= max) sb.append(s);
+            else sb.append(s, 0, max - 3).append("...");
+        }
+    }
+
+    static final class FormattedDate {
+        final LocalDateTime source;
+        final String text;
+
+        private FormattedDate(LocalDateTime source) {
+            this.source = source;
+            this.text = source == null ? "" : source.format(DTF);
+        }
+
+        static FormattedDate of(FormattedDate cached, LocalDateTime t) {
+            return cached != null && cached.source == t ? cached : new FormattedDate(t);
+        }
+    }
+
+    // ====== Shards ======
+    // A department partition: its own ticket list, indexes, lock and data file.
+    static class Shard {
+        final String name;
+        final String key; // file-system name, e.g. "it-support"
+        final List<ServiceRequest> requests = new ArrayList<>();
+        final RequestIndex index = new RequestIndex();
+        final DuplicateIndex duplicates = new DuplicateIndex();
+        final AnalyticsEngine analytics = new AnalyticsEngine();
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        Shard(String name) {
+            this.name = name;
+            this.key = name.toLowerCase(Locale.ROOT).replace(' ', '-');
+        }
+
+        <T> T read(Supplier<T> fn) {
+            lock.readLock().lock();
+            try {
+                return fn.get();
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        int size() { return read(requests::size); }
+    }
+
+    // ====== Snapshots ======
+    // Point-in-time reads for saves, exports and reports while writers carry on (MVCC). Every
+    // change to a ticket is stamped with a new epoch under its shard's write lock. A snapshot takes
+    // the current epoch and every shard's ticket list at one instant. A writer about to change a
+    // ticket that an open snapshot may still see keeps a frozen copy of the old state first
+    // (copy-on-write); readers use the live ticket if it has not changed since their epoch and the
+    // copy that was current at their epoch otherwise. Copies are dropped once no open snapshot is
+    // old enough to need them (epoch-based reclamation), so with no snapshot open a change costs
+    // one counter increment.
+    static final class TicketVersion {
+        final ServiceRequest state;
+        final long from, until; // current for epochs from <= e < until
+        TicketVersion older;
+
+        TicketVersion(ServiceRequest state, long from, long until, TicketVersion older) {
+            this.state = state;
+            this.from = from;
+            this.until = until;
+            this.older = older;
+        }
+    }
+
+    static final class Versions {
+        private static final LongAdder PRESERVED = Metrics.counter("ticket_versions_preserved");
+        private static final LongAdder RECLAIMED = Metrics.counter("ticket_versions_reclaimed");
+
+        private final AtomicLong epoch = new AtomicLong();
+        private final TreeMap<Long, Integer> open = new TreeMap<>(); // epoch -> open snapshots
+        private volatile long newestOpen = -1;
+        // tickets holding copies, to be trimmed when a snapshot closes
+        private final ConcurrentLinkedQueue<ServiceRequest> retained = new ConcurrentLinkedQueue<>();
+
+        // Caller holds the ticket's shard write lock and is about to change it. Snapshots register
+        // with every shard read-locked, so none can open between this check and the change.
+        void beforeChange(ServiceRequest r) {
+            long e = epoch.incrementAndGet();
+            if (newestOpen >= r.epoch) {
+                r.older = new TicketVersion(r.frozenCopy(), r.epoch, e, r.older);
+                PRESERVED.increment();
+                retained.add(r);
+            }
+            r.epoch = e;
+        }
+
+        // Called with every shard read-locked.
+        synchronized long register() {
+            long e = epoch.get();
+            open.merge(e, 1, Integer::sum);
+            newestOpen = open.lastKey();
+            return e;
+        }
+
+        synchronized NavigableSet<Long> release(long e) {
+            if (open.merge(e, -1, Integer::sum) == 0) open.remove(e);
+            newestOpen = open.isEmpty() ? -1 : open.lastKey();
+            return new TreeSet<>(open.keySet());
+        }
+
+        int openCount() {
+            synchronized (this) {
+                return open.values().stream().mapToInt(Integer::intValue).sum();
+            }
+        }
+
+        Set<ServiceRequest> drainRetained() {
+            Set<ServiceRequest> out = Collections.newSetFromMap(new IdentityHashMap<>());
+            ServiceRequest r;
+            while ((r = retained.poll()) != null) out.add(r);
+            return out;
+        }
+
+        void retain(ServiceRequest r) { retained.add(r); }
+
+        // Keeps only the copies some open snapshot can still see; caller holds the shard write lock.
+        static void trim(ServiceRequest r, NavigableSet<Long> open) {
+            TicketVersion head = null, tail = null;
+            for (TicketVersion v = r.older; v != null; v = v.older) {
+                Long e = open.ceiling(v.from);
+                if (e != null && e < v.until) {
+                    if (head == null) head = v; else tail.older = v;
+                    tail = v;
+                } else {
+                    RECLAIMED.increment();
+                }
+            }
+            if (tail != null) tail.older = null;
+            r.older = head;
+        }
+    }
+
+    // A consistent view of all tickets as of one epoch; close it when done so its copies can go.
+    static final class Snapshot implements AutoCloseable {
+        private static final int CHUNK = 512; // tickets per read-lock hold
+        final long epoch;
+        private final RequestManager rm;
+        private final Map<Shard, List<ServiceRequest>> members;
+        private boolean closed;
+
+        Snapshot(RequestManager rm, long epoch, Map<Shard, List<ServiceRequest>> members) {
+            this.rm = rm;
+            this.epoch = epoch;
+            this.members = members;
+        }
+
+        int size() { return members.values().stream().mapToInt(List::size).sum(); }
+
+        // Passes each ticket of shard s as it was at the snapshot. fn runs under the shard's read
+        // lock, a chunk of tickets at a time, so it should only copy or format.
+        void forEach(Shard s, Consumer<ServiceRequest> fn) {
+            List<ServiceRequest> list = members.getOrDefault(s, Collections.emptyList());
+            for (int i = 0; i < list.size(); i += CHUNK) {
+                s.lock.readLock().lock();
+                try {
+                    for (int j = i; j < Math.min(list.size(), i + CHUNK); j++) {
+                        ServiceRequest v = visible(list.get(j));
+                        if (v != null) fn.accept(v);
+                    }
+                } finally {
+                    s.lock.readLock().unlock();
+                }
+            }
+        }
+
+        <T> List<T> map(Shard s, Function<ServiceRequest, T> fn) {
+            List<T> out = new ArrayList<>(members.getOrDefault(s, Collections.emptyList()).size());
+            forEach(s, r -> out.add(fn.apply(r)));
+            return out;
+        }
+
+        // All shards in parallel, concatenated in shard order.
+        <T> List<T> map(Function<ServiceRequest, T> fn) {
+            return members.keySet().parallelStream()
+                    .map(s -> map(s, fn))
+                    .flatMap(List::stream)
+                    .collect(Collectors.toList());
+        }
+
+        private ServiceRequest visible(ServiceRequest r) {
+            if (r.epoch <= epoch) return r;
+            for (TicketVersion v = r.older; v != null; v = v.older) {
+                if (v.from <= epoch && epoch < v.until) return v.state;
+            }
+            return null;
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            rm.releaseSnapshot(epoch);
+        }
+    }
+
+    // ====== Duplicate Detection ======
+    // MinHash signature of the set of words in subject + description: the share of equal slots
+    // between two signatures estimates the Jaccard similarity of the word sets, so rewording,
+    // reordering or a few extra words still match.
+    static final class MinHash {
+        static final int SIZE = 16;
+        private static final long[] SEEDS = new long[SIZE];
+
+        static {
+            SplittableRandom rnd = new SplittableRandom(0x5eed);
+            for (int i = 0; i < SIZE; i++) SEEDS[i] = rnd.nextLong();
+        }
+
+        private MinHash() {}
+
+        // null when the text has no words.
+        static int[] of(String subject, String description) {
+            long[] words = words((subject == null ? "" : subject) + " " + (description == null ? "" : description));
+            if (words.length == 0) return null;
+            int[] sig = new int[SIZE];
+            Arrays.fill(sig, Integer.MAX_VALUE);
+            for (long w : words) {
+                for (int i = 0; i < SIZE; i++) {
+                    int h = (int) (mix(w ^ SEEDS[i]) >>> 33);
+                    if (h < sig[i]) sig[i] = h;
+                }
+            }
+            return sig;
+        }
+
+        static double similarity(int[] a, int[] b) {
+            int same = 0;
+            for (int i = 0; i < SIZE; i++) if (a[i] == b[i]) same++;
+            return same / (double) SIZE;
+        }
+
+        // Hashes of the distinct lower-cased words of two or more letters or digits.
+        private static long[] words(String text) {
+            long[] out = new long[16];
+            int n = 0;
+            long h = 0xcbf29ce484222325L;
+            int len = 0;
+            for (int i = 0; i <= text.length(); i++) {
+                char c = i < text.length() ? text.charAt(i) : ' ';
+                if (Character.isLetterOrDigit(c)) {
+                    h = (h ^ Character.toLowerCase(c)) * 0x100000001b3L;
+                    len++;
+                    continue;
+                }
+                if (len > 1) {
+                    if (n == out.length) out = Arrays.copyOf(out, n * 2);
+                    out[n++] = h;
+                }
+                h = 0xcbf29ce484222325L;
+                len = 0;
+            }
+            Arrays.sort(out, 0, n);
+            int distinct = 0;
+            for (int i = 0; i < n; i++) if (i == 0 || out[i] != out[i - 1]) out[distinct++] = out[i];
+            return Arrays.copyOf(out, distinct);
+        }
+
+        // MurmurHash3 finaliser.
+        private static long mix(long h) {
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+
+    // Open tickets of one shard, bucketed by category and by each band of ROWS signature slots
+    // (locality-sensitive hashing). Similar tickets share a band with high probability, so a lookup
+    // visits BANDS buckets and at most MAX_PER_BUCKET tickets (oldest first) in each: constant work
+    // however many tickets exist. Guarded by the shard lock.
+    static class DuplicateIndex {
+        static final double MIN_SIMILARITY = 0.6;
+        private static final int ROWS = 4;
+        private static final int BANDS = MinHash.SIZE / ROWS;
+        private static final int MAX_PER_BUCKET = 32;
+
+        static final class Match {
+            final ServiceRequest request;
+            final double similarity;
+
+            Match(ServiceRequest request, double similarity) {
+                this.request = request;
+                this.similarity = similarity;
+            }
+
+            int similarityPercent() { return (int) Math.round(similarity * 100); }
+        }
+
+        // A bucket is a single ServiceRequest or, once shared, a List of them in arrival order; most
+        // buckets never hold more than one ticket and this keeps the index small.
+        private final Map<String, Map<Long, Object>> buckets = new HashMap<>();
+
+        static boolean isOpen(ServiceRequest r) { return "OPEN".equals(r.status) || "IN_PROGRESS".equals(r.status); }
+
+        // Called after every change; only the status decides membership.
+        void update(ServiceRequest r) {
+            if (!isOpen(r)) {
+                remove(r);
+                return;
+            }
+            if (r.minHash != null) return;
+            int[] sig = MinHash.of(r.subject, r.description);
+            if (sig == null) return;
+            r.minHash = sig;
+            Map<Long, Object> byBand = buckets.computeIfAbsent(r.category, k -> new HashMap<>());
+            for (int b = 0; b < BANDS; b++) {
+                byBand.merge(bandKey(sig, b), r, (old, x) -> {
+                    if (old instanceof ServiceRequest) {
+                        List<ServiceRequest> list = new ArrayList<>(4);
+                        list.add((ServiceRequest) old);
+                        old = list;
+                    }
+                    @SuppressWarnings("unchecked") List<ServiceRequest> list = (List<ServiceRequest>) old;
+                    list.add(r);
+                    return list;
+                });
+            }
+        }
+
+        void remove(ServiceRequest r) {
+            int[] sig = r.minHash;
+            if (sig == null) return;
+            r.minHash = null;
+            Map<Long, Object> byBand = buckets.get(r.category);
+            if (byBand == null) return;
+            for (int b = 0; b < BANDS; b++) {
+                byBand.computeIfPresent(bandKey(sig, b), (k, v) -> {
+                    if (v == r) return null;
+                    if (v instanceof ServiceRequest) return v;
+                    @SuppressWarnings("unchecked") List<ServiceRequest> list = (List<ServiceRequest>) v;
+                    list.remove(r);
+                    return list.size() == 1 ? list.get(0) : list;
+                });
+            }
+        }
+
+        // Bulk form of remove(): each affected bucket is filtered once, however many of the
+        // tickets share it.
+        void removeAll(Collection<ServiceRequest> gone) {
+            Set<ServiceRequest> set = new HashSet<>();
+            Map<String, Set<Long>> keys = new HashMap<>();
+            for (ServiceRequest r : gone) {
+                int[] sig = r.minHash;
+                if (sig == null) continue;
+                r.minHash = null;
+                set.add(r);
+                Set<Long> k = keys.computeIfAbsent(r.category, c -> new HashSet<>());
+                for (int b = 0; b < BANDS; b++) k.add(bandKey(sig, b));
+            }
+            keys.forEach((category, bandKeys) -> {
+                Map<Long, Object> byBand = buckets.get(category);
+                if (byBand == null) return;
+                for (Long key : bandKeys) {
+                    byBand.computeIfPresent(key, (k, v) -> {
+                        if (v instanceof ServiceRequest) return set.contains(v) ? null : v;
+                        @SuppressWarnings("unchecked") List<ServiceRequest> list = (List<ServiceRequest>) v;
+                        list.removeIf(set::contains);
+                        return list.isEmpty() ? null : list.size() == 1 ? list.get(0) : list;
+                    });
+                }
+            });
+        }
+
+        void rebuild(List<ServiceRequest> list) {
+            buckets.clear();
+            for (ServiceRequest r : list) {
+                r.minHash = null;
+                update(r);
+            }
+        }
+
+        // Most similar first, then oldest.
+        List<Match> find(String category, int[] sig, int limit) {
+            Map<Long, Object> byBand = buckets.get(category);
+            if (byBand == null || sig == null) return Collections.emptyList();
+            Map<ServiceRequest, Match> found = new HashMap<>();
+            for (int b = 0; b < BANDS; b++) {
+                Object bucket = byBand.get(bandKey(sig, b));
+                if (bucket == null) continue;
+                @SuppressWarnings("unchecked")
+                List<ServiceRequest> list = bucket instanceof ServiceRequest ? List.of((ServiceRequest) bucket) : (List<ServiceRequest>) bucket;
+                for (int i = 0; i < list.size() && i < MAX_PER_BUCKET; i++) {
+                    ServiceRequest r = list.get(i);
+                    if (found.containsKey(r)) continue;
+                    double sim = MinHash.similarity(r.minHash, sig);
+                    if (sim >= MIN_SIMILARITY) found.put(r, new Match(r, sim));
+                }
+            }
+            return found.values().stream()
+                    .sorted(Comparator.comparingDouble((Match m) -> -m.similarity).thenComparingInt(m -> m.request.seq()))
+                    .limit(limit)
+                    .collect(Collectors.toList());
+        }
+
+        private static long bandKey(int[] sig, int band) {
+            int h = 1;
+            for (int i = band * ROWS; i < (band + 1) * ROWS; i++) h = 31 * h + sig[i];
+            return (long) band << 32 | (h & 0xffffffffL);
+        }
+    }
+
+    // ====== Indexes ======
+    // Time-ordered indexes; callers remove a ticket before changing its dates and add it back afterwards.
+    static class RequestIndex {
+        final TimeIndex created = new TimeIndex(r -> r.createdDate);
+        final TimeIndex updated = new TimeIndex(r -> r.lastUpdated);
+        final TimeIndex resolved = new TimeIndex(r -> r.resolvedDate);
+        // exact-match indexes, keys normalized by norm()
+        private final Map<String, Set<ServiceRequest>> status = new HashMap<>();
+        private final Map<String, Set<ServiceRequest>> category = new HashMap<>();
+        private final Map<String, Set<ServiceRequest>> priority = new HashMap<>();
+        private final Map<String, Set<ServiceRequest>> email = new HashMap<>();
+        private final Map<String, Set<ServiceRequest>> agent = new HashMap<>();
+
+        // One version stamp per index (TEXT covers subject/description, which the keyword search reads).
+        // remove() remembers the ticket's keys; the matching add() bumps only the indexes whose key
+        // changed. Any other add, a delete or a rebuild bumps everything. Read without the shard lock.
+        enum Field { STATUS, CATEGORY, PRIORITY, EMAIL, AGENT, TEXT, CREATED, UPDATED, RESOLVED }
+
+        private static final Field[] SLOT_FIELD = {Field.STATUS, Field.CATEGORY, Field.PRIORITY, Field.EMAIL, Field.AGENT,
+                Field.TEXT, Field.TEXT, Field.CREATED, Field.UPDATED, Field.RESOLVED};
+        private final AtomicLongArray versions = new AtomicLongArray(Field.values().length);
+        private final Object[] removedKeys = new Object[SLOT_FIELD.length];
+        private ServiceRequest removedTicket;
+
+        long version(Field f) { return versions.get(f.ordinal()); }
+
+        void touchAll() {
+            for (int i = 0; i < versions.length(); i++) versions.incrementAndGet(i);
+        }
+
+        private static Object slot(ServiceRequest r, int i) {
+            switch (i) {
+                case 0: return r.status;
+                case 1: return r.category;
+                case 2: return r.priority;
+                case 3: return r.userEmail;
+                case 4: return r.assignedAgent;
+                case 5: return r.subject;
+                case 6: return r.description;
+                case 7: return r.createdDate;
+                case 8: return r.lastUpdated;
+                default: return r.resolvedDate;
+            }
+        }
+
+        void add(ServiceRequest r) {
+            if (removedTicket == r) {
+                for (int i = 0; i < removedKeys.length; i++) {
+                    if (!Objects.equals(removedKeys[i], slot(r, i))) versions.incrementAndGet(SLOT_FIELD[i].ordinal());
+                }
+                removedTicket = null;
+            } else {
+                touchAll();
+            }
+            created.add(r);
+            updated.add(r);
+            resolved.add(r);
+            put(status, r.status, r);
+            put(category, r.category, r);
+            put(priority, r.priority, r);
+            put(email, r.userEmail, r);
+            put(agent, r.assignedAgent, r);
+        }
+
+        void remove(ServiceRequest r) {
+            for (int i = 0; i < removedKeys.length; i++) removedKeys[i] = slot(r, i);
+            removedTicket = r;
+            created.remove(r);
+            updated.remove(r);
+            resolved.remove(r);
+            drop(status, r.status, r);
+            drop(category, r.category, r);
+            drop(priority, r.priority, r);
+            drop(email, r.userEmail, r);
+            drop(agent, r.assignedAgent, r);
+        }
+
+        // Batch forms of remove/add for tickets changed together; versions are bumped wholesale.
+        void removeAll(Collection<ServiceRequest> batch) {
+            touchAll();
+            removedTicket = null;
+            Set<ServiceRequest> set = Collections.newSetFromMap(new IdentityHashMap<>());
+            set.addAll(batch);
+            created.removeAll(set);
+            updated.removeAll(set);
+            resolved.removeAll(set);
+            for (ServiceRequest r : batch) {
+                drop(status, r.status, r);
+                drop(category, r.category, r);
+                drop(priority, r.priority, r);
+                drop(email, r.userEmail, r);
+                drop(agent, r.assignedAgent, r);
+            }
+        }
+
+        void addAll(Collection<ServiceRequest> batch) {
+            touchAll();
+            created.addAll(batch);
+            updated.addAll(batch);
+            resolved.addAll(batch);
+            for (ServiceRequest r : batch) {
+                put(status, r.status, r);
+                put(category, r.category, r);
+                put(priority, r.priority, r);
+                put(email, r.userEmail, r);
+                put(agent, r.assignedAgent, r);
+            }
+        }
+
+        void rebuild(List<ServiceRequest> all) {
+            touchAll();
+            removedTicket = null;
+            created.rebuild(all);
+            updated.rebuild(all);
+            resolved.rebuild(all);
+            status.clear();
+            category.clear();
+            priority.clear();
+            email.clear();
+            agent.clear();
+            for (ServiceRequest r : all) {
+                put(status, r.status, r);
+                put(category, r.category, r);
+                put(priority, r.priority, r);
+                put(email, r.userEmail, r);
+                put(agent, r.assignedAgent, r);
+            }
+        }
+
+        int size() { return created.size(); }
+
+        Set<ServiceRequest> byStatus(String v) { return get(status, v); }
+        Set<ServiceRequest> byCategory(String v) { return get(category, v); }
+        Set<ServiceRequest> byPriority(String v) { return get(priority, v); }
+        Set<ServiceRequest> byEmail(String v) { return get(email, v); }
+        Set<ServiceRequest> byAgent(String v) { return get(agent, v); }
+
+        static String norm(String v) { return v.trim().toLowerCase(Locale.ROOT); }
+
+        private static Set<ServiceRequest> get(Map<String, Set<ServiceRequest>> m, String v) {
+            Set<ServiceRequest> s = v == null ? null : m.get(norm(v));
+            return s == null ? Collections.emptySet() : Collections.unmodifiableSet(s);
+        }
+
+        private static void put(Map<String, Set<ServiceRequest>> m, String v, ServiceRequest r) {
+            if (v == null || v.isEmpty()) return;
+            m.computeIfAbsent(norm(v), k -> new HashSet<>()).add(r);
+        }
+
+        private static void drop(Map<String, Set<ServiceRequest>> m, String v, ServiceRequest r) {
+            if (v == null || v.isEmpty()) return;
+            Set<ServiceRequest> s = m.get(norm(v));
+            if (s == null) return;
+            s.remove(r);
+            if (s.isEmpty()) m.remove(norm(v));
+        }
+    }
+
+    // Sorted epoch-nanos array with parallel ticket array. Tickets arrive in near time order,
+    // so inserts are mostly appends; range queries are two binary searches plus the hits.
+    // Single edits never shift the arrays: a removed entry is nulled out in place (its key stays,
+    // so searches still work) and squeezed out once a quarter of the slots are dead, and an insert
+    // that is not an append goes to a small sorted delta of about sqrt(n) entries that is merged
+    // in when full. Both keep the cost per edit well below O(n) on large shards.
+    static class TimeIndex {
+        private static final int MIN_DELTA = 64;
+
+        private final Function<ServiceRequest, LocalDateTime> field;
+        private long[] keys = new long[64];
+        private ServiceRequest[] vals = new ServiceRequest[64];
+        private int size; // slots in use, dead ones included
+        private int dead;
+        private long[] deltaKeys = new long[MIN_DELTA];
+        private ServiceRequest[] deltaVals = new ServiceRequest[MIN_DELTA];
+        private int deltaSize;
+
+        TimeIndex(Function<ServiceRequest, LocalDateTime> field) { this.field = field; }
+
+        static long key(LocalDateTime t) {
+            return t.toEpochSecond(ZoneOffset.UTC) * 1_000_000_000L + t.getNano();
+        }
+
+        int size() { return size - dead + deltaSize; }
+
+        void add(ServiceRequest r) {
+            LocalDateTime t = field.apply(r);
+            if (t == null) return;
+            long k = key(t);
+            if (size == 0 || keys[size - 1] <= k) {
+                if (size == keys.length) {
+                    keys = Arrays.copyOf(keys, size * 2);
+                    vals = Arrays.copyOf(vals, size * 2);
+                }
+                keys[size] = k;
+                vals[size++] = r;
+                return;
+            }
+            if (deltaSize == deltaKeys.length) compact();
+            int pos = upperBound(deltaKeys, deltaSize, k);
+            System.arraycopy(deltaKeys, pos, deltaKeys, pos + 1, deltaSize - pos);
+            System.arraycopy(deltaVals, pos, deltaVals, pos + 1, deltaSize - pos);
+            deltaKeys[pos] = k;
+            deltaVals[pos] = r;
+            deltaSize++;
+        }
+
+        void remove(ServiceRequest r) {
+            LocalDateTime t = field.apply(r);
+            if (t == null) return;
+            long k = key(t);
+            for (int i = lowerBound(keys, size, k); i < size && keys[i] == k; i++) {
+                if (vals[i] == r) {
+                    vals[i] = null;
+                    if (++dead > Math.max(MIN_DELTA, size / 4)) compact();
+                    return;
+                }
+            }
+            for (int i = lowerBound(deltaKeys, deltaSize, k); i < deltaSize && deltaKeys[i] == k; i++) {
+                if (deltaVals[i] == r) {
+                    System.arraycopy(deltaKeys, i + 1, deltaKeys, i, deltaSize - i - 1);
+                    System.arraycopy(deltaVals, i + 1, deltaVals, i, deltaSize - i - 1);
+                    deltaVals[--deltaSize] = null;
+                    return;
+                }
+            }
+        }
+
+        // Merges the delta into the main arrays and drops dead slots; existing tickets stay ahead
+        // of delta ones with an equal key.
+        private void compact() {
+            int total = size - dead + deltaSize;
+            int cap = Math.max(64, Integer.highestOneBit(Math.max(1, total)) * 2);
+            long[] nk = new long[cap];
+            ServiceRequest[] nv = new ServiceRequest[cap];
+            int i = 0, j = 0, w = 0;
+            while (i < size || j < deltaSize) {
+                if (i < size && vals[i] == null) {
+                    i++;
+                } else if (j >= deltaSize || (i < size && keys[i] <= deltaKeys[j])) {
+                    nk[w] = keys[i];
+                    nv[w++] = vals[i++];
+                } else {
+                    nk[w] = deltaKeys[j];
+                    nv[w++] = deltaVals[j++];
+                }
+            }
+            keys = nk;
+            vals = nv;
+            size = w;
+            dead = 0;
+            resetDelta();
+        }
+
+        private void resetDelta() {
+            int cap = Math.max(MIN_DELTA, (int) Math.sqrt(size));
+            deltaKeys = new long[cap];
+            deltaVals = new ServiceRequest[cap];
+            deltaSize = 0;
+        }
+
+        // Bulk forms of remove/add: one pass over the arrays for the whole batch instead of a shift
+        // per ticket (and no scan through the run of equal keys a batch with one timestamp leaves).
+        void removeAll(Set<ServiceRequest> gone) {
+            int dw = 0;
+            for (int i = 0; i < deltaSize; i++) {
+                if (gone.contains(deltaVals[i])) continue;
+                deltaKeys[dw] = deltaKeys[i];
+                deltaVals[dw++] = deltaVals[i];
+            }
+            Arrays.fill(deltaVals, dw, deltaSize, null);
+            deltaSize = dw;
+            long min = Long.MAX_VALUE;
+            for (ServiceRequest r : gone) {
+                LocalDateTime t = field.apply(r);
+                if (t != null) min = Math.min(min, key(t));
+            }
+            if (min == Long.MAX_VALUE) return;
+            int w = lowerBound(keys, size, min);
+            for (int i = w; i < size; i++) {
+                if (vals[i] == null) {
+                    dead--; // squeezed out on the way
+                    continue;
+                }
+                if (gone.contains(vals[i])) continue;
+                keys[w] = keys[i];
+                vals[w++] = vals[i];
+            }
+            Arrays.fill(vals, w, size, null);
+            size = w;
+        }
+
+        void addAll(Collection<ServiceRequest> added) {
+            ServiceRequest[] in = added.stream().filter(r -> field.apply(r) != null)
+                    .sorted(Comparator.comparingLong(r -> key(field.apply(r))))
+                    .toArray(ServiceRequest[]::new);
+            if (in.length == 0) return;
+            int total = size + in.length;
+            if (total > keys.length) {
+                int cap = Math.max(total, keys.length * 2);
+                keys = Arrays.copyOf(keys, cap);
+                vals = Arrays.copyOf(vals, cap);
+            }
+            // merge from the back; existing tickets stay ahead of new ones with an equal key, as in add()
+            int i = size - 1, w = total - 1;
+            for (int j = in.length - 1; j >= 0; j--) {
+                long k = key(field.apply(in[j]));
+                while (i >= 0 && keys[i] > k) {
+                    keys[w] = keys[i];
+                    vals[w--] = vals[i--];
+                }
+                keys[w] = k;
+                vals[w--] = in[j];
+            }
+            size = total;
+        }
+
+        void rebuild(List<ServiceRequest> all) {
+            ServiceRequest[] sorted = all.stream().filter(r -> field.apply(r) != null)
+                    .sorted(Comparator.comparingLong(r -> key(field.apply(r))))
+                    .toArray(ServiceRequest[]::new);
+            size = sorted.length;
+            dead = 0;
+            int cap = Math.max(64, Integer.highestOneBit(Math.max(1, size)) * 2);
+            keys = new long[cap];
+            vals = Arrays.copyOf(sorted, cap);
+            for (int i = 0; i < size; i++) keys[i] = key(field.apply(sorted[i]));
+            resetDelta();
+        }
+
+        // Inclusive bounds; null means unbounded.
+        List<ServiceRequest> range(LocalDateTime from, LocalDateTime to) {
+            return collect(from == null ? 0 : lowerBound(keys, size, key(from)), to == null ? size : upperBound(keys, size, key(to)),
+                    from == null ? 0 : lowerBound(deltaKeys, deltaSize, key(from)), to == null ? deltaSize : upperBound(deltaKeys, deltaSize, key(to)));
+        }
+
+        // Read-only slice, zero-copy while no edits are pending; valid until the next mutation of this index.
+        List<ServiceRequest> view(LocalDateTime from, LocalDateTime to) {
+            int lo = from == null ? 0 : lowerBound(keys, size, key(from));
+            int hi = to == null ? size : upperBound(keys, size, key(to));
+            int dlo = from == null ? 0 : lowerBound(deltaKeys, deltaSize, key(from));
+            int dhi = to == null ? deltaSize : upperBound(deltaKeys, deltaSize, key(to));
+            if (dead > 0 || dlo < dhi) return Collections.unmodifiableList(collect(lo, hi, dlo, dhi));
+            return Collections.unmodifiableList(Arrays.asList(vals).subList(lo, Math.max(lo, hi)));
+        }
+
+        // An estimate for the planner: removed entries not yet squeezed out still count.
+        int count(LocalDateTime from, LocalDateTime to) {
+            int lo = from == null ? 0 : lowerBound(keys, size, key(from));
+            int hi = to == null ? size : upperBound(keys, size, key(to));
+            int dlo = from == null ? 0 : lowerBound(deltaKeys, deltaSize, key(from));
+            int dhi = to == null ? deltaSize : upperBound(deltaKeys, deltaSize, key(to));
+            return Math.max(0, hi - lo) + Math.max(0, dhi - dlo);
+        }
+
+        List<ServiceRequest> since(LocalDateTime t) {
+            return collect(t == null ? 0 : upperBound(keys, size, key(t)), size,
+                    t == null ? 0 : upperBound(deltaKeys, deltaSize, key(t)), deltaSize);
+        }
+
+        // Live entries of keys[lo, hi) and deltaKeys[dlo, dhi), in key order.
+        private List<ServiceRequest> collect(int lo, int hi, int dlo, int dhi) {
+            List<ServiceRequest> out = new ArrayList<>(Math.max(0, hi - lo) + Math.max(0, dhi - dlo));
+            while (lo < hi || dlo < dhi) {
+                if (dlo >= dhi || (lo < hi && keys[lo] <= deltaKeys[dlo])) {
+                    if (vals[lo] != null) out.add(vals[lo]);
+                    lo++;
+                } else {
+                    out.add(deltaVals[dlo++]);
+                }
+            }
+            return out;
+        }
+
+        // first index with a[i] >= k
+        private static int lowerBound(long[] a, int n, long k) {
+            int lo = 0, hi = n;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (a[mid] < k) lo = mid + 1; else hi = mid;
+            }
+            return lo;
+        }
+
+        // first index with a[i] > k
+        private static int upperBound(long[] a, int n, long k) {
+            int lo = 0, hi = n;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (a[mid] <= k) lo = mid + 1; else hi = mid;
+            }
+            return lo;
+        }
+    }
+
+    // ====== Query API ======
+    enum SortKey {
+        CREATED(Comparator.comparing((ServiceRequest r) -> r.createdDate)),
+        PRIORITY(Comparator.comparingInt(ServiceRequestSystem::priorityRank)),
+        STATUS(Comparator.comparing((ServiceRequest r) -> r.status)),
+        NONE((a, b) -> 0);
+
+        private final Comparator<ServiceRequest> cmp;
+
+        SortKey(Comparator<ServiceRequest> primary) {
+            // ticket number breaks ties so every page boundary is well defined
+            this.cmp = primary.thenComparingInt(ServiceRequest::seq).thenComparing(r -> r.ticketId);
+        }
+
+        Comparator<ServiceRequest> comparator() { return cmp; }
+    }
+
+    static class RequestQuery {
+        // Resolved against each shard's indexes under that shard's read lock.
+        Function<RequestIndex, Scan> scan;
+        SortKey sort; // null = let the caller choose (NONE if never set)
+        int limit = PAGE_SIZE;
+        String cursor; // opaque, from Page.nextCursor
+
+        // source: candidate set from a shard's indexes, null = every ticket in the shard
+        RequestQuery(Function<RequestIndex, Iterable<ServiceRequest>> source, Predicate<ServiceRequest> filter) {
+            this.scan = idx -> new Scan(source == null ? null : source.apply(idx), filter);
+        }
+
+        RequestQuery(Function<RequestIndex, Scan> scan) { this.scan = scan; }
+
+        RequestQuery and(Predicate<ServiceRequest> more) {
+            scan = scan.andThen(s -> new Scan(s.rows, s.filter.and(more)));
+            return this;
+        }
+    }
+
+    static class Scan {
+        final Iterable<ServiceRequest> rows; // null = all tickets of the shard
+        final Predicate<ServiceRequest> filter;
+
+        Scan(Iterable<ServiceRequest> rows, Predicate<ServiceRequest> filter) {
+            this.rows = rows;
+            this.filter = filter;
+        }
+    }
+
+    static class Page {
+        final List<ServiceRequest> items;
+        final String nextCursor; // null on the last page
+
+        Page(List<ServiceRequest> items, String nextCursor) {
+            this.items = items;
+            this.nextCursor = nextCursor;
+        }
+
+        // The cursor carries the sort fields of the last row, so it survives deletion of that row.
+        static String encodeCursor(SortKey sort, ServiceRequest last) {
+            String raw = String.join("|", sort.name(), Long.toString(TimeIndex.key(last.createdDate)),
+                    last.priority, last.status, last.ticketId);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+        }
+
+        static ServiceRequest decodeCursor(String cursor, SortKey sort) {
+            String[] p;
+            try {
+                p = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split("\\|", -1);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Malformed cursor");
+            }
+            if (p.length != 5 || !p[0].equals(sort.name())) throw new IllegalArgumentException("Cursor does not match query sort");
+            long nanos = Long.parseLong(p[1]);
+            ServiceRequest anchor = new ServiceRequest();
+            anchor.createdDate = LocalDateTime.ofEpochSecond(Math.floorDiv(nanos, 1_000_000_000L),
+                    (int) Math.floorMod(nanos, 1_000_000_000L), ZoneOffset.UTC);
+            anchor.priority = p[2];
+            anchor.status = p[3];
+            anchor.ticketId = p[4];
+            return anchor;
+        }
+    }
+
+    // ====== Bulk Operations ======
+    // One status change, reassignment or comment applied to a whole selection by RequestManager.bulkUpdate.
+    static class BulkChange {
+        enum Kind { STATUS, ASSIGN, COMMENT }
+
+        final Kind kind;
+        final String value; // status, agent name or comment text
+        final String actor;
+        final String resolutionNote; // only used when the status is RESOLVED
+        private Predicate<ServiceRequest> guard = r -> true; // re-checked under the shard lock
+
+        BulkChange(Kind kind, String value, String actor, String resolutionNote) {
+            this.kind = kind;
+            this.value = value;
+            this.actor = actor;
+            this.resolutionNote = resolutionNote;
+        }
+
+        static BulkChange status(String status, String actor, String resolutionNote) {
+            return new BulkChange(Kind.STATUS, status, actor, resolutionNote);
+        }
+
+        static BulkChange assign(String agent) { return new BulkChange(Kind.ASSIGN, agent, null, null); }
+        static BulkChange comment(String text) { return new BulkChange(Kind.COMMENT, text, null, null); }
+
+        // Tickets that no longer pass the guard when their turn comes are left alone.
+        BulkChange onlyIf(Predicate<ServiceRequest> guard) {
+            this.guard = guard;
+            return this;
+        }
+
+        boolean isNoOp(ServiceRequest r) {
+            if (!guard.test(r)) return true;
+            switch (kind) {
+                case STATUS: return value.equals(r.status);
+                case ASSIGN: return value.equals(r.assignedAgent);
+                default: return value.trim().isEmpty();
+            }
+        }
+
+        void apply(ServiceRequest r, LocalDateTime at) {
+            switch (kind) {
+                case STATUS:
+                    r.applyStatus(value, actor, at);
+                    if ("RESOLVED".equals(value) && resolutionNote != null && !resolutionNote.isEmpty()) {
+                        r.resolutionNotes = resolutionNote;
+                        r.addComment("[RESOLVED] " + resolutionNote, at);
+                    }
+                    break;
+                case ASSIGN:
+                    r.applyAssignment(value, at);
+                    break;
+                default:
+                    r.addComment(value, at);
+            }
+        }
+
+        String describe() {
+            switch (kind) {
+                case STATUS: return "set status to " + value;
+                case ASSIGN: return "assign to " + value;
+                default: return "add comment \"" + value + "\"";
+            }
+        }
+    }
+
+    static class BulkResult {
+        final int selected, changed, unchanged, missing;
+        final long millis;
+
+        BulkResult(int selected, int changed, int unchanged, int missing, long millis) {
+            this.selected = selected;
+            this.changed = changed;
+            this.unchanged = unchanged;
+            this.missing = missing;
+            this.millis = millis;
+        }
+
+        @Override
+        public String toString() {
+            return changed + " of " + selected + " tickets changed (" + unchanged + " already up to date"
+                    + (missing > 0 ? ", " + missing + " deleted meanwhile" : "") + ") in " + millis + " ms";
+        }
+    }
+
+    // ====== Query Language ======
+    // status=OPEN AND priority<=HIGH AND created>2025-01-01 AND text~"vpn" SORT BY priority
+    // The planner drives the query from the most selective index, intersects the other indexed
+    // clauses by set membership and evaluates the rest as residual filters.
+    static class QueryPlanner {
+        private static final String OPS = "=!<>~";
+        private final List<Clause> clauses;
+        private final SortKey sort;
+
+        private QueryPlanner(List<Clause> clauses, SortKey sort) {
+            this.clauses = clauses;
+            this.sort = sort;
+        }
+
+        static class Plan {
+            final RequestQuery query;
+            final List<String> steps;
+
+            Plan(RequestQuery query, List<String> steps) {
+                this.query = query;
+                this.steps = steps;
+            }
+
+            String explain() {
+                StringBuilder sb = new StringBuilder("Plan:\n");
+                for (int i = 0; i < steps.size(); i++) sb.append("  ").append(i + 1).append(". ").append(steps.get(i)).append('\n');
+                return sb.toString();
+            }
+        }
+
+        // What one index offers for a clause within one shard.
+        private static class Access {
+            final String indexName;
+            final Iterable<ServiceRequest> rows;
+            final Predicate<ServiceRequest> member; // null if membership is no cheaper than the test
+            final long estimate;
+
+            Access(String indexName, Iterable<ServiceRequest> rows, Predicate<ServiceRequest> member, long estimate) {
+                this.indexName = indexName;
+                this.rows = rows;
+                this.member = member;
+                this.estimate = estimate;
+            }
+        }
+
+        private static class Clause {
+            final String field, op, value;
+            Predicate<ServiceRequest> test;
+            Function<RequestIndex, Access> access; // null if not indexable
+
+            Clause(String field, String op, String value) {
+                this.field = field;
+                this.op = op;
+                this.value = value;
+            }
+
+            @Override
+            public String toString() { return field + op + (value.contains(" ") ? "\"" + value + "\"" : value); }
+        }
+
+        static QueryPlanner parse(String text) {
+            List<String> tokens = tokenize(text);
+            List<Clause> clauses = new ArrayList<>();
+            SortKey sort = null;
+            int i = 0;
+            while (i < tokens.size()) {
+                String t = tokens.get(i);
+                if (t.equalsIgnoreCase("SORT") || t.equalsIgnoreCase("ORDER")) {
+                    if (i + 2 >= tokens.size() || !tokens.get(i + 1).equalsIgnoreCase("BY")) throw new IllegalArgumentException("Expected SORT BY <field>");
+                    sort = parseSort(tokens.get(i + 2));
+                    if (i + 3 != tokens.size()) throw new IllegalArgumentException("Unexpected input after SORT BY");
+                    break;
+                }
+                if (i + 2 >= tokens.size() || !isOp(tokens.get(i + 1))) throw new IllegalArgumentException("Expected <field><op><value> near '" + t + "'");
+                clauses.add(bind(new Clause(t.toLowerCase(Locale.ROOT), tokens.get(i + 1), unquote(tokens.get(i + 2)))));
+                i += 3;
+                if (i < tokens.size() && tokens.get(i).equalsIgnoreCase("AND")) {
+                    i++;
+                    if (i == tokens.size()) throw new IllegalArgumentException("Dangling AND");
+                } else if (i < tokens.size() && !tokens.get(i).equalsIgnoreCase("SORT") && !tokens.get(i).equalsIgnoreCase("ORDER")) {
+                    throw new IllegalArgumentException("Expected AND near '" + tokens.get(i) + "'");
+                }
+            }
+            if (clauses.isEmpty() && sort == null) throw new IllegalArgumentException("Empty query");
+            return new QueryPlanner(clauses, sort);
+        }
+
+        RequestQuery toQuery() {
+            RequestQuery q = new RequestQuery(idx -> scan(idx, null));
+            q.sort = sort;
+            return q;
+        }
+
+        String sortStep() {
+            return sort == null ? "Sort chosen at display time, top-K per page" : "Sort by " + sort + ", top-K per page";
+        }
+
+        // Chooses the driving index for one shard; steps (if non-null) receives the explanation.
+        Scan scan(RequestIndex index, List<String> steps) {
+            Clause driver = null;
+            Access driverAccess = null;
+            Map<Clause, Access> accesses = new HashMap<>();
+            for (Clause c : clauses) {
+                if (c.access == null) continue;
+                Access a = c.access.apply(index);
+                accesses.put(c, a);
+                if (driverAccess == null || a.estimate < driverAccess.estimate) {
+                    driver = c;
+                    driverAccess = a;
+                }
+            }
+            if (steps != null) {
+                if (driver == null) steps.add("full scan (" + index.size() + " rows)");
+                else steps.add("scan " + driverAccess.indexName + " for " + driver + " (" + driverAccess.estimate + " rows)");
+            }
+            Predicate<ServiceRequest> filter = r -> true;
+            for (Clause c : clauses) {
+                if (c == driver) continue;
+                Access a = accesses.get(c);
+                if (a != null && a.member != null) {
+                    filter = filter.and(a.member);
+                    if (steps != null) steps.add("intersect " + a.indexName + " for " + c + " (" + a.estimate + " rows)");
+                }
+            }
+            for (Clause c : clauses) {
+                if (c == driver) continue;
+                Access a = accesses.get(c);
+                if (a != null && a.member != null) continue;
+                filter = filter.and(c.test);
+                if (steps != null) steps.add("filter " + c);
+            }
+            return new Scan(driverAccess == null ? null : driverAccess.rows, filter);
+        }
+
+        private static Clause bind(Clause c) {
+            String v = c.value;
+            switch (c.field) {
+                case "status":
+                    requireOps(c, "=", "!=");
+                    c.test = r -> r.status != null && r.status.equalsIgnoreCase(v);
+                    if (c.op.equals("=")) c.access = idx -> exact("status index", idx.byStatus(v));
+                    break;
+                case "category":
+                    requireOps(c, "=", "!=", "~");
+                    if (c.op.equals("~")) {
+                        String kw = v.toLowerCase(Locale.ROOT);
+                        c.test = r -> r.category != null && r.category.toLowerCase(Locale.ROOT).contains(kw);
+                        return c;
+                    }
+                    c.test = r -> r.category != null && r.category.equalsIgnoreCase(v);
+                    if (c.op.equals("=")) c.access = idx -> exact("category index", idx.byCategory(v));
+                    break;
+                case "priority": {
+                    requireOps(c, "=", "!=", "<", "<=", ">", ">=");
+                    int want = parsePriority(v);
+                    if (want < 0) throw new IllegalArgumentException("Unknown priority: " + v);
+                    String op = c.op;
+                    Predicate<Integer> rankOk = rank -> op.equals("=") ? rank == want : op.equals("!=") ? rank != want
+                            : op.equals("<") ? rank < want : op.equals("<=") ? rank <= want
+                            : op.equals(">") ? rank > want : rank >= want;
+                    c.test = r -> rankOk.test(priorityRank(r));
+                    c.access = idx -> {
+                        List<Set<ServiceRequest>> sets = new ArrayList<>();
+                        for (int i = 0; i < PRIORITIES.length; i++) if (rankOk.test(i)) sets.add(idx.byPriority(PRIORITIES[i]));
+                        return new Access("priority index", () -> sets.stream().flatMap(Set::stream).iterator(),
+                                r -> { for (Set<ServiceRequest> s : sets) if (s.contains(r)) return true; return false; },
+                                sets.stream().mapToLong(Set::size).sum());
+                    };
+                    return c; // rankOk already handles !=
+                }
+                case "created":
+                case "updated":
+                case "resolved": {
+                    requireOps(c, "=", "<", "<=", ">", ">=");
+                    LocalDateTime[] b = bounds(c.op, v);
+                    Function<ServiceRequest, LocalDateTime> f = c.field.equals("created") ? r -> r.createdDate
+                            : c.field.equals("updated") ? r -> r.lastUpdated : r -> r.resolvedDate;
+                    c.test = r -> {
+                        LocalDateTime t = f.apply(r);
+                        return t != null && (b[0] == null || !t.isBefore(b[0])) && (b[1] == null || !t.isAfter(b[1]));
+                    };
+                    String field = c.field;
+                    c.access = idx -> {
+                        TimeIndex ti = field.equals("created") ? idx.created : field.equals("updated") ? idx.updated : idx.resolved;
+                        return new Access(field + " time index", ti.view(b[0], b[1]), null, ti.count(b[0], b[1]));
+                    };
+                    break;
+                }
+                case "text": {
+                    requireOps(c, "~");
+                    String kw = v.toLowerCase(Locale.ROOT);
+                    c.test = r -> RequestManager.matchesKeyword(r, kw);
+                    break;
+                }
+                case "email":
+                    requireOps(c, "=", "!=");
+                    c.test = r -> r.userEmail != null && r.userEmail.equalsIgnoreCase(v);
+                    if (c.op.equals("=")) c.access = idx -> exact("email index", idx.byEmail(v));
+                    break;
+                case "agent":
+                    requireOps(c, "=", "!=");
+                    c.test = r -> r.assignedAgent != null && r.assignedAgent.equalsIgnoreCase(v);
+                    if (c.op.equals("=")) c.access = idx -> exact("agent index", idx.byAgent(v));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown field: " + c.field);
+            }
+            if (c.op.equals("!=")) c.test = c.test.negate();
+            return c;
+        }
+
+        private static Access exact(String name, Set<ServiceRequest> set) {
+            return new Access(name, set, set::contains, set.size());
+        }
+
+        private static void requireOps(Clause c, String... ops) {
+            for (String op : ops) if (op.equals(c.op)) return;
+            throw new IllegalArgumentException("Operator " + c.op + " not supported for " + c.field);
+        }
+
+        // Inclusive [from, to]; a bare date covers the whole day.
+        private static LocalDateTime[] bounds(String op, String v) {
+            LocalDateTime start, end;
+            try {
+                if (v.length() == 10) {
+                    start = LocalDate.parse(v).atStartOfDay();
+                    end = start.plusDays(1).minusNanos(1);
+                } else {
+                    start = LocalDateTime.parse(v, DTF);
+                    end = start;
+                }
+            } catch (Exception e) {
+                throw new IllegalArgumentException("Invalid date: " + v);
+            }
+            switch (op) {
+                case "=": return new LocalDateTime[]{start, end};
+                case ">": return new LocalDateTime[]{end.plusNanos(1), null};
+                case ">=": return new LocalDateTime[]{start, null};
+                case "<": return new LocalDateTime[]{null, start.minusNanos(1)};
+                default: return new LocalDateTime[]{null, end};
+            }
+        }
+
+        // PRIORITIES is ordered most urgent first, matching priorityRank(ServiceRequest).
+        private static int parsePriority(String p) {
+            for (int i = 0; i < PRIORITIES.length; i++) if (PRIORITIES[i].equalsIgnoreCase(p)) return i;
+            return -1;
+        }
+
+        private static SortKey parseSort(String s) {
+            try {
+                return SortKey.valueOf(s.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown sort field: " + s);
+            }
+        }
+
+        private static boolean isOp(String t) { return !t.isEmpty() && OPS.indexOf(t.charAt(0)) >= 0; }
+
+        private static String unquote(String t) {
+            return t.length() >= 2 && t.startsWith("\"") && t.endsWith("\"") ? t.substring(1, t.length() - 1) : t;
+        }
+
+        private static List<String> tokenize(String text) {
+            List<String> out = new ArrayList<>();
+            int i = 0, n = text.length();
+            while (i < n) {
+                char ch = text.charAt(i);
+                if (Character.isWhitespace(ch)) { i++; continue; }
+                int start = i;
+                if (ch == '"') {
+                    int close = text.indexOf('"', i + 1);
+                    if (close < 0) throw new IllegalArgumentException("Unterminated quote");
+                    i = close + 1;
+                } else if (OPS.indexOf(ch) >= 0) {
+                    i++;
+                    if (i < n && text.charAt(i) == '=' && ch != '=' && ch != '~') i++;
+                } else {
+                    while (i < n && !Character.isWhitespace(text.charAt(i)) && OPS.indexOf(text.charAt(i)) < 0 && text.charAt(i) != '"') i++;
+                }
+                out.add(text.substring(start, i));
+            }
+            return out;
+        }
+    }
+
+    // ====== Reporting ======
+    static class ReportGenerator {
+        private static final Metrics.Timer T_SUMMARY = Metrics.timer("report.summary");
+        private static final Metrics.Timer T_BY_CATEGORY = Metrics.timer("report.by_category");
+        private static final Metrics.Timer T_BY_DEPARTMENT = Metrics.timer("report.by_department");
+        private static final Metrics.Timer T_BY_PRIORITY = Metrics.timer("report.by_priority");
+        private static final Metrics.Timer T_AVERAGE = Metrics.timer("report.average_resolution");
+        private static final Metrics.Timer T_PERCENTILES = Metrics.timer("report.percentiles");
+        private static final Metrics.Timer T_TREND = Metrics.timer("report.throughput_trend");
+        private static final Metrics.Timer T_AGENTS = Metrics.timer("report.agent_performance");
+        private static final Metrics.Timer T_DEMAND = Metrics.timer("report.department_demand");
+
+        private final RequestManager rm;
+        ReportGenerator(RequestManager rm) { this.rm = rm; }
+
+        // One field of every ticket, all read at the same point in time.
+        private <T> List<T> snapshotOf(Function<ServiceRequest, T> field) {
+            try (Snapshot snap = rm.openSnapshot()) {
+                return snap.map(field);
+            }
+        }
+
+        void printSummaryStatistics() {
+            long t0 = T_SUMMARY.start();
+            ReportEvent ev = ReportEvent.start("summary");
+            try {
+                long[] c = rm.cached("report.summary", RequestManager.DEP_STATUS, () -> {
+                    List<String> all = snapshotOf(r -> r.status);
+                    return new long[]{all.size(),
+                            all.stream().filter(st -> st.equals("OPEN")).count(),
+                            all.stream().filter(st -> st.equals("IN_PROGRESS")).count(),
+                            all.stream().filter(st -> st.equals("RESOLVED")).count(),
+                            all.stream().filter(st -> st.equals("CLOSED")).count()};
+                }, v -> 1);
+                System.out.println("Total: " + c[0] + ", Open: " + c[1] + ", In Progress: " + c[2] + ", Resolved: " + c[3] + ", Closed: " + c[4]);
+            } finally {
+                ev.end(rm.size());
+                T_SUMMARY.stop(t0);
+            }
+        }
+
+        void printByCategory() {
+            long t0 = T_BY_CATEGORY.start();
+            ReportEvent ev = ReportEvent.start("by_category");
+            try {
+                Map<String, Long> map = rm.cached("report.by_category", RequestManager.DEP_CATEGORY,
+                        () -> snapshotOf(r -> r.category).stream().collect(Collectors.groupingBy(c -> c, Collectors.counting())), Map::size);
+                map.entrySet().stream().sorted(Map.Entry.comparingByKey()).forEach(e ->
+                        System.out.printf("%-30s : %d%n", e.getKey(), e.getValue()));
+            } finally {
+                ev.end(rm.size());
+                T_BY_CATEGORY.stop(t0);
+            }
+        }
+
+        // Scatter-gather over the department shards.
+        void printByDepartment() {
+            long t0 = T_BY_DEPARTMENT.start();
+            ReportEvent ev = ReportEvent.start("by_department");
+            try {
+                System.out.printf("%-20s | %7s | %7s | %11s%n", "Department", "Total", "Open", "In Progress");
+                for (Shard s : rm.getShards()) {
+                    long[] c = s.read(() -> new long[]{s.requests.size(), s.index.byStatus("OPEN").size(), s.index.byStatus("IN_PROGRESS").size()});
+                    System.out.printf("%-20s | %7d | %7d | %11d%n", s.name, c[0], c[1], c[2]);
+                }
+            } finally {
+                ev.end(rm.size());
+                T_BY_DEPARTMENT.stop(t0);
+            }
+        }
+
+        void printByPriority() {
+            long t0 = T_BY_PRIORITY.start();
+            ReportEvent ev = ReportEvent.start("by_priority");
+            try {
+                Map<String, Long> map = rm.cached("report.by_priority", RequestManager.DEP_PRIORITY,
+                        () -> snapshotOf(r -> r.priority).stream().collect(Collectors.groupingBy(p -> p, Collectors.counting())), Map::size);
+                map.entrySet().stream().sorted((a, b) -> Integer.compare(rank(a.getKey()), rank(b.getKey())))
+                        .forEach(e -> System.out.printf("%-8s : %d%n", e.getKey(), e.getValue()));
+            } finally {
+                ev.end(rm.size());
+                T_BY_PRIORITY.stop(t0);
+            }
+        }
+
+        private int rank(String p) {
+            String v = p == null ? "" : p.toUpperCase(Locale.ROOT);
+            switch (v) {
+                case "CRITICAL": return 0;
+                case "HIGH": return 1;
+                case "MEDIUM": return 2;
+                default: return 3;
+            }
+        }
+
+        void printAverageResolutionTime() {
+            long t0 = T_AVERAGE.start();
+            ReportEvent ev = ReportEvent.start("average_resolution");
+            try {
+                Histogram h = rm.getAnalytics().resolutionTime(AnalyticsEngine.ALL, null, null);
+                if (h.count() == 0) { System.out.println("No resolved requests."); return; }
+                System.out.printf("Average resolution time: %.1f minutes%n", h.mean());
+            } finally {
+                ev.end(rm.size());
+                T_AVERAGE.stop(t0);
+            }
+        }
+
+        void printResolutionPercentiles(LocalDate from, LocalDate to) {
+            long t0 = T_PERCENTILES.start();
+            ReportEvent ev = ReportEvent.start("percentiles");
+            try {
+                ShardedAnalytics a = rm.getAnalytics();
+                System.out.println("Resolution time (minutes, by resolved date):");
+                printPercentileTable(a, true, from, to);
+                System.out.println("\nFirst response time (minutes, by response date):");
+                printPercentileTable(a, false, from, to);
+            } finally {
+                ev.end(rm.size());
+                T_PERCENTILES.stop(t0);
+            }
+        }
+
+        // Resolution and first-response times move with status, assignment and date changes.
+        private static final RequestIndex.Field[] DEP_TIMINGS = {RequestIndex.Field.STATUS, RequestIndex.Field.AGENT,
+                RequestIndex.Field.UPDATED, RequestIndex.Field.RESOLVED};
+
+        private void printPercentileTable(ShardedAnalytics a, boolean resolution, LocalDate from, LocalDate to) {
+            System.out.printf("%-40s | %7s | %8s | %8s | %8s%n", "Dimension", "Count", "p50", "p90", "p99");
+            System.out.println(String.join("", Collections.nCopies(83, "-")));
+            List<String> rows = rm.cached("report.percentiles:" + resolution + ":" + from + ".." + to, DEP_TIMINGS, () -> {
+                List<String> out = new ArrayList<>();
+                for (String dim : a.dimensions(resolution)) {
+                    Histogram h = resolution ? a.resolutionTime(dim, from, to) : a.firstResponseTime(dim, from, to);
+                    if (h.count() == 0) continue;
+                    out.add(String.format("%-40s | %7d | %8d | %8d | %8d", dim, h.count(),
+                            h.percentile(50), h.percentile(90), h.percentile(99)));
+                }
+                return Collections.unmodifiableList(out);
+            }, List::size);
+            for (String row : rows) System.out.println(row);
+            if (rows.isEmpty()) System.out.println("(No data in range)");
+        }
+
+        void printThroughputTrend(LocalDate from, LocalDate to, boolean hourly) {
+            long t0 = T_TREND.start();
+            ReportEvent ev = ReportEvent.start("throughput_trend");
+            try {
+                NavigableMap<Long, long[]> buckets = rm.getAnalytics().throughput(from, to, hourly);
+                if (buckets.isEmpty()) { System.out.println("No activity in range."); return; }
+                System.out.printf("%-16s | %8s | %8s%n", hourly ? "Hour" : "Day", "Created", "Resolved");
+                System.out.println(String.join("", Collections.nCopies(38, "-")));
+                for (Map.Entry<Long, long[]> e : buckets.entrySet()) {
+                    String label = hourly
+                            ? LocalDateTime.ofEpochSecond(e.getKey() * 3600, 0, ZoneOffset.UTC).format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:00"))
+                            : LocalDate.ofEpochDay(e.getKey()).toString();
+                    System.out.printf("%-16s | %8d | %8d%n", label, e.getValue()[0], e.getValue()[1]);
+                }
+            } finally {
+                ev.end(rm.size());
+                T_TREND.stop(t0);
+            }
+        }
+
+        // Closes, handle time and reopens per agent from the rollup cube; cheap over any window.
+        void printAgentPerformance(LocalDate from, LocalDate to) {
+            long t0 = T_AGENTS.start();
+            ReportEvent ev = ReportEvent.start("agent_performance");
+            try {
+                RollupCube.Window w = rm.getAnalytics().rollup(from, to, d -> d.agent);
+                if (w.groups.values().stream().allMatch(c -> c.closed == 0 && c.reopened == 0)) { System.out.println("No closed tickets in range."); return; }
+                System.out.printf("%-20s | %7s | %7s | %10s | %10s | %7s | %7s%n", "Agent", "Closed", "Per day", "Median min", "p90 min", "Reopens", "Reopen%");
+                System.out.println(String.join("", Collections.nCopies(88, "-")));
+                for (Map.Entry<String, RollupCube.Cell> e : w.groups.entrySet()) {
+                    RollupCube.Cell c = e.getValue();
+                    if (c.closed == 0 && c.reopened == 0) continue;
+                    System.out.printf("%-20s | %7d | %7.1f | %10d | %10d | %7d | %6.1f%%%n", e.getKey(), c.closed, w.perDay(c.closed),
+                            c.handle().percentile(50), c.handle().percentile(90), c.reopened, 100 * c.reopenRate());
+                }
+                System.out.printf("(%d days)%n", w.days);
+            } finally {
+                ev.end(rm.size());
+                T_AGENTS.stop(t0);
+            }
+        }
+
+        // Tickets raised per department group and priority, and how many were closed, in the window.
+        void printDepartmentDemand(LocalDate from, LocalDate to) {
+            long t0 = T_DEMAND.start();
+            ReportEvent ev = ReportEvent.start("department_demand");
+            try {
+                RollupCube.Window w = rm.getAnalytics().rollup(from, to, d -> d.department() + "|" + d.priority);
+                if (w.groups.isEmpty()) { System.out.println("No activity in range."); return; }
+                Map<String, RollupCube.Cell> byDept = new TreeMap<>();
+                Map<String, long[]> byPriority = new TreeMap<>();
+                for (Map.Entry<String, RollupCube.Cell> e : w.groups.entrySet()) {
+                    String[] k = e.getKey().split("\\|", 2);
+                    byDept.computeIfAbsent(k[0], x -> new RollupCube.Cell()).merge(e.getValue());
+                    byPriority.computeIfAbsent(k[0], x -> new long[PRIORITIES.length])[rank(k[1])] += e.getValue().created;
+                }
+                System.out.printf("%-18s | %7s | %7s | %8s | %6s | %6s | %6s | %7s | %10s%n",
+                        "Department", "Created", "Per day", "Critical", "High", "Medium", "Low", "Closed", "Median min");
+                System.out.println(String.join("", Collections.nCopies(100, "-")));
+                for (Map.Entry<String, RollupCube.Cell> e : byDept.entrySet()) {
+                    RollupCube.Cell c = e.getValue();
+                    long[] p = byPriority.get(e.getKey());
+                    System.out.printf("%-18s | %7d | %7.1f | %8d | %6d | %6d | %6d | %7d | %10d%n", e.getKey(), c.created, w.perDay(c.created),
+                            p[0], p[1], p[2], p[3], c.closed, c.handle().percentile(50));
+                }
+                System.out.printf("(%d days)%n", w.days);
+            } finally {
+                ev.end(rm.size());
+                T_DEMAND.stop(t0);
+            }
+        }
+    }
+
+    // ====== Analytics ======
+    // Log-linear histogram (HDR style): exact below 16, then 16 sub-buckets per power of two (~6% error).
+    static class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB = 1 << SUB_BITS;
+        private long[] counts = new long[SUB * 2];
+        private long total;
+        private long sum;
+
+        static int indexOf(long v) {
+            if (v < SUB) return (int) Math.max(0, v);
+            int exp = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+            return (exp + 1) * SUB + (int) ((v >>> exp) - SUB);
+        }
+
+        static long valueOf(int idx) {
+            if (idx < SUB) return idx;
+            int exp = idx / SUB - 1;
+            long lo = (long) (SUB + idx % SUB) << exp;
+            return lo + ((1L << exp) >>> 1); // bucket midpoint
+        }
+
+        void record(long v) { add(v, 1); }
+        void remove(long v) { add(v, -1); }
+
+        private void add(long v, long n) {
+            int idx = indexOf(v);
+            if (idx >= counts.length) counts = Arrays.copyOf(counts, Math.max(idx + 1, counts.length * 2));
+            counts[idx] += n;
+            total += n;
+            sum += v * n;
+        }
+
+        void merge(Histogram o) {
+            if (o.counts.length > counts.length) counts = Arrays.copyOf(counts, o.counts.length);
+            for (int i = 0; i < o.counts.length; i++) counts[i] += o.counts[i];
+            total += o.total;
+            sum += o.sum;
+        }
+
+        long count() { return total; }
+        double mean() { return total == 0 ? 0 : (double) sum / total; }
+
+        long percentile(double p) {
+            if (total == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(p / 100.0 * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return valueOf(i);
+            }
+            return valueOf(counts.length - 1);
+        }
+    }
+
+    // Streaming aggregates maintained by RequestManager on every mutation, so reports never rescan tickets.
+    // Each ticket contributes once; mutations remove the old contribution and add the new one.
+    // Every shard has its own engine, updated under the shard's write lock (see ShardedAnalytics).
+    static class AnalyticsEngine {
+        static final String ALL = "All";
+        // dimension -> epoch day -> histogram of minutes
+        private final Map<String, TreeMap<Long, Histogram>> resolution = new TreeMap<>();
+        private final Map<String, TreeMap<Long, Histogram>> firstResponse = new TreeMap<>();
+        // bucket -> {created, resolved}
+        private final TreeMap<Long, long[]> hourly = new TreeMap<>();
+        private final TreeMap<Long, long[]> daily = new TreeMap<>();
+        private final RollupCube cube = new RollupCube();
+
+        synchronized void clear() {
+            resolution.clear();
+            firstResponse.clear();
+            hourly.clear();
+            daily.clear();
+            cube.clear();
+        }
+
+        synchronized void add(ServiceRequest r) { apply(r, 1); }
+        synchronized void remove(ServiceRequest r) { apply(r, -1); }
+
+        private void apply(ServiceRequest r, int sign) {
+            if (r.createdDate == null) return;
+            cube.apply(r, sign);
+            bump(r.createdDate, 0, sign);
+            if (r.resolvedDate != null) {
+                bump(r.resolvedDate, 1, sign);
+                long minutes = Duration.between(r.createdDate, r.resolvedDate).toMinutes();
+                sample(resolution, r, r.resolvedDate.toLocalDate().toEpochDay(), minutes, sign);
+            }
+            if (r.firstResponseDate != null) {
+                long minutes = Duration.between(r.createdDate, r.firstResponseDate).toMinutes();
+                sample(firstResponse, r, r.firstResponseDate.toLocalDate().toEpochDay(), minutes, sign);
+            }
+        }
+
+        private void bump(LocalDateTime t, int slot, int sign) {
+            long hour = t.toEpochSecond(ZoneOffset.UTC) / 3600;
+            hourly.computeIfAbsent(hour, k -> new long[2])[slot] += sign;
+            daily.computeIfAbsent(t.toLocalDate().toEpochDay(), k -> new long[2])[slot] += sign;
+        }
+
+        private void sample(Map<String, TreeMap<Long, Histogram>> target, ServiceRequest r, long day, long minutes, int sign) {
+            for (String dim : dimensionsOf(r)) {
+                Histogram h = target.computeIfAbsent(dim, k -> new TreeMap<>()).computeIfAbsent(day, k -> new Histogram());
+                if (sign > 0) h.record(minutes); else h.remove(minutes);
+            }
+        }
+
+        private static List<String> dimensionsOf(ServiceRequest r) {
+            List<String> dims = new ArrayList<>(4);
+            dims.add(ALL);
+            if (r.category != null) dims.add("Category: " + r.category);
+            if (r.priority != null) dims.add("Priority: " + r.priority);
+            if (r.assignedAgent != null && !r.assignedAgent.isEmpty()) dims.add("Agent: " + r.assignedAgent);
+            return dims;
+        }
+
+        synchronized List<String> dimensions(boolean resolutionTimes) {
+            return new ArrayList<>((resolutionTimes ? resolution : firstResponse).keySet());
+        }
+
+        synchronized Histogram resolutionTime(String dim, LocalDate from, LocalDate to) { return mergeRange(resolution.get(dim), from, to); }
+        synchronized Histogram firstResponseTime(String dim, LocalDate from, LocalDate to) { return mergeRange(firstResponse.get(dim), from, to); }
+
+        private static Histogram mergeRange(TreeMap<Long, Histogram> days, LocalDate from, LocalDate to) {
+            Histogram out = new Histogram();
+            if (days == null) return out;
+            for (Histogram h : dayRange(days, from, to).values()) out.merge(h);
+            return out;
+        }
+
+        // Buckets with activity between from and to (inclusive days); values are {created, resolved}.
+        synchronized NavigableMap<Long, long[]> throughput(LocalDate from, LocalDate to, boolean byHour) {
+            NavigableMap<Long, long[]> src;
+            if (byHour) {
+                long lo = from == null ? Long.MIN_VALUE : from.atStartOfDay().toEpochSecond(ZoneOffset.UTC) / 3600;
+                long hi = to == null ? Long.MAX_VALUE : to.plusDays(1).atStartOfDay().toEpochSecond(ZoneOffset.UTC) / 3600 - 1;
+                src = hourly.subMap(lo, true, hi, true);
+            } else {
+                src = dayRange(daily, from, to);
+            }
+            TreeMap<Long, long[]> out = new TreeMap<>();
+            for (Map.Entry<Long, long[]> e : src.entrySet()) {
+                if (e.getValue()[0] != 0 || e.getValue()[1] != 0) out.put(e.getKey(), e.getValue().clone());
+            }
+            return out;
+        }
+
+        // Cube totals between from and to (inclusive days, null for open-ended) grouped by the given
+        // label of each cell; see RollupCube.
+        synchronized RollupCube.Window rollup(LocalDate from, LocalDate to, Function<RollupCube.Dims, String> groupBy) {
+            return cube.rollup(from, to, groupBy);
+        }
+
+        // First and last day with cube activity, or null if there is none.
+        synchronized long[] activeDays() { return cube.activeDays(); }
+
+        // Adds every non-empty day cell between from and to to into, keyed by epoch day.
+        synchronized void rollupRows(LocalDate from, LocalDate to, BiFunction<LocalDate, Map.Entry<RollupCube.Dims, RollupCube.Cell>, String> format,
+                Map<Long, List<String>> into) {
+            cube.rows(from, to, format, into);
+        }
+
+        private static <V> NavigableMap<Long, V> dayRange(TreeMap<Long, V> days, LocalDate from, LocalDate to) {
+            long lo = from == null ? Long.MIN_VALUE : from.toEpochDay();
+            long hi = to == null ? Long.MAX_VALUE : to.toEpochDay();
+            return days.subMap(lo, true, hi, true);
+        }
+    }
+
+    // What reports read: the shards' engines merged. A department's tickets only ever touch its
+    // own engine, so shards never wait for each other to record analytics.
+    static class ShardedAnalytics {
+        private final Shard[] shards;
+
+        ShardedAnalytics(Shard[] shards) { this.shards = shards; }
+
+        List<String> dimensions(boolean resolutionTimes) {
+            Set<String> dims = new TreeSet<>();
+            for (Shard s : shards) dims.addAll(s.analytics.dimensions(resolutionTimes));
+            return new ArrayList<>(dims);
+        }
+
+        Histogram resolutionTime(String dim, LocalDate from, LocalDate to) {
+            Histogram out = new Histogram();
+            for (Shard s : shards) out.merge(s.analytics.resolutionTime(dim, from, to));
+            return out;
+        }
+
+        Histogram firstResponseTime(String dim, LocalDate from, LocalDate to) {
+            Histogram out = new Histogram();
+            for (Shard s : shards) out.merge(s.analytics.firstResponseTime(dim, from, to));
+            return out;
+        }
+
+        NavigableMap<Long, long[]> throughput(LocalDate from, LocalDate to, boolean byHour) {
+            TreeMap<Long, long[]> out = new TreeMap<>();
+            for (Shard s : shards) {
+                for (Map.Entry<Long, long[]> e : s.analytics.throughput(from, to, byHour).entrySet()) {
+                    long[] sum = out.computeIfAbsent(e.getKey(), k -> new long[2]);
+                    sum[0] += e.getValue()[0];
+                    sum[1] += e.getValue()[1];
+                }
+            }
+            return out;
+        }
+
+        // Open ends are resolved against the span of all shards first, so every shard sums the same days.
+        RollupCube.Window rollup(LocalDate from, LocalDate to, Function<RollupCube.Dims, String> groupBy) {
+            long first = Long.MAX_VALUE, last = Long.MIN_VALUE;
+            for (Shard s : shards) {
+                long[] span = s.analytics.activeDays();
+                if (span == null) continue;
+                first = Math.min(first, span[0]);
+                last = Math.max(last, span[1]);
+            }
+            Map<String, RollupCube.Cell> out = new TreeMap<>();
+            if (first > last) return new RollupCube.Window(out, 0);
+            LocalDate lo = from != null ? from : LocalDate.ofEpochDay(first);
+            LocalDate hi = to != null ? to : LocalDate.ofEpochDay(last);
+            if (lo.isAfter(hi)) return new RollupCube.Window(out, 0);
+            for (Shard s : shards) {
+                s.analytics.rollup(lo, hi, groupBy).groups.forEach((k, c) -> out.computeIfAbsent(k, x -> new RollupCube.Cell()).merge(c));
+            }
+            return new RollupCube.Window(out, hi.toEpochDay() - lo.toEpochDay() + 1);
+        }
+
+        // Every non-empty day cell between from and to, in day order.
+        List<String> rollupRows(LocalDate from, LocalDate to, BiFunction<LocalDate, Map.Entry<RollupCube.Dims, RollupCube.Cell>, String> format) {
+            TreeMap<Long, List<String>> byDay = new TreeMap<>();
+            for (Shard s : shards) s.analytics.rollupRows(from, to, format, byDay);
+            List<String> out = new ArrayList<>();
+            for (List<String> rows : byDay.values()) out.addAll(rows);
+            return out;
+        }
+    }
+
+    // Agent x category x priority cells per day, kept in step with the tickets by AnalyticsEngine
+    // (so under its lock). A ticket adds its creation on the day it was created, and each close
+    // and reopen on the day it happened; handle time is the minutes from creation, or from the
+    // reopen before it, to each close. Everything is attributed to the ticket's current agent.
+    // Cells are also summed per month, so a query over a year reads at most twelve months of
+    // cells plus the days at either end. Cells stay once made, since every change to a ticket
+    // takes its counts out and puts them back; empty ones are skipped when reading.
+    static class RollupCube {
+        static final String UNASSIGNED = "(unassigned)";
+
+        static final class Dims {
+            final String agent, category, priority;
+            private final int hash;
+
+            Dims(String agent, String category, String priority) {
+                this.agent = agent == null || agent.isEmpty() ? UNASSIGNED : agent;
+                this.category = category == null ? "" : category;
+                this.priority = priority == null ? "" : priority;
+                this.hash = Objects.hash(this.agent, this.category, this.priority);
+            }
+
+            // Department group of the category, as the shards split them.
+            String department() {
+                for (String d : SHARD_NAMES) if (category.startsWith(d)) return d;
+                return SHARD_NAMES[SHARD_NAMES.length - 1];
+            }
+
+            @Override public int hashCode() { return hash; }
+
+            @Override public boolean equals(Object o) {
+                if (!(o instanceof Dims)) return false;
+                Dims d = (Dims) o;
+                return hash == d.hash && agent.equals(d.agent) && category.equals(d.category) && priority.equals(d.priority);
+            }
+        }
+
+        static final class Cell {
+            long created, closed, reopened;
+            private Histogram handle; // minutes, one sample per close; made on the first close
+
+            boolean isEmpty() { return created == 0 && closed == 0 && reopened == 0; }
+
+            Histogram handle() {
+                if (handle == null) handle = new Histogram();
+                return handle;
+            }
+
+            void merge(Cell o) {
+                created += o.created;
+                closed += o.closed;
+                reopened += o.reopened;
+                if (o.handle != null) handle().merge(o.handle);
+            }
+
+            double reopenRate() { return closed == 0 ? 0 : (double) reopened / closed; }
+        }
+
+        // Totals per group and the number of days they cover.
+        static final class Window {
+            final Map<String, Cell> groups;
+            final long days;
+
+            Window(Map<String, Cell> groups, long days) {
+                this.groups = groups;
+                this.days = days;
+            }
+
+            double perDay(long n) { return days == 0 ? 0 : (double) n / days; }
+        }
+
+        private final TreeMap<Long, Map<Dims, Cell>> days = new TreeMap<>();   // epoch day
+        private final TreeMap<Long, Map<Dims, Cell>> months = new TreeMap<>(); // epoch month, see monthOf
+
+        void clear() {
+            days.clear();
+            months.clear();
+        }
+
+        void apply(ServiceRequest r, int sign) {
+            Dims dims = new Dims(r.assignedAgent, r.category, r.priority);
+            add(dims, r.createdDate, 0, sign, -1);
+            LocalDateTime[] closes = r.closedAt, reopens = r.reopenedAt;
+            for (int i = 0; closes != null && i < closes.length; i++) {
+                LocalDateTime start = i == 0 || reopens == null || reopens.length < i ? r.createdDate : reopens[i - 1];
+                add(dims, closes[i], 1, sign, Math.max(0, Duration.between(start, closes[i]).toMinutes()));
+            }
+            for (int i = 0; reopens != null && i < reopens.length; i++) add(dims, reopens[i], 2, sign, -1);
+        }
+
+        static long monthOf(LocalDate d) { return d.getYear() * 12L + d.getMonthValue() - 1; }
+
+        // measure: 0 = created, 1 = closed (with its handle minutes), 2 = reopened.
+        private void add(Dims dims, LocalDateTime t, int measure, int sign, long minutes) {
+            LocalDate day = t.toLocalDate();
+            add(days, day.toEpochDay(), dims, measure, sign, minutes);
+            add(months, monthOf(day), dims, measure, sign, minutes);
+        }
+
+        private static void add(TreeMap<Long, Map<Dims, Cell>> level, long key, Dims dims, int measure, int sign, long minutes) {
+            Map<Dims, Cell> cells = level.computeIfAbsent(key, k -> new HashMap<>());
+            Cell c = cells.computeIfAbsent(dims, k -> new Cell());
+            switch (measure) {
+                case 0: c.created += sign; break;
+                case 1:
+                    c.closed += sign;
+                    if (sign > 0) c.handle().record(minutes); else c.handle().remove(minutes);
+                    break;
+                default: c.reopened += sign;
+            }
+        }
+
+        // Whole months inside [lo, hi] come from the month level, the rest from days.
+        Window rollup(LocalDate from, LocalDate to, Function<Dims, String> groupBy) {
+            Map<String, Cell> out = new TreeMap<>();
+            Long first = firstActive(days), last = firstActive(days.descendingMap());
+            if (first == null) return new Window(out, 0);
+            long lo = from != null ? from.toEpochDay() : first;
+            long hi = to != null ? to.toEpochDay() : last;
+            if (lo > hi) return new Window(out, 0);
+            LocalDate loDay = LocalDate.ofEpochDay(lo), hiDay = LocalDate.ofEpochDay(hi);
+            LocalDate firstFull = loDay.getDayOfMonth() == 1 ? loDay : loDay.withDayOfMonth(1).plusMonths(1);
+            LocalDate lastFull = hiDay.plusDays(1).getDayOfMonth() == 1 ? hiDay : hiDay.withDayOfMonth(1).minusDays(1);
+            if (firstFull.isAfter(lastFull)) {
+                sum(days.subMap(lo, true, hi, true), groupBy, out);
+            } else {
+                sum(days.subMap(lo, true, firstFull.toEpochDay(), false), groupBy, out);
+                sum(months.subMap(monthOf(firstFull), true, monthOf(lastFull), true), groupBy, out);
+                sum(days.subMap(lastFull.toEpochDay(), false, hi, true), groupBy, out);
+            }
+            return new Window(out, hi - lo + 1);
+        }
+
+        private static Long firstActive(NavigableMap<Long, Map<Dims, Cell>> level) {
+            for (Map.Entry<Long, Map<Dims, Cell>> e : level.entrySet()) {
+                for (Cell c : e.getValue().values()) if (!c.isEmpty()) return e.getKey();
+            }
+            return null;
+        }
+
+        private static void sum(NavigableMap<Long, Map<Dims, Cell>> level, Function<Dims, String> groupBy, Map<String, Cell> out) {
+            for (Map<Dims, Cell> cells : level.values()) {
+                for (Map.Entry<Dims, Cell> e : cells.entrySet()) {
+                    if (!e.getValue().isEmpty()) out.computeIfAbsent(groupBy.apply(e.getKey()), k -> new Cell()).merge(e.getValue());
+                }
+            }
+        }
+
+        long[] activeDays() {
+            Long first = firstActive(days);
+            return first == null ? null : new long[]{first, firstActive(days.descendingMap())};
+        }
+
+        void rows(LocalDate from, LocalDate to, BiFunction<LocalDate, Map.Entry<Dims, Cell>, String> format, Map<Long, List<String>> into) {
+            for (Map.Entry<Long, Map<Dims, Cell>> day : AnalyticsEngine.dayRange(days, from, to).entrySet()) {
+                LocalDate d = LocalDate.ofEpochDay(day.getKey());
+                for (Map.Entry<Dims, Cell> e : day.getValue().entrySet()) {
+                    if (!e.getValue().isEmpty()) into.computeIfAbsent(day.getKey(), k -> new ArrayList<>()).add(format.apply(d, e));
+                }
+            }
+        }
+    }
+
+    // ====== Metrics ======
+    // Process-wide registry. Counters are LongAdders and timers record into lock-free log-linear
+    // buckets, so instrumented code never blocks. Timers are skipped entirely while disabled.
+    static final class Metrics {
+        static volatile boolean enabled = true;
+        private static final Map<String, Timer> timers = new ConcurrentSkipListMap<>();
+        private static final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+        private static final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+
+        private Metrics() {}
+
+        static Timer timer(String op) { return timer(op, 1); }
+
+        // Operations that take only a few microseconds time one call in sampleRate; the clock reads
+        // would otherwise cost more than the 1% budget. Call counts stay exact.
+        static Timer timer(String op, int sampleRate) { return timers.computeIfAbsent(op, k -> new Timer(sampleRate)); }
+
+        static LongAdder counter(String name) { return counters.computeIfAbsent(name, k -> new LongAdder()); }
+
+        // name may carry Prometheus labels, e.g. tickets{shard="facilities"}
+        static void gauge(String name, LongSupplier value) { gauges.put(name, value); }
+
+        static Map<String, Timer> timers() { return Collections.unmodifiableMap(timers); }
+
+        static void reset() {
+            for (Timer t : timers.values()) t.reset();
+            for (LongAdder c : counters.values()) c.reset();
+        }
+
+        static void printSummary() {
+            System.out.printf("%-28s | %8s | %9s | %9s | %9s | %9s%n", "Operation", "Count", "Mean(us)", "p50(us)", "p99(us)", "Max(us)");
+            System.out.println(String.join("", Collections.nCopies(88, "-")));
+            for (Map.Entry<String, Timer> e : timers.entrySet()) {
+                Timer t = e.getValue();
+                Histogram h = t.snapshot();
+                if (t.calls() == 0) continue;
+                System.out.printf("%-28s | %8d | %9.1f | %9.1f | %9.1f | %9.1f%n", e.getKey(), t.calls(), t.meanNanos() / 1000.0,
+                        h.percentile(50) / 1000.0, h.percentile(99) / 1000.0, h.percentile(100) / 1000.0);
+            }
+            System.out.println();
+            for (Map.Entry<String, LongAdder> e : counters.entrySet()) {
+                System.out.printf("%-28s : %d%n", e.getKey(), e.getValue().sum());
+            }
+            for (Map.Entry<String, LongSupplier> e : gauges.entrySet()) {
+                System.out.printf("%-28s : %d%n", e.getKey(), e.getValue().getAsLong());
+            }
+        }
+
+        // Prometheus text exposition format (version 0.0.4).
+        static String prometheus() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("# HELP srs_operation_seconds Latency of request, report and file operations.\n");
+            sb.append("# TYPE srs_operation_seconds summary\n");
+            for (Map.Entry<String, Timer> e : timers.entrySet()) {
+                Timer t = e.getValue();
+                Histogram h = t.snapshot();
+                String op = "op=\"" + e.getKey() + "\"";
+                for (double q : t.calls() == 0 ? new double[0] : new double[]{0.5, 0.9, 0.99}) {
+                    sb.append("srs_operation_seconds{").append(op).append(",quantile=\"").append(q).append("\"} ")
+                            .append(h.percentile(q * 100) / 1e9).append('\n');
+                }
+                sb.append("srs_operation_seconds_sum{").append(op).append("} ").append(t.meanNanos() * t.calls() / 1e9).append('\n');
+                sb.append("srs_operation_seconds_count{").append(op).append("} ").append(t.calls()).append('\n');
+            }
+            for (Map.Entry<String, LongAdder> e : counters.entrySet()) {
+                sb.append("# TYPE srs_").append(e.getKey()).append("_total counter\n");
+                sb.append("srs_").append(e.getKey()).append("_total ").append(e.getValue().sum()).append('\n');
+            }
+            String lastFamily = null;
+            for (Map.Entry<String, LongSupplier> e : gauges.entrySet()) {
+                int brace = e.getKey().indexOf('{');
+                String family = brace < 0 ? e.getKey() : e.getKey().substring(0, brace);
+                if (!family.equals(lastFamily)) sb.append("# TYPE srs_").append(family).append(" gauge\n");
+                lastFamily = family;
+                sb.append("srs_").append(e.getKey()).append(' ').append(e.getValue().getAsLong()).append('\n');
+            }
+            return sb.toString();
+        }
+
+        static final class Timer {
+            private static final int BUCKETS = 64 << 4; // covers every long with Histogram's bucketing
+            private final int sampleRate;
+            private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+            private final LongAdder sum = new LongAdder();
+            private final LongAdder samples = new LongAdder();
+            private final LongAdder calls = new LongAdder();
+
+            Timer(int sampleRate) { this.sampleRate = Math.max(1, sampleRate); }
+
+            // Returns 0 when the call is not timed; stop() then records nothing.
+            long start() {
+                if (!enabled) return 0L;
+                calls.increment();
+                if (sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate) != 0) return 0L;
+                return System.nanoTime();
+            }
+
+            void stop(long t0) {
+                if (t0 == 0L) return;
+                sample(System.nanoTime() - t0);
+            }
+
+            // A duration measured by the caller, e.g. from a timestamp taken on another thread.
+            void record(long nanos) {
+                if (!enabled) return;
+                calls.increment();
+                sample(nanos);
+            }
+
+            private void sample(long nanos) {
+                counts.incrementAndGet(Histogram.indexOf(Math.max(0, nanos)));
+                sum.add(nanos);
+                samples.increment();
+            }
+
+            int sampleRate() { return sampleRate; }
+            long calls() { return calls.sum(); }
+
+            double meanNanos() {
+                long n = samples.sum();
+                return n == 0 ? 0 : (double) sum.sum() / n;
+            }
+
+            Histogram snapshot() {
+                Histogram h = new Histogram();
+                for (int i = 0; i < BUCKETS; i++) {
+                    long c = counts.get(i);
+                    if (c != 0) h.add(Histogram.valueOf(i), c);
+                }
+                return h;
+            }
+
+            void reset() {
+                for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+                sum.reset();
+                samples.reset();
+                calls.reset();
+            }
+        }
+    }
+
+    // ====== Flight Recorder ======
+    // Custom JFR events, so stalls can be lined up with GC, I/O and lock events in the same recording.
+    // They cost next to nothing unless a recording is running.
+    @Name("srs.Ticket")
+    @Label("Ticket Change")
+    @Category({"Service Requests", "Tickets"})
+    static class TicketEvent extends Event {
+        @Label("Operation") String operation;
+        @Label("Ticket") String ticketId;
+        @Label("Category") String category;
+        @Label("Priority") String priority;
+        @Label("Previous Status") String previousStatus;
+        @Label("Status") String status;
+
+        static TicketEvent start() {
+            TicketEvent e = new TicketEvent();
+            e.begin();
+            return e;
+        }
+
+        void end(String operation, ServiceRequest r, String previousStatus) {
+            end();
+            if (!shouldCommit()) return;
+            this.operation = operation;
+            this.ticketId = r.ticketId;
+            this.category = r.category;
+            this.priority = r.priority;
+            this.previousStatus = previousStatus;
+            this.status = r.status;
+            commit();
+        }
+    }
+
+    @Name("srs.Query")
+    @Label("Ticket Query")
+    @Category({"Service Requests", "Queries"})
+    static class QueryEvent extends Event {
+        @Label("Operation") String operation;
+        @Label("Criteria") String criteria;
+        @Label("Results") long results;
+        @Label("Rows Scanned") long scanned;
+
+        static QueryEvent start(String operation, String criteria) {
+            QueryEvent e = new QueryEvent();
+            e.begin();
+            e.operation = operation;
+            e.criteria = criteria;
+            return e;
+        }
+
+        <T> List<T> end(List<T> rows) {
+            end();
+            if (shouldCommit()) {
+                results = rows.size();
+                commit();
+            }
+            return rows;
+        }
+    }
+
+    @Name("srs.Report")
+    @Label("Report")
+    @Category({"Service Requests", "Reports"})
+    static class ReportEvent extends Event {
+        @Label("Report") String report;
+        @Label("Tickets") long tickets;
+
+        static ReportEvent start(String report) {
+            ReportEvent e = new ReportEvent();
+            e.begin();
+            e.report = report;
+            return e;
+        }
+
+        void end(long tickets) {
+            end();
+            if (!shouldCommit()) return;
+            this.tickets = tickets;
+            commit();
+        }
+    }
+
+    @Name("srs.File")
+    @Label("File Operation")
+    @Category({"Service Requests", "Storage"})
+    static class FileEvent extends Event {
+        @Label("Operation") String operation;
+        @Label("Path") String path;
+        @Label("Tickets") long tickets;
+        @Label("Bytes") @DataAmount long bytes;
+
+        static FileEvent start(String operation, Path path) {
+            FileEvent e = new FileEvent();
+            e.begin();
+            e.operation = operation;
+            e.path = String.valueOf(path);
+            return e;
+        }
+
+        void end(long tickets, long bytes) {
+            end();
+            if (!shouldCommit()) return;
+            this.tickets = tickets;
+            this.bytes = bytes;
+            commit();
+        }
+    }
+
+    // In-process recording controlled from Data Management, as an alternative to -XX:StartFlightRecording.
+    static final class FlightRecording {
+        private static Recording recording;
+
+        private FlightRecording() {}
+
+        static synchronized String status() {
+            if (recording == null) return "Flight recording: not running";
+            return "Flight recording: running since " + recording.getStartTime() + " (keeps last 30 minutes, at most 100 MB)";
+        }
+
+        static synchronized void start() throws IOException, ParseException {
+            if (recording != null) throw new IllegalStateException("A recording is already running.");
+            Recording r = new Recording(Configuration.getConfiguration("default"));
+            r.setName("service-requests");
+            r.setToDisk(true);
+            r.setMaxAge(Duration.ofMinutes(30));
+            r.setMaxSize(100L * 1024 * 1024);
+            for (Class<? extends Event> c : List.of(TicketEvent.class, QueryEvent.class, ReportEvent.class, FileEvent.class)) {
+                r.enable(c).withThreshold(Duration.ZERO);
+            }
+            r.start();
+            recording = r;
+        }
+
+        static synchronized void dump(Path file) throws IOException {
+            if (recording == null) throw new IllegalStateException("No recording is running.");
+            recording.dump(file);
+        }
+
+        static synchronized void stop() {
+            if (recording == null) return;
+            recording.stop();
+            recording.close();
+            recording = null;
+        }
+    }
+
+    // ====== Console I/O ======
+    // Output is collected in one 64 KB buffer and written to the terminal when the program waits
+    // for input, i.e. once per screen, instead of once per println.
+    static final class ConsoleOutput extends OutputStream {
+        private final OutputStream target;
+        private final Charset charset;
+        private final byte[] buf = new byte[1 << 16];
+        private int len;
+        // bytes written since the last newline: the prompt the user is looking at
+        private final ByteArrayOutputStream partial = new ByteArrayOutputStream();
+
+        ConsoleOutput(OutputStream target, Charset charset) {
+            this.target = target;
+            this.charset = charset;
+        }
+
+        static ConsoleOutput install() {
+            String enc = System.getProperty("sun.stdout.encoding");
+            Charset cs = enc != null ? Charset.forName(enc) : Charset.defaultCharset();
+            ConsoleOutput out = new ConsoleOutput(new FileOutputStream(FileDescriptor.out), cs);
+            System.setOut(new PrintStream(out, false, cs));
+            Runtime.getRuntime().addShutdownHook(new Thread(out::flushQuietly, "console-flush"));
+            return out;
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int n) throws IOException {
+            int nl = -1;
+            for (int i = off + n - 1; i >= off; i--) {
+                if (b[i] == '\n') { nl = i; break; }
+            }
+            if (nl >= 0) partial.reset();
+            if (partial.size() < 4096) partial.write(b, nl >= 0 ? nl + 1 : off, nl >= 0 ? off + n - nl - 1 : n);
+            if (len + n > buf.length) drain();
+            if (n > buf.length) {
+                target.write(b, off, n);
+            } else {
+                System.arraycopy(b, off, buf, len, n);
+                len += n;
+            }
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            drain();
+            target.flush();
+        }
+
+        synchronized boolean hasPending() { return len > 0; }
+
+        void flushQuietly() {
+            try {
+                flush();
+            } catch (IOException ignored) {
+                // terminal gone
+            }
+        }
+
+        // Shows lines above the current prompt. If the prompt is still buffered it is moved below
+        // them; if it is already on screen it is repeated.
+        synchronized void interject(String lines) throws IOException {
+            byte[] prompt = partial.toByteArray();
+            boolean buffered = prompt.length > 0 && len >= prompt.length;
+            if (buffered) len -= prompt.length;
+            drain();
+            if (prompt.length > 0 && !buffered) target.write('\n');
+            target.write(lines.getBytes(charset));
+            target.write(prompt);
+            target.flush();
+        }
+
+        private void drain() throws IOException {
+            if (len == 0) return;
+            target.write(buf, 0, len);
+            len = 0;
+        }
+    }
+
+    // Lines are read from stdin on a daemon thread. nextLine() flushes the screen first and, while
+    // it waits, reports background tasks that finish.
+    static final class ConsoleInput {
+        private static final Object EOF = new Object(); // queued after the last line
+        private final BlockingQueue<Object> lines = new LinkedBlockingQueue<>();
+        private final ConsoleOutput out;
+        private boolean closed;
+
+        ConsoleInput(InputStream in, ConsoleOutput out) {
+            this.out = out;
+            Thread t = new Thread(() -> {
+                try (BufferedReader br = new BufferedReader(new InputStreamReader(in))) {
+                    String line;
+                    while ((line = br.readLine()) != null) lines.put(line);
+                } catch (IOException | InterruptedException ignored) {
+                    // treated as end of input
+                }
+                lines.add(EOF);
+            }, "console-reader");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        // Throws NoSuchElementException at end of input, as Scanner did.
+        String nextLine() {
+            if (closed) throw new NoSuchElementException("No line found");
+            try {
+                showNotices(true);
+                out.flush();
+                Object line;
+                while ((line = lines.poll(200, TimeUnit.MILLISECONDS)) == null) {
+                    showNotices(false);
+                    if (out.hasPending()) out.flush();
+                }
+                if (line == EOF) {
+                    closed = true;
+                    throw new NoSuchElementException("No line found");
+                }
+                return (String) line;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new NoSuchElementException("Interrupted");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void showNotices(boolean withProgress) throws IOException {
+            String n = BackgroundTasks.takeNotices(withProgress);
+            if (!n.isEmpty()) out.interject(n);
+        }
+    }
+
+    // Progress of a long file operation, updated by the worker and read by the console thread.
+    static final class Progress {
+        static final Progress NONE = new Progress();
+        private final AtomicLong done = new AtomicLong();
+        private volatile long total;
+        private volatile String stage = "starting";
+
+        void begin(String stage, long total) {
+            if (this == NONE) return;
+            this.stage = stage;
+            this.total = total;
+            done.set(0);
+        }
+
+        void step() {
+            if (this != NONE) done.incrementAndGet();
+        }
+
+        void step(int n) {
+            if (this != NONE) done.addAndGet(n);
+        }
+
+        String describe() {
+            long t = total;
+            return t > 0 ? stage + " " + Math.min(done.get(), t) * 100 / t + "%" : stage;
+        }
+    }
+
+    // Save, load, backup, restore and CSV export run one at a time on a background thread so the
+    // menus stay usable; results are reported before the next prompt.
+    static final class BackgroundTasks {
+        interface Task { String run(Progress p) throws Exception; }
+
+        private static final class Job {
+            final String name;
+            final Progress progress = new Progress();
+            Job(String name) { this.name = name; }
+        }
+
+        private static final ExecutorService EXEC = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "background-io");
+            t.setDaemon(true);
+            return t;
+        });
+        private static final ConcurrentLinkedQueue<String> notices = new ConcurrentLinkedQueue<>();
+        private static final AtomicInteger queued = new AtomicInteger();
+        private static volatile Job running;
+        private static String lastStatus = "";
+
+        static void submit(String name, Task task) { submit(name, task, true); }
+
+        // Scheduled jobs pass announce=false: no start line, and no completion notice if the task returns null.
+        static void submit(String name, Task task, boolean announce) {
+            Job job = new Job(name);
+            queued.incrementAndGet();
+            EXEC.execute(() -> {
+                running = job;
+                long t0 = System.nanoTime();
+                try {
+                    String result = task.run(job.progress);
+                    if (announce || result != null) {
+                        notices.add(String.format("[done] %s%s (%.1fs)", name, result == null ? "" : ": " + result, (System.nanoTime() - t0) / 1e9));
+                    }
+                } catch (Exception e) {
+                    notices.add("[failed] " + name + ": " + e.getMessage());
+                } finally {
+                    running = null;
+                    queued.decrementAndGet();
+                }
+            });
+            if (announce) System.out.println(name + " started in the background.");
+        }
+
+        static boolean busy() { return queued.get() > 0; }
+
+        // Finished-task lines, plus the running task's progress if asked for and changed since last shown.
+        static synchronized String takeNotices(boolean withProgress) {
+            StringBuilder sb = new StringBuilder();
+            String n;
+            while ((n = notices.poll()) != null) sb.append(n).append('\n');
+            if (withProgress) {
+                Job j = running;
+                String status = j == null ? "" : "[running] " + j.name + " - " + j.progress.describe();
+                if (!status.isEmpty() && !status.equals(lastStatus)) sb.append(status).append('\n');
+                lastStatus = status;
+            }
+            return sb.toString();
+        }
+
+        // Used on exit: waits for queued tasks, printing progress about once a second.
+        static void awaitIdle() {
+            long nextReport = 0;
+            while (busy()) {
+                if (System.nanoTime() >= nextReport) {
+                    System.out.print(takeNotices(true));
+                    System.out.flush();
+                    nextReport = System.nanoTime() + 1_000_000_000L;
+                }
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            System.out.print(takeNotices(false));
+        }
+    }
+
+    // ====== Admission Control ======
+    // Guards ticket intake against bursts (an outage brings everyone in at once). A submission
+    // first needs a token from its user's bucket (srs.submitsPerMinute, srs.submitBurst), then a
+    // place in a bounded intake queue (srs.submitQueue) drained by a fixed number of workers
+    // (srs.maxConcurrentSubmits). Entries that waited longer than srs.submitWaitMs are dropped
+    // rather than run late. Whatever is turned away is told so at once, so the work in the
+    // system stays bounded and the latency of what is admitted with it.
+    static final class Admission {
+        enum Refusal {
+            RATE_LIMITED("You are submitting too quickly; please wait a minute and try again."),
+            QUEUE_FULL("The system is busy; please try again shortly."),
+            TIMED_OUT("The system is busy; please try again shortly.");
+
+            final String message;
+            Refusal(String message) { this.message = message; }
+        }
+
+        static final class RefusedException extends IllegalStateException {
+            private static final long serialVersionUID = 1L;
+
+            final Refusal reason;
+
+            RefusedException(Refusal reason) {
+                super(reason.message);
+                this.reason = reason;
+            }
+
+            // Refusals are expected under load and cheap to make; the stack says nothing useful.
+            @Override
+            public synchronized Throwable fillInStackTrace() { return this; }
+        }
+
+        private static final int MAX_BUCKETS = 100_000; // idle full buckets are dropped beyond this
+        private static final Metrics.Timer T_WAIT = Metrics.timer("admission.queue_wait");
+        private static final LongAdder QUEUED = Metrics.counter("submissions_queued");
+        private static final LongAdder ADMITTED = Metrics.counter("submissions_admitted");
+        private static final LongAdder RATE_LIMITED = Metrics.counter("submissions_rejected_rate_limit");
+        private static final LongAdder QUEUE_FULL = Metrics.counter("submissions_rejected_queue_full");
+        private static final LongAdder TIMED_OUT = Metrics.counter("submissions_rejected_timeout");
+
+        static final class TokenBucket {
+            private final double capacity, perNano;
+            private double tokens;
+            private long last;
+
+            TokenBucket(double capacity, double perMinute, long now) {
+                this.capacity = capacity;
+                this.perNano = perMinute / 60e9;
+                this.tokens = capacity;
+                this.last = now;
+            }
+
+            private void refill(long now) {
+                tokens = Math.min(capacity, tokens + (now - last) * perNano);
+                last = now;
+            }
+
+            synchronized boolean tryTake(long now) {
+                refill(now);
+                if (tokens < 1) return false;
+                tokens -= 1;
+                return true;
+            }
+
+            // A submission that was turned away later does not count against the user.
+            synchronized void giveBack() { tokens = Math.min(capacity, tokens + 1); }
+
+            synchronized boolean isFull(long now) {
+                refill(now);
+                return tokens >= capacity;
+            }
+        }
+
+        private final double perMinute, burst;
+        private final int workers, queueCapacity;
+        private final long waitNanos;
+        private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+        private volatile int sweepAt = MAX_BUCKETS; // doubles while sweeps free too little, so they stay rare
+        private final ThreadPoolExecutor intake;
+
+        Admission(double perMinute, double burst, int workers, int queueCapacity, long waitMillis) {
+            this.perMinute = perMinute;
+            this.burst = burst;
+            this.workers = workers;
+            this.queueCapacity = queueCapacity;
+            this.waitNanos = waitMillis * 1_000_000L;
+            AtomicInteger n = new AtomicInteger();
+            this.intake = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(queueCapacity), r -> {
+                        Thread t = new Thread(r, "intake-" + n.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }, new ThreadPoolExecutor.AbortPolicy());
+        }
+
+        static Admission fromProperties() {
+            return new Admission(Integer.getInteger("srs.submitsPerMinute", 6), Integer.getInteger("srs.submitBurst", 3),
+                    Integer.getInteger("srs.maxConcurrentSubmits", Math.max(2, Runtime.getRuntime().availableProcessors())),
+                    Integer.getInteger("srs.submitQueue", 1024), Integer.getInteger("srs.submitWaitMs", 500));
+        }
+
+        // Queues work for the intake workers. The future fails with RefusedException, whose message
+        // is meant for the user, if the submission is turned away.
+        <T> CompletableFuture<T> submit(String user, Supplier<T> work) {
+            CompletableFuture<T> result = new CompletableFuture<>();
+            long now = System.nanoTime();
+            String key = user == null ? "" : user.trim().toLowerCase(Locale.ROOT);
+            TokenBucket bucket = buckets.computeIfAbsent(key, k -> new TokenBucket(burst, perMinute, now));
+            if (!bucket.tryTake(now)) return refuse(result, Refusal.RATE_LIMITED, RATE_LIMITED);
+            if (buckets.size() > sweepAt) sweep(now);
+            try {
+                intake.execute(() -> {
+                    long waited = System.nanoTime() - now;
+                    T_WAIT.record(waited);
+                    if (waited > waitNanos) {
+                        bucket.giveBack();
+                        refuse(result, Refusal.TIMED_OUT, TIMED_OUT);
+                        return;
+                    }
+                    ADMITTED.increment();
+                    try {
+                        result.complete(work.get());
+                    } catch (Throwable e) {
+                        result.completeExceptionally(e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                bucket.giveBack();
+                return refuse(result, Refusal.QUEUE_FULL, QUEUE_FULL);
+            }
+            QUEUED.increment();
+            return result;
+        }
+
+        private synchronized void sweep(long now) {
+            if (buckets.size() <= sweepAt) return;
+            buckets.values().removeIf(b -> b.isFull(now));
+            sweepAt = Math.max(MAX_BUCKETS, buckets.size() * 2);
+        }
+
+        private static <T> CompletableFuture<T> refuse(CompletableFuture<T> f, Refusal why, LongAdder counter) {
+            counter.increment();
+            f.completeExceptionally(new RefusedException(why));
+            return f;
+        }
+
+        // Submits and waits; refusals and failures of work are rethrown as they are.
+        <T> T run(String user, Supplier<T> work) {
+            try {
+                return submit(user, work).join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                if (e.getCause() instanceof Error) throw (Error) e.getCause();
+                throw e;
+            }
+        }
+
+        int waiting() { return intake.getQueue().size(); }
+        int inFlight() { return intake.getActiveCount(); }
+
+        void shutdown() { intake.shutdown(); }
+
+        String settings() {
+            return String.format("%.0f/min per user (burst %.0f), %d workers, queue %d, wait %d ms",
+                    perMinute, burst, workers, queueCapacity, waitNanos / 1_000_000);
+        }
+    }
+
+    // Open-loop load test of ticket intake: arrivals come at a fixed Poisson rate whether or not
+    // earlier ones have finished, from many users with a few resubmitting heavily. The normal rate
+    // is a fifth of the throughput measured up front; it is run as is and at ten times, with and
+    // without admission control. Latency runs from the hand-off to intake to completion; "Late" is
+    // how far behind schedule arrivals were handed off on average, i.e. whether the generator kept
+    // up (on a machine with few cores it competes with the workers). Nothing is written to disk.
+    static class AdmissionBench {
+        private static final int USERS = 100_000;
+        private static final int CLIENTS = 256;
+
+        static void run(int seconds) {
+            Admission limits = Admission.fromProperties();
+            System.out.println("Admission: " + limits.settings());
+            double capacity = measureCapacity();
+            double normal = capacity / 5;
+            System.out.printf("Measured intake capacity: %.0f submissions/s; normal rate: %.0f/s%n%n", capacity, normal);
+            System.out.printf("%-36s | %8s | %8s | %8s | %8s | %9s | %9s | %9s | %8s%n",
+                    "Phase", "Arrived", "Done", "Limited", "Shed", "p50 ms", "p99 ms", "max ms", "Late ms");
+            System.out.println(String.join("", Collections.nCopies(125, "-")));
+            phase("1x, admission on", normal, seconds, Admission.fromProperties());
+            phase("10x, admission on", normal * 10, seconds, Admission.fromProperties());
+            phase("10x, no admission control", normal * 10, seconds, null);
+        }
+
+        private static String email(int i) { return "user" + i + "@example.com"; }
+
+        private static void submit(RequestManager rm, int i) {
+            User u = rm.findOrCreateUserByEmail(email(i), "User " + i, "Ops", "USER", "000");
+            rm.createRequest(u, CATEGORY_GROUPS[i % CATEGORY_GROUPS.length], PRIORITIES[i % PRIORITIES.length],
+                    "Cannot connect to VPN " + i, "Outage report from user " + i);
+        }
+
+        // Closed loop, one submission per client at a time, for one second after warm-up.
+        private static double measureCapacity() {
+            RequestManager rm = new RequestManager();
+            int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+            LongAdder done = new LongAdder();
+            for (int round = 0; round < 2; round++) {
+                done.reset();
+                long end = System.nanoTime() + 1_000_000_000L;
+                List<Thread> ts = new ArrayList<>();
+                for (int t = 0; t < threads; t++) {
+                    int seed = t;
+                    Thread th = new Thread(() -> {
+                        Random rnd = new Random(seed);
+                        while (System.nanoTime() < end) {
+                            submit(rm, rnd.nextInt(USERS));
+                            done.increment();
+                        }
+                    });
+                    th.start();
+                    ts.add(th);
+                }
+                for (Thread th : ts) {
+                    try { th.join(); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+                }
+            }
+            return done.sum();
+        }
+
+        private static void phase(String name, double rate, int seconds, Admission admission) {
+            RequestManager rm = new RequestManager();
+            // Without admission control every arrival is run, by as many client threads as there are.
+            ThreadPoolExecutor clients = admission != null ? null : new ThreadPoolExecutor(CLIENTS, CLIENTS,
+                    0, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+            Histogram latency = new Histogram(); // microseconds
+            LongAdder limited = new LongAdder(), shed = new LongAdder();
+            LongAdder finished = new LongAdder();
+            long lateNanos = 0;
+            Random rnd = new Random(42);
+            long start = System.nanoTime(), end = start + seconds * 1_000_000_000L;
+            long arrived = 0;
+            double next = start;
+            while (next < end) {
+                long at = (long) next;
+                for (long ahead; (ahead = at - System.nanoTime()) > 0; ) {
+                    if (ahead > 100_000) LockSupport.parkNanos(ahead - 50_000);
+                    else Thread.yield();
+                }
+                // One arrival in five comes from one of ten users hammering the submit button.
+                int user = rnd.nextInt(5) == 0 ? rnd.nextInt(10) : 10 + rnd.nextInt(USERS);
+                long handedOff = System.nanoTime();
+                lateNanos += handedOff - at;
+                Supplier<Void> work = () -> {
+                    submit(rm, user);
+                    return null;
+                };
+                CompletableFuture<Void> f = admission != null ? admission.submit(email(user), work)
+                        : CompletableFuture.supplyAsync(work, clients);
+                f.whenComplete((v, e) -> {
+                    if (e == null) {
+                        long micros = (System.nanoTime() - handedOff) / 1000;
+                        synchronized (latency) {
+                            latency.record(micros);
+                        }
+                    } else if (e instanceof Admission.RefusedException && ((Admission.RefusedException) e).reason == Admission.Refusal.RATE_LIMITED) {
+                        limited.increment();
+                    } else {
+                        shed.increment();
+                    }
+                    finished.increment();
+                });
+                arrived++;
+                next += -Math.log(1 - rnd.nextDouble()) / rate * 1e9;
+            }
+            while (finished.sum() < arrived) LockSupport.parkNanos(1_000_000);
+            if (clients != null) clients.shutdown();
+            if (admission != null) admission.shutdown();
+            System.out.printf("%-36s | %8d | %8d | %8d | %8d | %9.1f | %9.1f | %9.1f | %8.1f%n", String.format("%s (%.0f/s)", name, rate),
+                    arrived, latency.count(), limited.sum(), shed.sum(), latency.percentile(50) / 1000.0,
+                    latency.percentile(99) / 1000.0, latency.percentile(100) / 1000.0, lateNanos / 1e6 / Math.max(1, arrived));
+        }
+    }
+
+    // ====== Maintenance ======
+    // Scheduled housekeeping in three steps:
+    //   1. close tickets RESOLVED more than srs.autoCloseDays days ago (default 7, 0 = never);
+    //   2. move CLOSED tickets not updated for srs.retentionDays days (default 365, 0 = keep) to
+    //      data/archive/requests-<yyyy-MM>.gz and drop them from memory;
+    //   3. prune IDs of tickets that no longer exist from users' request histories.
+    // Each step handles BATCH tickets or users per lock hold and pauses briefly between batches, so
+    // menus stay responsive. It runs as a background task every srs.maintenanceMinutes minutes
+    // (default 60, 0 = only when started from Data Management), which keeps it from overlapping a
+    // load, restore or save; the changes go out in one incremental save at the end.
+    static final class Maintenance {
+        static final int BATCH = 256;
+        private static final long PAUSE_MS = 2;
+        private static final Metrics.Timer T_RUN = Metrics.timer("maintenance.run");
+        private static final LongAdder AUTO_CLOSED = Metrics.counter("tickets_auto_closed");
+        private static final LongAdder ARCHIVED = Metrics.counter("tickets_archived");
+        private static final LongAdder PRUNED = Metrics.counter("history_entries_pruned");
+
+        static final class Result {
+            int closed, archived, pruned;
+
+            boolean changedAnything() { return closed + archived + pruned > 0; }
+
+            @Override
+            public String toString() {
+                return closed + " auto-closed, " + archived + " archived, " + pruned + " history entries pruned";
+            }
+        }
+
+        private final RequestManager rm;
+        private final FileHandler files;
+        final int autoCloseDays;
+        final int retentionDays;
+        private final AtomicBoolean pending = new AtomicBoolean();
+
+        Maintenance(RequestManager rm, FileHandler files, int autoCloseDays, int retentionDays) {
+            this.rm = rm;
+            this.files = files;
+            this.autoCloseDays = autoCloseDays;
+            this.retentionDays = retentionDays;
+        }
+
+        static Maintenance fromProperties(RequestManager rm, FileHandler files) {
+            return new Maintenance(rm, files, Integer.getInteger("srs.autoCloseDays", 7), Integer.getInteger("srs.retentionDays", 365));
+        }
+
+        String settings() {
+            return "auto-close after " + (autoCloseDays > 0 ? autoCloseDays + " days" : "never")
+                    + ", archive after " + (retentionDays > 0 ? retentionDays + " days" : "never");
+        }
+
+        // Queues a run every intervalMinutes on a daemon timer; a run still queued is not queued twice.
+        void schedule(long intervalMinutes) {
+            if (intervalMinutes <= 0) return;
+            ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "maintenance-timer");
+                t.setDaemon(true);
+                return t;
+            });
+            timer.scheduleWithFixedDelay(() -> submit(false), intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+        }
+
+        // Scheduled runs report only when they changed something.
+        void submit(boolean announce) {
+            if (rm.isReadOnly() || !pending.compareAndSet(false, true)) return;
+            BackgroundTasks.submit("Maintenance", pr -> {
+                pending.set(false);
+                Result res = run(pr);
+                if (!res.changedAnything()) return announce ? "nothing to do" : null;
+                files.saveData(pr);
+                return res + ", saved";
+            }, announce);
+        }
+
+        Result run(Progress progress) throws IOException {
+            long t0 = T_RUN.start();
+            try {
+                Result res = new Result();
+                if (rm.isReadOnly()) return res;
+                LocalDateTime now = LocalDateTime.now();
+                if (autoCloseDays > 0) res.closed = autoClose(now.minusDays(autoCloseDays), progress);
+                if (retentionDays > 0) res.archived = archive(now.minusDays(retentionDays), now, progress);
+                res.pruned = pruneHistories(progress);
+                AUTO_CLOSED.add(res.closed);
+                ARCHIVED.add(res.archived);
+                PRUNED.add(res.pruned);
+                return res;
+            } finally {
+                T_RUN.stop(t0);
+            }
+        }
+
+        private int autoClose(LocalDateTime cutoff, Progress progress) {
+            Predicate<ServiceRequest> due = r -> "RESOLVED".equals(r.status) && r.resolvedDate != null && r.resolvedDate.isBefore(cutoff);
+            List<ServiceRequest> targets = rm.matchAll(new RequestQuery(idx -> idx.resolved.view(null, cutoff), due));
+            progress.begin("auto-closing", targets.size());
+            int closed = 0;
+            for (int i = 0; i < targets.size(); i += BATCH) {
+                List<ServiceRequest> batch = targets.subList(i, Math.min(targets.size(), i + BATCH));
+                closed += rm.bulkUpdate(batch, BulkChange.status("CLOSED", "MAINTENANCE", null).onlyIf(due), Progress.NONE).changed;
+                progress.step(batch.size());
+                pause();
+            }
+            return closed;
+        }
+
+        // A batch is appended to the archive before it leaves memory, so a crash in between leaves
+        // a ticket in both places rather than in neither. A ticket that changes in that window stays
+        // live; the archive then holds an older copy of it.
+        private int archive(LocalDateTime cutoff, LocalDateTime now, Progress progress) throws IOException {
+            Predicate<ServiceRequest> expired = r -> "CLOSED".equals(r.status) && r.lastUpdated != null && r.lastUpdated.isBefore(cutoff);
+            List<ServiceRequest> targets = rm.matchAll(new RequestQuery(idx -> idx.updated.view(null, cutoff), expired));
+            progress.begin("archiving", targets.size());
+            int archived = 0;
+            for (int i = 0; i < targets.size(); i += BATCH) {
+                List<ServiceRequest> batch = targets.subList(i, Math.min(targets.size(), i + BATCH));
+                files.appendArchive(batch, now.toLocalDate());
+                archived += rm.dropArchived(batch, expired);
+                progress.step(batch.size());
+                pause();
+            }
+            return archived;
+        }
+
+        private int pruneHistories(Progress progress) {
+            int users = rm.userCount();
+            progress.begin("pruning histories", users);
+            int pruned = 0;
+            for (int i = 0; i < users; i += BATCH) {
+                pruned += rm.pruneHistories(i, i + BATCH);
+                progress.step(Math.min(BATCH, users - i));
+                pause();
+            }
+            return pruned;
+        }
+
+        private static void pause() {
+            try {
+                Thread.sleep(PAUSE_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // ====== Notifications ======
+    // Ticket owners hear about status changes, assignments and comments through an outbox. The
+    // mutation path only adds a record to an in-memory queue while it holds the shard lock; it never
+    // touches the disk. Records are numbered and appended to data/outbox/outbox.log (fsync'd) by the
+    // dispatcher and by every save before any ticket file is written, so a saved change always has
+    // its notification on disk. The dispatcher runs every srs.notifySeconds seconds (default 5,
+    // 0 = only from Data Management), groups pending records into one digest per recipient, hands
+    // the digests to the sink and only then advances data/outbox/outbox.ack. A crash between delivery
+    // and the ack sends those digests again after restart (at-least-once); each digest carries its
+    // record numbers so a consumer can drop repeats.
+    static final class Notification {
+        enum Kind { STATUS, ASSIGN, COMMENT }
+
+        long seq; // 0 until written to the log
+        final LocalDateTime at;
+        final String recipient;
+        final String ticketId;
+        final String title;
+        final Kind kind;
+        final String text;
+
+        Notification(long seq, LocalDateTime at, String recipient, String ticketId, String title, Kind kind, String text) {
+            this.seq = seq;
+            this.at = at;
+            this.recipient = recipient;
+            this.ticketId = ticketId;
+            this.title = title;
+            this.kind = kind;
+            this.text = text;
+        }
+
+        String format() {
+            return seq + "|" + at + "|" + kind + "|" + ticketId + "|" + FileHandler.enc(recipient) + "|"
+                    + FileHandler.enc(title) + "|" + FileHandler.enc(text);
+        }
+
+        // Returns null for a line that cannot be read (the torn tail of an interrupted append).
+        static Notification parse(String line) {
+            String[] f = line.split("\\|", -1);
+            if (f.length != 7) return null;
+            try {
+                return new Notification(Long.parseLong(f[0]), LocalDateTime.parse(f[1]), FileHandler.dec(f[4]), f[3],
+                        FileHandler.dec(f[5]), Kind.valueOf(f[2]), FileHandler.dec(f[6]));
+            } catch (RuntimeException e) {
+                return null;
+            }
+        }
+    }
+
+    // Everything one recipient has pending, in record order.
+    static final class Digest {
+        final String recipient;
+        final List<Notification> items = new ArrayList<>();
+
+        Digest(String recipient) { this.recipient = recipient; }
+
+        long firstSeq() { return items.get(0).seq; }
+        long lastSeq() { return items.get(items.size() - 1).seq; }
+
+        String subject() {
+            if (items.size() == 1) return "Update on " + items.get(0).ticketId + ": " + items.get(0).title;
+            return items.size() + " updates on your service requests";
+        }
+
+        // Grouped by ticket, oldest first.
+        String body() {
+            Map<String, List<Notification>> byTicket = new LinkedHashMap<>();
+            for (Notification n : items) byTicket.computeIfAbsent(n.ticketId, k -> new ArrayList<>()).add(n);
+            StringBuilder sb = new StringBuilder();
+            for (List<Notification> list : byTicket.values()) {
+                sb.append(list.get(0).ticketId).append(" - ").append(list.get(0).title).append('\n');
+                for (Notification n : list) {
+                    sb.append("  [").append(n.at.format(DTF)).append("] ");
+                    switch (n.kind) {
+                        case STATUS: sb.append("Status: "); break;
+                        case ASSIGN: sb.append("Assigned: "); break;
+                        default: sb.append("Comment: ");
+                    }
+                    sb.append(n.text).append('\n');
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    // Where digests go. deliver must not return before the digests are stored durably; if it
+    // throws, none of them count as delivered and all are offered again on the next run.
+    interface NotificationSink {
+        void deliver(List<Digest> digests) throws IOException;
+        String describe();
+
+        // srs.notifySink=file (default) appends to notifications/digests.log under the data directory;
+        // srs.notifySink=mail drops one RFC 822 message per digest into notifications/outgoing/ there
+        // for a mail relay to pick up.
+        static NotificationSink fromProperties(Path dataDir) {
+            Path dir = dataDir.resolve("notifications");
+            String kind = System.getProperty("srs.notifySink", "file");
+            if (kind.equalsIgnoreCase("mail")) {
+                return new MailDropSink(dir.resolve("outgoing"), System.getProperty("srs.notifyFrom", "service-desk@localhost"));
+            }
+            if (!kind.equalsIgnoreCase("file")) throw new IllegalArgumentException("Unknown notification sink: " + kind);
+            return new FileSink(dir.resolve("digests.log"));
+        }
+    }
+
+    static final class FileSink implements NotificationSink {
+        private final Path file;
+
+        FileSink(Path file) { this.file = file; }
+
+        @Override
+        public void deliver(List<Digest> digests) throws IOException {
+            StringBuilder sb = new StringBuilder();
+            String now = LocalDateTime.now().format(DTF);
+            for (Digest d : digests) {
+                sb.append("=== ").append(now).append(" to ").append(d.recipient)
+                        .append(" (#").append(d.firstSeq()).append("-#").append(d.lastSeq()).append(")\n")
+                        .append("Subject: ").append(d.subject()).append('\n').append(d.body()).append('\n');
+            }
+            if (file.getParent() != null) Files.createDirectories(file.getParent());
+            try (FileOutputStream out = new FileOutputStream(file.toFile(), true)) {
+                out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+                out.getFD().sync();
+            }
+        }
+
+        @Override
+        public String describe() { return "file " + file; }
+    }
+
+    // Stand-in for an SMTP relay: each digest becomes <first record>-<recipient>.eml in dir. A digest
+    // sent again after a crash has the same name and replaces the earlier copy.
+    static final class MailDropSink implements NotificationSink {
+        private final Path dir;
+        private final String from;
+
+        MailDropSink(Path dir, String from) {
+            this.dir = dir;
+            this.from = from;
+        }
+
+        @Override
+        public void deliver(List<Digest> digests) throws IOException {
+            Files.createDirectories(dir);
+            String date = ZonedDateTime.now().format(DateTimeFormatter.RFC_1123_DATE_TIME);
+            for (Digest d : digests) {
+                String msg = "From: " + from + "\r\nTo: " + d.recipient + "\r\nSubject: " + d.subject()
+                        + "\r\nDate: " + date + "\r\nMessage-ID: <srs-" + d.firstSeq() + "-" + d.lastSeq() + "@localhost>"
+                        + "\r\nX-Outbox-Seq: " + d.firstSeq() + "-" + d.lastSeq()
+                        + "\r\nContent-Type: text/plain; charset=UTF-8\r\n\r\n" + d.body().replace("\n", "\r\n");
+                String name = String.format("%012d-%s.eml", d.firstSeq(), d.recipient.replaceAll("[^A-Za-z0-9@._-]", "_"));
+                Path tmp = dir.resolve(name + ".tmp");
+                try (FileChannel ch = FileChannel.open(tmp,
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    ch.write(ByteBuffer.wrap(msg.getBytes(StandardCharsets.UTF_8)));
+                    ch.force(true);
+                }
+                Files.move(tmp, dir.resolve(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+
+        @Override
+        public String describe() { return "mail drop " + dir; }
+    }
+
+    // Records stay in memory (and are not kept at all) until attach binds the outbox to a directory,
+    // so benchmarks, tests and a standby never build up a queue.
+    static final class Outbox {
+        static final int MAX_BATCH = 5000; // records per delivery
+        private static final int COMPACT_LINES = 10_000;
+        private static final LongAdder QUEUED = Metrics.counter("notifications_queued");
+        private static final LongAdder DELIVERED = Metrics.counter("notifications_delivered");
+        private static final LongAdder DIGESTS = Metrics.counter("notification_digests_delivered");
+        private static final LongAdder FAILED = Metrics.counter("notification_delivery_failures");
+        private static final Metrics.Timer T_PERSIST = Metrics.timer("outbox.persist");
+        private static final Metrics.Timer T_DISPATCH = Metrics.timer("outbox.dispatch");
+
+        private final ConcurrentLinkedQueue<Notification> fresh = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger unlogged = new AtomicInteger();
+        private final Object delivering = new Object(); // one delivery at a time; the outbox lock is not held while the sink works
+        private volatile boolean enabled = false;
+
+        // Guarded by this.
+        private final List<Notification> unwritten = new ArrayList<>(); // taken from fresh, append failed
+        private final ArrayDeque<Notification> logged = new ArrayDeque<>(); // on disk, not yet acknowledged
+        private Path log;
+        private Path ackFile;
+        private long lastSeq;
+        private long acked;
+        private long logBytes; // end of the last complete record
+        private int logLines;
+
+        // Called under the ticket's shard lock; never blocks.
+        void record(ServiceRequest r, Notification.Kind kind, String text) {
+            if (!enabled || r.userEmail == null || r.userEmail.isBlank()) return;
+            fresh.add(new Notification(0, LocalDateTime.now(), r.userEmail, r.ticketId, r.subject, kind, text));
+            unlogged.incrementAndGet();
+            QUEUED.increment();
+        }
+
+        int pending() {
+            synchronized (this) {
+                return logged.size() + unwritten.size() + unlogged.get();
+            }
+        }
+
+        // Binds the outbox to dir and reloads the records not yet acknowledged. Records not written
+        // yet are dropped, like the unsaved changes they describe. The log is rewritten without the
+        // acknowledged records and any torn tail.
+        synchronized int attach(Path dir) throws IOException {
+            Files.createDirectories(dir);
+            log = dir.resolve("outbox.log");
+            ackFile = dir.resolve("outbox.ack");
+            fresh.clear();
+            unlogged.set(0);
+            unwritten.clear();
+            logged.clear();
+            acked = 0;
+            if (Files.exists(ackFile)) {
+                String text = new String(Files.readAllBytes(ackFile), StandardCharsets.UTF_8).trim();
+                if (!text.isEmpty()) acked = Long.parseLong(text);
+            }
+            lastSeq = acked;
+            if (Files.exists(log)) {
+                for (String line : Files.readAllLines(log, StandardCharsets.UTF_8)) {
+                    Notification n = Notification.parse(line);
+                    if (n == null) continue;
+                    lastSeq = Math.max(lastSeq, n.seq);
+                    if (n.seq > acked) logged.add(n);
+                }
+            }
+            rewriteLog();
+            enabled = true;
+            return logged.size();
+        }
+
+        // Numbers everything recorded so far and appends it to the log. Returns the number written.
+        synchronized int persist() throws IOException {
+            if (log == null) return 0;
+            for (Notification n; (n = fresh.poll()) != null; ) {
+                unlogged.decrementAndGet();
+                unwritten.add(n);
+            }
+            if (unwritten.isEmpty()) return 0;
+            long t0 = T_PERSIST.start();
+            try {
+                long seq = lastSeq;
+                StringBuilder sb = new StringBuilder();
+                for (Notification n : unwritten) {
+                    n.seq = ++seq;
+                    sb.append(n.format()).append('\n');
+                }
+                byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+                try (FileChannel ch = FileChannel.open(log,
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    ch.truncate(logBytes); // drops what a failed append may have left behind
+                    ByteBuffer buf = ByteBuffer.wrap(bytes);
+                    for (long pos = logBytes; buf.hasRemaining(); ) pos += ch.write(buf, pos);
+                    ch.force(false);
+                }
+                lastSeq = seq;
+                logBytes += bytes.length;
+                logLines += unwritten.size();
+                logged.addAll(unwritten);
+                int written = unwritten.size();
+                unwritten.clear();
+                return written;
+            } finally {
+                T_PERSIST.stop(t0);
+            }
+        }
+
+        // Delivers up to MAX_BATCH pending records as one digest per recipient, then acknowledges
+        // them. Returns the number of records delivered.
+        int dispatch(NotificationSink sink) throws IOException {
+            synchronized (delivering) {
+                long t0 = T_DISPATCH.start();
+                try {
+                    Map<String, Digest> byRecipient = new LinkedHashMap<>();
+                    int count = 0;
+                    long upTo;
+                    synchronized (this) {
+                        persist();
+                        upTo = acked;
+                        for (Notification n : logged) {
+                            if (count == MAX_BATCH) break;
+                            byRecipient.computeIfAbsent(n.recipient.toLowerCase(Locale.ROOT), k -> new Digest(n.recipient)).items.add(n);
+                            upTo = n.seq;
+                            count++;
+                        }
+                    }
+                    if (count == 0) return 0;
+                    try {
+                        sink.deliver(new ArrayList<>(byRecipient.values()));
+                    } catch (IOException | RuntimeException e) {
+                        FAILED.increment();
+                        throw e;
+                    }
+                    synchronized (this) {
+                        writeAck(upTo);
+                        while (!logged.isEmpty() && logged.peekFirst().seq <= upTo) logged.pollFirst();
+                        if (logged.isEmpty() || (logLines > COMPACT_LINES && logLines > 2 * logged.size())) rewriteLog();
+                    }
+                    DELIVERED.add(count);
+                    DIGESTS.add(byRecipient.size());
+                    return count;
+                } finally {
+                    T_DISPATCH.stop(t0);
+                }
+            }
+        }
+
+        private void writeAck(long seq) throws IOException {
+            Path tmp = ackFile.resolveSibling(ackFile.getFileName() + ".tmp");
+            try (FileChannel ch = FileChannel.open(tmp,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ch.write(ByteBuffer.wrap((seq + "\n").getBytes(StandardCharsets.UTF_8)));
+                ch.force(true);
+            }
+            Files.move(tmp, ackFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            acked = Math.max(acked, seq);
+        }
+
+        // Replaces the log with just the records still pending.
+        private void rewriteLog() throws IOException {
+            StringBuilder sb = new StringBuilder();
+            for (Notification n : logged) sb.append(n.format()).append('\n');
+            byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+            Path tmp = log.resolveSibling(log.getFileName() + ".tmp");
+            try (FileChannel ch = FileChannel.open(tmp,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ch.write(ByteBuffer.wrap(bytes));
+                ch.force(true);
+            }
+            Files.move(tmp, log, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logBytes = bytes.length;
+            logLines = logged.size();
+        }
+    }
+
+    // Runs Outbox.dispatch on a daemon timer. A failed delivery is counted and retried on the next
+    // tick; nothing is lost, since records are only acknowledged after the sink accepted them.
+    static final class NotificationDispatcher {
+        private final Outbox outbox;
+        private final NotificationSink sink;
+        private volatile String lastError;
+
+        NotificationDispatcher(Outbox outbox, NotificationSink sink) {
+            this.outbox = outbox;
+            this.sink = sink;
+        }
+
+        static NotificationDispatcher fromProperties(Outbox outbox, Path dataDir) {
+            return new NotificationDispatcher(outbox, NotificationSink.fromProperties(dataDir));
+        }
+
+        String settings() {
+            return outbox.pending() + " pending, to " + sink.describe() + (lastError != null ? ", last error: " + lastError : "");
+        }
+
+        void schedule(long intervalSeconds) {
+            if (intervalSeconds <= 0) return;
+            ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "notify-dispatcher");
+                t.setDaemon(true);
+                return t;
+            });
+            timer.scheduleWithFixedDelay(() -> {
+                try {
+                    flush();
+                } catch (IOException | RuntimeException e) {
+                    lastError = e.getMessage();
+                }
+            }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        }
+
+        // Delivers everything pending. Returns the number of records delivered.
+        int flush() throws IOException {
+            int total = 0;
+            for (int n; (n = outbox.dispatch(sink)) > 0; ) total += n;
+            lastError = null;
+            return total;
+        }
+    }
+
+    // ====== File I/O ======
+    // Optional Deflate codec for data files, enabled with -Dsrs.compress=true. Each segment and user
+    // page is one block: a 4-byte raw length, then a zlib stream primed with a preset dictionary
+    // trained on the data. Blocks decode independently, so files still load in parallel.
+    // Dictionaries are kept in data/dict/<adler32>.dict; a stream names its dictionary by Adler-32.
+    static final class StorageCodec {
+        static final String PLAIN = ".txt";
+        static final String PACKED = ".dz";
+        private static final int DICT_SIZE = 32 * 1024;
+        private static final Metrics.Timer T_DECODE = Metrics.timer("file.decode_block");
+        private static final LongAdder DECODED_BYTES = Metrics.counter("data_bytes_decoded");
+
+        final boolean compress;
+        private final Path dictDir;
+        private final Map<Integer, byte[]> dictionaries = new ConcurrentHashMap<>();
+        private volatile byte[] current; // used for new blocks; null = no dictionary
+
+        StorageCodec(Path dictDir, boolean compress) {
+            this.dictDir = dictDir;
+            this.compress = compress;
+        }
+
+        String extension() { return compress ? PACKED : PLAIN; }
+        String otherExtension() { return compress ? PLAIN : PACKED; }
+        boolean hasDictionary() { return current != null; }
+
+        String describe() {
+            if (!compress) return "plain text";
+            byte[] d = current;
+            return d == null ? "deflate" : String.format("deflate + %d KB dictionary %08x", d.length / 1024, adler(d));
+        }
+
+        // The most recently written dictionary becomes current.
+        void loadDictionaries() throws IOException {
+            dictionaries.clear();
+            current = null;
+            if (!Files.isDirectory(dictDir)) return;
+            long newest = Long.MIN_VALUE;
+            try (Stream<Path> files = Files.list(dictDir)) {
+                for (Path f : files.filter(p -> p.toString().endsWith(".dict")).collect(Collectors.toList())) {
+                    byte[] d = Files.readAllBytes(f);
+                    dictionaries.put(adler(d), d);
+                    long modified = Files.getLastModifiedTime(f).toMillis();
+                    if (modified >= newest) {
+                        newest = modified;
+                        current = d;
+                    }
+                }
+            }
+        }
+
+        // Only safe right before every block is rewritten; older dictionaries stay until retire().
+        void train(List<String> sample) throws IOException {
+            byte[] d = buildDictionary(sample);
+            if (d.length == 0) {
+                current = null;
+                return;
+            }
+            Files.createDirectories(dictDir);
+            Path file = dictDir.resolve(String.format("%08x.dict", adler(d)));
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(tmp, d);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dictionaries.put(adler(d), d);
+            current = d;
+        }
+
+        // After a full rewrite no block refers to any other dictionary.
+        void retire() throws IOException {
+            byte[] keep = compress ? current : null;
+            if (!Files.isDirectory(dictDir)) return;
+            try (Stream<Path> files = Files.list(dictDir)) {
+                for (Path f : files.collect(Collectors.toList())) {
+                    if (keep == null || !f.getFileName().toString().equals(String.format("%08x.dict", adler(keep)))) Files.delete(f);
+                }
+            }
+            dictionaries.keySet().removeIf(id -> keep == null || id != adler(keep));
+        }
+
+        // Frequent field values, most frequent last (Deflate reaches the end of the dictionary most cheaply).
+        static byte[] buildDictionary(List<String> sample) {
+            Map<String, Integer> freq = new HashMap<>();
+            for (String line : sample) {
+                for (String f : line.split("\\|")) {
+                    if (f.length() >= 4 && f.length() <= 512) freq.merge(f, 1, Integer::sum);
+                }
+            }
+            List<Map.Entry<String, Integer>> ranked = freq.entrySet().stream()
+                    .filter(e -> e.getValue() > 1)
+                    .sorted(Comparator.comparingLong((Map.Entry<String, Integer> e) -> (long) (e.getValue() - 1) * e.getKey().length()).reversed())
+                    .collect(Collectors.toList());
+            List<Map.Entry<String, Integer>> chosen = new ArrayList<>();
+            int size = 0;
+            for (Map.Entry<String, Integer> e : ranked) {
+                if (size + e.getKey().length() + 1 > DICT_SIZE) continue;
+                chosen.add(e);
+                size += e.getKey().length() + 1;
+            }
+            chosen.sort(Map.Entry.comparingByValue());
+            StringBuilder sb = new StringBuilder(size);
+            for (Map.Entry<String, Integer> e : chosen) sb.append(e.getKey()).append('|');
+            if (sb.length() == 0) {
+                // nothing repeats yet (a handful of tickets): the tail of the sample itself will do
+                for (String line : sample) sb.append(line).append('\n');
+                if (sb.length() > DICT_SIZE) sb.delete(0, sb.length() - DICT_SIZE);
+            }
+            return sb.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        byte[] encode(List<String> lines) {
+            StringBuilder sb = new StringBuilder();
+            String nl = compress ? "\n" : System.lineSeparator();
+            for (String l : lines) sb.append(l).append(nl);
+            byte[] raw = sb.toString().getBytes(StandardCharsets.UTF_8);
+            if (!compress) return raw;
+            Deflater d = new Deflater(Deflater.DEFAULT_COMPRESSION);
+            try {
+                byte[] dict = current;
+                if (dict != null) d.setDictionary(dict);
+                d.setInput(raw);
+                d.finish();
+                ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4 + 64);
+                out.write(raw.length >>> 24);
+                out.write(raw.length >>> 16);
+                out.write(raw.length >>> 8);
+                out.write(raw.length);
+                byte[] buf = new byte[16 * 1024];
+                while (!d.finished()) out.write(buf, 0, d.deflate(buf));
+                return out.toByteArray();
+            } finally {
+                d.end();
+            }
+        }
+
+        // Reads either format, chosen by file extension.
+        List<String> read(Path file) throws IOException {
+            long t0 = T_DECODE.start();
+            try {
+                byte[] data = Files.readAllBytes(file);
+                byte[] raw = file.getFileName().toString().endsWith(PACKED) ? inflate(data, file) : data;
+                DECODED_BYTES.add(raw.length);
+                List<String> lines = new ArrayList<>();
+                try (BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(raw), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = br.readLine()) != null) lines.add(line);
+                }
+                return lines;
+            } finally {
+                T_DECODE.stop(t0);
+            }
+        }
+
+        private byte[] inflate(byte[] data, Path file) throws IOException {
+            if (data.length < 4) throw new IOException("Truncated block: " + file);
+            int rawLength = (data[0] & 0xff) << 24 | (data[1] & 0xff) << 16 | (data[2] & 0xff) << 8 | (data[3] & 0xff);
+            byte[] raw = new byte[rawLength];
+            Inflater inf = new Inflater();
+            try {
+                inf.setInput(data, 4, data.length - 4);
+                int n = 0;
+                while (n < rawLength) {
+                    int got = inf.inflate(raw, n, rawLength - n);
+                    n += got;
+                    if (got > 0) continue;
+                    if (inf.needsDictionary()) {
+                        byte[] dict = dictionaries.get(inf.getAdler());
+                        if (dict == null) throw new IOException(String.format("Missing dictionary %08x for %s", inf.getAdler(), file));
+                        inf.setDictionary(dict);
+                    } else if (inf.finished() || inf.needsInput()) {
+                        throw new IOException("Truncated block: " + file);
+                    }
+                }
+                return raw;
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt block " + file + ": " + e.getMessage());
+            } finally {
+                inf.end();
+            }
+        }
+
+        private static int adler(byte[] d) {
+            Adler32 a = new Adler32();
+            a.update(d);
+            return (int) a.getValue();
+        }
+    }
+
+    static class FileHandler {
+        private static final Metrics.Timer T_SAVE = Metrics.timer("file.save");
+        private static final Metrics.Timer T_LOAD = Metrics.timer("file.load");
+        private static final Metrics.Timer T_EXPORT_CSV = Metrics.timer("file.export_csv");
+        private static final Metrics.Timer T_EXPORT_DETAILS = Metrics.timer("file.export_details");
+        private static final Metrics.Timer T_EXPORT_ROLLUPS = Metrics.timer("file.export_rollups");
+        private static final Metrics.Timer T_BACKUP = Metrics.timer("file.backup");
+        private static final Metrics.Timer T_RESTORE = Metrics.timer("file.restore");
+        private static final Metrics.Timer T_ARCHIVE = Metrics.timer("file.archive");
+        private static final LongAdder FILE_WRITES = Metrics.counter("data_files_written");
+        private static final LongAdder BYTES_WRITTEN = Metrics.counter("data_bytes_written");
+        private static final LongAdder SHARD_SKIPS = Metrics.counter("shard_files_skipped");
+        // Tickets are stored in segments of consecutive ticket numbers per shard, users in pages by
+        // hash of their ID; a save rewrites only the segments and pages holding dirty records.
+        static final int SEGMENT_SIZE = 1024;
+        static final int USER_PAGES = 64;
+
+        private final RequestManager rm;
+        private final Path dataDir;
+        private final Path exportDir = Paths.get("exports");
+        private final Path requestsFile; // pre-shard layout, still read if present
+        private final Path usersFile; // pre-paging layout, still read if present
+        private final Path shardsDir;
+        private final StorageCodec codec;
+
+        FileHandler(RequestManager rm) { this(rm, Paths.get(System.getProperty("srs.dataDir", "data"))); }
+
+        FileHandler(RequestManager rm, Path dataDir) {
+            this.rm = rm;
+            this.dataDir = dataDir;
+            this.requestsFile = dataDir.resolve("requests.txt");
+            this.usersFile = dataDir.resolve("users.txt");
+            this.shardsDir = dataDir.resolve("shards");
+            this.codec = new StorageCodec(dataDir.resolve("dict"), Boolean.getBoolean("srs.compress"));
+        }
+
+        Path dataDir() { return dataDir; }
+
+        void ensureDirs() throws IOException {
+            if (!Files.exists(dataDir)) Files.createDirectories(dataDir);
+            if (!Files.exists(exportDir)) Files.createDirectories(exportDir);
+        }
+
+        // Pre-segment layout: one file per shard.
+        private Path shardFile(Path root, Shard s) { return root.resolve(s.key).resolve("requests.txt"); }
+        // Segment and page paths are given without extension; the codec picks ".txt" or ".dz".
+        private static Path segmentFile(Path shardDir, int seg) { return shardDir.resolve("seg_" + seg); }
+        private static Path userPage(Path root, int page) { return root.resolve("users").resolve("page_" + page); }
+        private static Path withExtension(Path base, String ext) { return base.resolveSibling(base.getFileName() + ext); }
+
+        // Prefers the current codec's file if both exist (an interrupted rewrite); null if neither does.
+        private Path existing(Path base) {
+            Path p = withExtension(base, codec.extension());
+            if (Files.exists(p)) return p;
+            p = withExtension(base, codec.otherExtension());
+            return Files.exists(p) ? p : null;
+        }
+        static int segmentOf(String ticketId) { return ServiceRequest.parseSeq(ticketId) / SEGMENT_SIZE; }
+        static int pageOf(String userId) { return Math.floorMod(userId.hashCode(), USER_PAGES); }
+
+        // Ticket numbers are leased against data/ids.hwm (see IdAllocator).
+        boolean attachIds() throws IOException {
+            ensureDirs();
+            return rm.ids().attach(dataDir.resolve("ids.hwm"));
+        }
+
+        void saveData() throws IOException { saveData(Progress.NONE); }
+
+        // Shards are written in parallel; each holds its read lock only while formatting its dirty
+        // segments. A full rewrite (after migration or promotion) also removes files left over.
+        void saveData(Progress progress) throws IOException {
+            long t0 = T_SAVE.start();
+            FileEvent ev = FileEvent.start("save", dataDir);
+            LongAdder tickets = new LongAdder();
+            LongAdder bytes = new LongAdder();
+            try {
+                progress.begin("writing files", rm.getShards().length + 1);
+                ensureDirs();
+                rm.ids().release();
+                boolean full = rm.needsFullRewrite();
+                if (codec.compress && (full || !codec.hasDictionary())) {
+                    // a new dictionary is only safe when every block is about to be rewritten
+                    full = true;
+                    codec.train(sampleLines());
+                }
+                Map<String, RequestManager.DirtyMark> dirtyTickets = rm.dirtyTickets();
+                Map<String, RequestManager.DirtyMark> dirtyUsers = rm.dirtyUsers();
+                Map<Shard, Set<Integer>> segments = new HashMap<>();
+                for (Map.Entry<String, RequestManager.DirtyMark> e : dirtyTickets.entrySet()) {
+                    segments.computeIfAbsent(e.getValue().shard, k -> new HashSet<>()).add(segmentOf(e.getKey()));
+                }
+                Set<Integer> pages = new HashSet<>();
+                for (String id : dirtyUsers.keySet()) pages.add(pageOf(id));
+                boolean fullRewrite = full;
+                bytes.add(writeUserPages(full ? null : pages));
+                progress.step();
+                // Changes made after the dirty marks were taken keep their (newer) marks, so the
+                // snapshot may miss them: they go out with the next save.
+                try (Snapshot snap = rm.openSnapshot()) {
+                    // every change the snapshot sees has queued its notifications by now
+                    rm.outbox().persist();
+                    forEachShard(s -> {
+                        Set<Integer> segs = segments.get(s);
+                        if (!fullRewrite && segs == null) {
+                            SHARD_SKIPS.increment();
+                            progress.step();
+                            return;
+                        }
+                        writeSegments(snap, s, fullRewrite ? null : segs, tickets, bytes);
+                        progress.step();
+                    });
+                }
+                if (full) {
+                    Files.deleteIfExists(usersFile);
+                    Files.deleteIfExists(requestsFile);
+                    for (Shard s : rm.getShards()) Files.deleteIfExists(shardFile(shardsDir, s));
+                    codec.retire();
+                }
+                rm.clearDirty(dirtyTickets, dirtyUsers, full);
+            } finally {
+                ev.end(tickets.sum(), bytes.sum());
+                T_SAVE.stop(t0);
+            }
+        }
+
+        // pages == null writes every page and deletes the empty ones.
+        private long writeUserPages(Set<Integer> pages) throws IOException {
+            Map<Integer, List<String>> lines = rm.readUsers(() -> {
+                Map<Integer, List<String>> m = new TreeMap<>();
+                for (int p = 0; p < USER_PAGES; p++) {
+                    if (pages == null || pages.contains(p)) m.put(p, new ArrayList<>());
+                }
+                for (User u : rm.getUsers()) {
+                    List<String> l = m.get(pageOf(u.userId));
+                    if (l != null) l.add(formatUser(u));
+                }
+                return m;
+            });
+            long bytes = 0;
+            for (Map.Entry<Integer, List<String>> e : lines.entrySet()) bytes += writeBlock(userPage(dataDir, e.getKey()), e.getValue());
+            return bytes;
+        }
+
+        // segs == null writes every segment of the shard and deletes segment files no longer used.
+        private void writeSegments(Snapshot snap, Shard s, Set<Integer> segs, LongAdder tickets, LongAdder bytes) throws IOException {
+            Map<Integer, List<String>> lines = new TreeMap<>();
+            if (segs != null) for (int seg : segs) lines.put(seg, new ArrayList<>());
+            snap.forEach(s, r -> {
+                int seg = r.seq() / SEGMENT_SIZE;
+                List<String> l = segs == null ? lines.computeIfAbsent(seg, k -> new ArrayList<>()) : lines.get(seg);
+                if (l != null) l.add(formatRequest(r));
+            });
+            Path dir = shardsDir.resolve(s.key);
+            Files.createDirectories(dir);
+            for (Map.Entry<Integer, List<String>> e : lines.entrySet()) {
+                bytes.add(writeBlock(segmentFile(dir, e.getKey()), e.getValue()));
+                tickets.add(e.getValue().size());
+            }
+            if (segs == null) {
+                for (int seg : listSegments(dir)) {
+                    if (lines.containsKey(seg)) continue;
+                    Files.deleteIfExists(withExtension(segmentFile(dir, seg), StorageCodec.PLAIN));
+                    Files.deleteIfExists(withExtension(segmentFile(dir, seg), StorageCodec.PACKED));
+                }
+            }
+        }
+
+        // Writes through a temp file so a crash never leaves a half-written block, then removes the
+        // copy in the other format if any; an empty list removes both. Returns the bytes written.
+        private long writeBlock(Path base, List<String> lines) throws IOException {
+            Path file = withExtension(base, codec.extension());
+            Path other = withExtension(base, codec.otherExtension());
+            if (lines.isEmpty()) {
+                Files.deleteIfExists(file);
+                Files.deleteIfExists(other);
+                return 0;
+            }
+            Files.createDirectories(file.getParent());
+            byte[] data = codec.encode(lines);
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(tmp, data);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(other);
+            FILE_WRITES.increment();
+            BYTES_WRITTEN.add(data.length);
+            return data.length;
+        }
+
+        // Segment numbers present in a shard directory, in either format.
+        private static SortedSet<Integer> listSegments(Path dir) throws IOException {
+            SortedSet<Integer> segs = new TreeSet<>();
+            if (!Files.isDirectory(dir)) return segs;
+            try (Stream<Path> files = Files.list(dir)) {
+                files.forEach(f -> {
+                    String n = f.getFileName().toString();
+                    String ext = n.endsWith(StorageCodec.PLAIN) ? StorageCodec.PLAIN : n.endsWith(StorageCodec.PACKED) ? StorageCodec.PACKED : null;
+                    if (ext == null || !n.startsWith("seg_")) return;
+                    try {
+                        segs.add(Integer.parseInt(n.substring(4, n.length() - ext.length())));
+                    } catch (NumberFormatException ignored) {
+                        // not a segment
+                    }
+                });
+            }
+            return segs;
+        }
+
+        // Roughly 20k tickets spread over the store plus the users, for dictionary training.
+        private List<String> sampleLines() {
+            List<String> sample = new ArrayList<>();
+            int step = Math.max(1, rm.size() / 20_000);
+            for (Shard s : rm.getShards()) {
+                s.read(() -> {
+                    for (int i = 0; i < s.requests.size(); i += step) sample.add(formatRequest(s.requests.get(i)));
+                    return null;
+                });
+            }
+            rm.readUsers(() -> {
+                for (User u : rm.getUsers()) sample.add(formatUser(u));
+                return null;
+            });
+            return sample;
+        }
+
+        // Decodes every block and reports size on disk against decoded size, and decode speed.
+        String storageStats() throws IOException {
+            List<Path> files = new ArrayList<>();
+            for (int p = 0; p < USER_PAGES; p++) {
+                Path f = existing(userPage(dataDir, p));
+                if (f != null) files.add(f);
+            }
+            for (Shard s : rm.getShards()) {
+                Path dir = shardsDir.resolve(s.key);
+                for (int seg : listSegments(dir)) files.add(existing(segmentFile(dir, seg)));
+            }
+            long stored = 0;
+            long raw = 0;
+            long nanos = 0;
+            int packed = 0;
+            for (Path f : files) {
+                stored += Files.size(f);
+                if (f.toString().endsWith(StorageCodec.PACKED)) packed++;
+                long t0 = System.nanoTime();
+                List<String> lines = codec.read(f);
+                nanos += System.nanoTime() - t0;
+                for (String l : lines) raw += l.length() + 1;
+            }
+            StringBuilder sb = new StringBuilder();
+            sb.append("Codec: ").append(codec.describe()).append('\n');
+            sb.append(String.format("Blocks: %d (%d compressed, %d plain)%n", files.size(), packed, files.size() - packed));
+            sb.append(String.format("Stored: %,d bytes, decoded: %,d bytes, ratio %.2f:1%n", stored, raw, stored == 0 ? 0.0 : (double) raw / stored));
+            sb.append(String.format("Decode: %.1f ms total, %.1f MB/s", nanos / 1e6, nanos == 0 ? 0.0 : raw / 1e6 / (nanos / 1e9)));
+            return sb.toString();
+        }
+
+        void loadData() throws IOException { loadData(Progress.NONE); }
+
+        // Reads segments and pages, plus any files of the older layouts; if those are found the next
+        // save rewrites everything in the current layout.
+        void loadData(Progress progress) throws IOException {
+            long t0 = T_LOAD.start();
+            FileEvent ev = FileEvent.start("load", dataDir);
+            rm.setReloading(true);
+            try {
+                ensureDirs();
+                boolean hasHighWater = attachIds();
+                rm.outbox().attach(dataDir.resolve("outbox"));
+                codec.loadDictionaries();
+                boolean legacy = Files.exists(usersFile) || Files.exists(requestsFile);
+                // older layouts first, so a ticket found in both (interrupted migration) keeps its segment copy
+                List<Path> blocks = new ArrayList<>();
+                List<Shard> owners = new ArrayList<>();
+                for (Shard s : rm.getShards()) {
+                    Path old = shardFile(shardsDir, s);
+                    if (Files.exists(old)) {
+                        legacy = true;
+                        blocks.add(old);
+                        owners.add(s);
+                    }
+                    Path dir = shardsDir.resolve(s.key);
+                    for (int seg : listSegments(dir)) {
+                        blocks.add(existing(segmentFile(dir, seg)));
+                        owners.add(s);
+                    }
+                }
+                progress.begin("reading files", blocks.size() + 1);
+                // merged by ID like tickets: the older layout first, so a user found in both keeps its page copy
+                Map<String, User> users = new LinkedHashMap<>();
+                if (Files.exists(usersFile)) readUsers(usersFile, users);
+                for (int p = 0; p < USER_PAGES; p++) {
+                    Path f = existing(userPage(dataDir, p));
+                    if (f != null) readUsers(f, users);
+                }
+                progress.step();
+                // blocks decode independently, so all shards' segments are read in parallel
+                List<List<ServiceRequest>> parsed = parallelRead(blocks, f -> {
+                    List<ServiceRequest> list = readRequests(f);
+                    progress.step();
+                    return list;
+                });
+                Map<Shard, Map<String, ServiceRequest>> loaded = new HashMap<>();
+                for (Shard s : rm.getShards()) loaded.put(s, new LinkedHashMap<>());
+                if (Files.exists(requestsFile)) {
+                    for (ServiceRequest r : readRequests(requestsFile)) loaded.get(rm.shardFor(r.category)).put(r.ticketId, r);
+                }
+                for (int i = 0; i < blocks.size(); i++) {
+                    Map<String, ServiceRequest> into = loaded.get(owners.get(i));
+                    for (ServiceRequest r : parsed.get(i)) into.put(r.ticketId, r);
+                }
+                Map<Shard, List<ServiceRequest>> byShard = new HashMap<>();
+                loaded.forEach((s, m) -> byShard.put(s, new ArrayList<>(m.values())));
+                rm.replaceAll(new ArrayList<>(users.values()), byShard);
+                if (legacy) rm.markAllDirty();
+                if (!hasHighWater) rm.calibrateIds();
+            } finally {
+                rm.setReloading(false);
+                ev.end(rm.size(), ev.isEnabled() ? dataBytes(dataDir) : 0);
+                T_LOAD.stop(t0);
+            }
+        }
+
+        private void readUsers(Path file, Map<String, User> into) throws IOException {
+            for (String line : codec.read(file)) {
+                User u = parseUser(line);
+                if (u != null) into.put(u.userId, u);
+            }
+        }
+
+        // Size of user and ticket files under root (backups excluded); only computed for JFR events.
+        private long dataBytes(Path root) {
+            long n = 0;
+            try {
+                for (Path p : new Path[]{root.resolve("users"), root.resolve("shards"), root.resolve("users.txt"), root.resolve("requests.txt")}) {
+                    if (!Files.exists(p)) continue;
+                    try (Stream<Path> walk = Files.walk(p)) {
+                        for (Path f : walk.filter(Files::isRegularFile).collect(Collectors.toList())) n += Files.size(f);
+                    }
+                }
+            } catch (IOException ignored) {
+                // best effort
+            }
+            return n;
+        }
+
+        private List<ServiceRequest> readRequests(Path file) throws IOException {
+            List<ServiceRequest> reqs = new ArrayList<>();
+            for (String line : codec.read(file)) {
+                ServiceRequest r = parseRequest(line);
+                if (r != null) reqs.add(r);
+            }
+            return reqs;
+        }
+
+        private interface BlockReader<T> { T read(Path file) throws IOException; }
+
+        private static <T> List<T> parallelRead(List<Path> files, BlockReader<T> reader) throws IOException {
+            try {
+                return files.parallelStream().map(f -> {
+                    try {
+                        return reader.read(f);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }).collect(Collectors.toList());
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        private interface ShardTask { void run(Shard s) throws IOException; }
+
+        private void forEachShard(ShardTask task) throws IOException {
+            try {
+                Arrays.stream(rm.getShards()).parallel().forEach(s -> {
+                    try {
+                        task.run(s);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        static String formatUser(User u) {
+            return String.join("|",
+                    enc(u.userId), enc(u.name), enc(u.department), enc(u.role), enc(u.email), enc(u.phone),
+                    u.requestHistory.encode()
+            );
+        }
+
+        static User parseUser(String line) {
+            String[] parts = split(line);
+            if (parts.length < 7) return null;
+            User u = new User();
+            u.userId = dec(parts[0]);
+            u.name = dec(parts[1]);
+            u.department = dec(parts[2]);
+            u.role = dec(parts[3]);
+            u.email = dec(parts[4]);
+            u.phone = dec(parts[5]);
+            u.requestHistory = TicketSeqs.decode(parts[6], FileHandler::dec);
+            return u;
+        }
+
+        static String formatRequest(ServiceRequest r) {
+            String commentsJoined = r.comments.stream().map(FileHandler::enc).collect(Collectors.joining(";;"));
+            return String.join("|",
+                    enc(r.ticketId), enc(r.userName), enc(r.userDept), enc(r.userEmail), enc(r.userPhone),
+                    enc(r.category), enc(r.priority), enc(r.subject), enc(r.description), enc(r.status),
+                    enc(nullToEmpty(r.assignedAgent)), enc(r.createdText()), enc(r.updatedText()),
+                    enc(r.resolvedText()), enc(nullToEmpty(r.resolutionNotes)), enc(commentsJoined)
+            );
+        }
+
+        static ServiceRequest parseRequest(String line) {
+            String[] p = split(line);
+            if (p.length < 16) return null;
+            ServiceRequest r = new ServiceRequest();
+            r.ticketId = dec(p[0]);
+            r.userName = dec(p[1]);
+            r.userDept = dec(p[2]);
+            r.userEmail = dec(p[3]);
+            r.userPhone = dec(p[4]);
+            r.category = dec(p[5]);
+            r.priority = dec(p[6]);
+            r.subject = dec(p[7]);
+            r.description = dec(p[8]);
+            r.status = dec(p[9]);
+            r.assignedAgent = emptyToNull(dec(p[10]));
+            r.createdDate = parseDt(dec(p[11]));
+            r.lastUpdated = parseDt(dec(p[12]));
+            r.resolvedDate = parseDt(dec(p[13]));
+            r.resolutionNotes = emptyToNull(dec(p[14]));
+            String commentsJoined = dec(p[15]);
+            if (!commentsJoined.trim().isEmpty()) {
+                for (String c : commentsJoined.split(";;")) r.comments.add(dec(c));
+            }
+            return r;
+        }
+
+        Path exportAllRequestsCsv() throws IOException { return exportAllRequestsCsv(Progress.NONE); }
+
+        Path exportAllRequestsCsv(Progress progress) throws IOException {
+            long t0 = T_EXPORT_CSV.start();
+            FileEvent ev = FileEvent.start("export_csv", exportDir.resolve("requests.csv"));
+            long rows = 0;
+            try {
+                progress.begin("writing rows", rm.size());
+                ensureDirs();
+                Path csv = exportDir.resolve("requests.csv");
+                // Rows come from one snapshot, formatted a shard at a time and written outside its locks.
+                try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(csv, StandardCharsets.UTF_8));
+                     Snapshot snap = rm.openSnapshot()) {
+                    out.println("TicketId,Status,Priority,Category,Created,User,Department,Email,Subject,AssignedAgent");
+                    for (Shard s : rm.getShards()) {
+                        List<String> lines = snap.map(s, r -> String.format("%s,%s,%s,%s,%s,%s,%s,%s,%s,%s",
+                                csvEsc(r.ticketId), csvEsc(r.status), csvEsc(r.priority), csvEsc(r.category), csvEsc(r.createdText()),
+                                csvEsc(r.userName), csvEsc(r.userDept), csvEsc(r.userEmail), csvEsc(r.subject), csvEsc(nullToEmpty(r.assignedAgent))));
+                        for (String line : lines) {
+                            out.println(line);
+                            rows++;
+                            progress.step();
+                        }
+                    }
+                }
+                ev.end(rows, Files.size(csv));
+                return csv;
+            } finally {
+                T_EXPORT_CSV.stop(t0);
+            }
+        }
+
+        // One row per day, agent, category and priority with activity between from and to (null for
+        // open-ended). Rows are copied out of the cube first and written without holding its lock.
+        Path exportRollupsCsv(LocalDate from, LocalDate to) throws IOException {
+            long t0 = T_EXPORT_ROLLUPS.start();
+            Path csv = exportDir.resolve("rollups.csv");
+            FileEvent ev = FileEvent.start("export_rollups", csv);
+            try {
+                ensureDirs();
+                List<String> rows = rm.getAnalytics().rollupRows(from, to, (day, e) -> {
+                    RollupCube.Cell c = e.getValue();
+                    return String.join(",", day.toString(), csvEsc(e.getKey().agent), csvEsc(e.getKey().department()), csvEsc(e.getKey().category),
+                            csvEsc(e.getKey().priority), String.valueOf(c.created), String.valueOf(c.closed), String.valueOf(c.reopened),
+                            c.closed == 0 ? "" : String.valueOf(c.handle().percentile(50)));
+                });
+                try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(csv, StandardCharsets.UTF_8))) {
+                    out.println("Day,Agent,Department,Category,Priority,Created,Closed,Reopened,MedianHandleMinutes");
+                    for (String row : rows) out.println(row);
+                }
+                ev.end(rows.size(), Files.size(csv));
+                return csv;
+            } finally {
+                T_EXPORT_ROLLUPS.stop(t0);
+            }
+        }
+
+        // Archived tickets, one gzip member per batch appended to a file per month, in the data
+        // file line format (gzip readers see the members of a file as one stream). Synced before
+        // returning because the tickets are dropped from memory next.
+        Path appendArchive(List<ServiceRequest> batch, LocalDate day) throws IOException {
+            long t0 = T_ARCHIVE.start();
+            try {
+                Path dir = dataDir.resolve("archive");
+                Files.createDirectories(dir);
+                Path file = dir.resolve("requests-" + day.format(DateTimeFormatter.ofPattern("yyyy-MM")) + ".gz");
+                try (FileOutputStream fos = new FileOutputStream(file.toFile(), true);
+                     GZIPOutputStream gz = new GZIPOutputStream(fos, 1 << 16)) {
+                    for (ServiceRequest r : batch) gz.write((formatRequest(r) + "\n").getBytes(StandardCharsets.UTF_8));
+                    gz.finish();
+                    fos.getFD().sync();
+                }
+                return file;
+            } finally {
+                T_ARCHIVE.stop(t0);
+            }
+        }
+
+        Path exportRequestDetails(ServiceRequest r) throws IOException {
+            long t0 = T_EXPORT_DETAILS.start();
+            try {
+                ensureDirs();
+                Path txt = exportDir.resolve(r.ticketId + ".txt");
+                FileEvent ev = FileEvent.start("export_details", txt);
+                try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(txt, StandardCharsets.UTF_8))) {
+                    out.print(r.toDisplayString());
+                }
+                ev.end(1, Files.size(txt));
+                return txt;
+            } finally {
+                T_EXPORT_DETAILS.stop(t0);
+            }
+        }
+
+        Path exportMetrics() throws IOException {
+            ensureDirs();
+            Path prom = exportDir.resolve("metrics.prom");
+            Files.write(prom, Metrics.prometheus().getBytes(StandardCharsets.UTF_8));
+            return prom;
+        }
+
+        Path dumpFlightRecording() throws IOException {
+            ensureDirs();
+            String ts = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss"));
+            Path file = exportDir.resolve("recording_" + ts + ".jfr");
+            FlightRecording.dump(file);
+            return file;
+        }
+
+        Path createBackup() throws IOException { return createBackup(Progress.NONE); }
+
+        // Copies whichever of the current and older layouts exist.
+        Path createBackup(Progress progress) throws IOException {
+            long t0 = T_BACKUP.start();
+            try {
+                ensureDirs();
+                String ts = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss"));
+                Path dir = dataDir.resolve("backup_" + ts);
+                FileEvent ev = FileEvent.start("backup", dir);
+                Files.createDirectories(dir);
+                copyLayout(dataDir, dir, progress);
+                ev.end(rm.size(), ev.isEnabled() ? dataBytes(dir) : 0);
+                return dir;
+            } finally {
+                T_BACKUP.stop(t0);
+            }
+        }
+
+        void restoreLatestBackup() throws IOException { restoreLatestBackup(Progress.NONE); }
+
+        // Replaces the data files with the backup's; backups in an older layout are migrated by loadData.
+        void restoreLatestBackup(Progress progress) throws IOException {
+            long t0 = T_RESTORE.start();
+            try {
+                ensureDirs();
+                File[] backups = dataDir.toFile().listFiles((d, n) -> n.startsWith("backup_"));
+                if (backups == null || backups.length == 0) throw new IOException("No backups found.");
+                File latest = backups[0];
+                for (File f : backups) if (f.getName().compareTo(latest.getName()) > 0) latest = f;
+                Path dir = latest.toPath();
+                FileEvent ev = FileEvent.start("restore", dir);
+                rm.setReloading(true); // loadData clears it once the restored data is in place
+                for (String name : LAYOUT) deleteTree(dataDir.resolve(name));
+                copyLayout(dir, dataDir, progress);
+                loadData(progress);
+                ev.end(rm.size(), ev.isEnabled() ? dataBytes(dir) : 0);
+            } finally {
+                rm.setReloading(false);
+                T_RESTORE.stop(t0);
+            }
+        }
+
+        private static final String[] LAYOUT = {"users", "shards", "dict", "archive", "users.txt", "requests.txt"};
+
+        private static void copyLayout(Path from, Path to, Progress progress) throws IOException {
+            List<Path> files = new ArrayList<>();
+            for (String name : LAYOUT) {
+                Path p = from.resolve(name);
+                if (!Files.exists(p)) continue;
+                try (Stream<Path> walk = Files.walk(p)) {
+                    walk.filter(Files::isRegularFile).filter(f -> !f.toString().endsWith(".tmp")).forEach(files::add);
+                }
+            }
+            progress.begin("copying files", files.size());
+            for (Path f : files) {
+                Path target = to.resolve(from.relativize(f));
+                Files.createDirectories(target.getParent());
+                Files.copy(f, target, StandardCopyOption.REPLACE_EXISTING);
+                progress.step();
+            }
+        }
+
+        private static void deleteTree(Path root) throws IOException {
+            if (!Files.exists(root)) return;
+            try (Stream<Path> walk = Files.walk(root)) {
+                for (Path p : walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) Files.delete(p);
+            }
+        }
+
+        private static String enc(String s) {
+            if (s == null) s = "";
+            return java.util.Base64.getEncoder().encodeToString(s.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private static String dec(String s) {
+            try {
+                return new String(java.util.Base64.getDecoder().decode(s), StandardCharsets.UTF_8);
+            } catch (IllegalArgumentException e) {
+                // fallback for plain text (older format)
+                return s;
+            }
+        }
+
+        private static String[] split(String line) {
+            // tokens are base64, but separator is '|'
+            return line.split("\\|", -1);
+        }
+
+        private static LocalDateTime parseDt(String s) { return (s == null || s.trim().isEmpty()) ? null : LocalDateTime.parse(s, DTF); }
+        private static String nullToEmpty(String s) { return s == null ? "" : s; }
+        private static String emptyToNull(String s) { return (s == null || s.trim().isEmpty()) ? null : s; }
+        private static String csvEsc(String s) {
+            if (s == null) return "";
+            String v = s.replace("\"", "\"\"");
+            if (v.contains(",") || v.contains("\n") || v.contains("\"")) return "\"" + v + "\"";
+            return v;
+        }
+    }
+
+    // ====== Replication ======
+    // Row-based log shipping: after every committed change the primary sends the full new state of
+    // the ticket or user. A new standby first receives a snapshot, then the live stream.
+    // Wire format, one record per line: seq|sentMicros|type|payload
+    //   T = ticket (FileHandler line), D = ticket delete, U = user (FileHandler line), X = user delete,
+    //   R = reset before a snapshot, S = snapshot complete
+    static long nowMicros() {
+        Instant i = Instant.now();
+        return i.getEpochSecond() * 1_000_000L + i.getNano() / 1000;
+    }
+
+    static class ReplicationPrimary implements MutationListener {
+        private final RequestManager rm;
+        private final ServerSocket server;
+        private final List<Follower> followers = new CopyOnWriteArrayList<>();
+        private final AtomicLong seq = new AtomicLong();
+        private volatile boolean closed;
+
+        private static class Follower {
+            final Socket socket;
+            final BlockingQueue<String> queue = new LinkedBlockingQueue<>();
+
+            Follower(Socket socket) { this.socket = socket; }
+        }
+
+        private ReplicationPrimary(RequestManager rm, ServerSocket server) {
+            this.rm = rm;
+            this.server = server;
+        }
+
+        static ReplicationPrimary start(RequestManager rm, int port) throws IOException {
+            ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+            ReplicationPrimary p = new ReplicationPrimary(rm, server);
+            rm.addListener(p);
+            Thread t = new Thread(p::acceptLoop, "replication-accept");
+            t.setDaemon(true);
+            t.start();
+            return p;
+        }
+
+        int port() { return server.getLocalPort(); }
+
+        String status() {
+            return "Role: PRIMARY on port " + port() + ", standbys: " + followers.size() + ", records shipped: " + seq.get();
+        }
+
+        private void acceptLoop() {
+            while (!closed) {
+                try {
+                    Socket socket = server.accept();
+                    socket.setTcpNoDelay(true);
+                    Follower f = new Follower(socket);
+                    // Registering and snapshotting under all read locks means no change can fall between the two.
+                    rm.readAll(() -> {
+                        followers.add(f);
+                        enqueueSnapshot(f);
+                        return null;
+                    });
+                    Thread t = new Thread(() -> sendLoop(f), "replication-send");
+                    t.setDaemon(true);
+                    t.start();
+                } catch (IOException e) {
+                    if (!closed) System.out.println("[WARN] Replication accept failed: " + e.getMessage());
+                }
+            }
+        }
+
+        private void enqueueSnapshot(Follower f) {
+            f.queue.add(record("R", ""));
+            for (User u : rm.getUsers()) f.queue.add(record("U", FileHandler.formatUser(u)));
+            for (Shard s : rm.getShards()) {
+                for (ServiceRequest r : s.requests) f.queue.add(record("T", FileHandler.formatRequest(r)));
+            }
+            f.queue.add(record("S", ""));
+        }
+
+        // Drains everything queued and flushes once, so bursts are shipped as one write.
+        private void sendLoop(Follower f) {
+            try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(f.socket.getOutputStream(), StandardCharsets.UTF_8), 1 << 16)) {
+                List<String> batch = new ArrayList<>();
+                while (!closed) {
+                    String first = f.queue.take();
+                    batch.add(first);
+                    f.queue.drainTo(batch);
+                    for (String line : batch) {
+                        out.write(line);
+                        out.write('\n');
+                    }
+                    out.flush();
+                    batch.clear();
+                }
+            } catch (IOException | InterruptedException e) {
+                // standby went away; it will resnapshot when it reconnects
+            } finally {
+                followers.remove(f);
+                try { f.socket.close(); } catch (IOException ignored) {}
+            }
+        }
+
+        private String record(String type, String payload) {
+            return seq.incrementAndGet() + "|" + nowMicros() + "|" + type + "|" + payload;
+        }
+
+        private void ship(String type, String payload) {
+            if (followers.isEmpty()) return;
+            String line = record(type, payload);
+            for (Follower f : followers) f.queue.add(line);
+        }
+
+        @Override public void ticketChanged(ServiceRequest r) { ship("T", FileHandler.formatRequest(r)); }
+        @Override public void ticketDeleted(String ticketId) { ship("D", FileHandler.enc(ticketId)); }
+        @Override public void userChanged(User u) { ship("U", FileHandler.formatUser(u)); }
+        @Override public void userDeleted(User u) { ship("X", FileHandler.enc(u.userId)); }
+
+        @Override
+        public void reloaded() {
+            rm.readAll(() -> {
+                for (Follower f : followers) enqueueSnapshot(f);
+                return null;
+            });
+        }
+
+        void close() {
+            closed = true;
+            rm.removeListener(this);
+            try { server.close(); } catch (IOException ignored) {}
+            for (Follower f : followers) {
+                try { f.socket.close(); } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    static class ReplicationFollower {
+        private final RequestManager rm;
+        private final Socket socket;
+        private final Histogram lagMicros = new Histogram();
+        private volatile long lastSeq;
+        private volatile long lastLag;
+        private volatile boolean connected = true;
+        private volatile boolean closing;
+        private final CountDownLatch snapshotLoaded = new CountDownLatch(1);
+
+        private ReplicationFollower(RequestManager rm, Socket socket) {
+            this.rm = rm;
+            this.socket = socket;
+        }
+
+        static ReplicationFollower connect(RequestManager rm, String host, int port) throws IOException {
+            Socket socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            rm.setReadOnly(true);
+            ReplicationFollower f = new ReplicationFollower(rm, socket);
+            Thread t = new Thread(f::applyLoop, "replication-apply");
+            t.setDaemon(true);
+            t.start();
+            try {
+                if (!f.snapshotLoaded.await(60, TimeUnit.SECONDS)) {
+                    f.close();
+                    throw new IOException("timed out waiting for the initial snapshot");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!f.connected) throw new IOException("primary closed the connection");
+            return f;
+        }
+
+        private void applyLoop() {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8), 1 << 16)) {
+                String line;
+                while ((line = in.readLine()) != null) apply(line);
+            } catch (IOException e) {
+                // connection dropped
+            } finally {
+                connected = false;
+                snapshotLoaded.countDown();
+                if (!closing && rm.isReadOnly()) System.out.println("\n[REPLICATION] Lost connection to primary; promote from Data Management if it is down.");
+            }
+        }
+
+        private void apply(String line) {
+            String[] head = line.split("\\|", 4);
+            if (head.length < 4) return;
+            switch (head[2]) {
+                case "T": {
+                    ServiceRequest r = FileHandler.parseRequest(head[3]);
+                    if (r != null) rm.applyTicket(r);
+                    break;
+                }
+                case "D":
+                    rm.applyTicketDelete(FileHandler.dec(head[3]));
+                    break;
+                case "U": {
+                    User u = FileHandler.parseUser(head[3]);
+                    if (u != null) rm.applyUser(u);
+                    break;
+                }
+                case "X":
+                    rm.applyUserDelete(FileHandler.dec(head[3]));
+                    break;
+                case "R":
+                    rm.applyReset();
+                    break;
+                case "S":
+                    snapshotLoaded.countDown();
+                    break;
+                default:
+                    break;
+            }
+            long lag = nowMicros() - Long.parseLong(head[1]);
+            synchronized (lagMicros) {
+                lagMicros.record(Math.max(0, lag));
+            }
+            lastLag = lag;
+            lastSeq = Long.parseLong(head[0]);
+        }
+
+        long lastSeq() { return lastSeq; }
+
+        Histogram lagSnapshot() {
+            synchronized (lagMicros) {
+                Histogram h = new Histogram();
+                h.merge(lagMicros);
+                return h;
+            }
+        }
+
+        String status() {
+            Histogram h = lagSnapshot();
+            return "Role: " + (rm.isReadOnly() ? "STANDBY" : "PROMOTED") + ", connected: " + connected
+                    + ", last record: " + lastSeq + String.format(", lag last/p50/p99: %d/%d/%d us", lastLag, h.percentile(50), h.percentile(99));
+        }
+
+        void close() {
+            closing = true;
+            try { socket.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    // Runs a primary and a standby on localhost in one JVM, drives writes at full speed for the
+    // given number of seconds and reports replication lag. Nothing is written to disk.
+    static class ReplicationBench {
+        static void run(int seconds) {
+            RequestManager primary = new RequestManager();
+            RequestManager standby = new RequestManager();
+            try {
+                ReplicationPrimary server = ReplicationPrimary.start(primary, 0);
+                ReplicationFollower follower = ReplicationFollower.connect(standby, "127.0.0.1", server.port());
+                User u = primary.createUser("Bench User", "QA", "USER", "bench@example.com", "000");
+                long end = System.nanoTime() + seconds * 1_000_000_000L;
+                long writes = 0;
+                while (System.nanoTime() < end) {
+                    ServiceRequest r = primary.createRequest(u, CATEGORY_GROUPS[(int) (writes % CATEGORY_GROUPS.length)],
+                            PRIORITIES[(int) (writes % PRIORITIES.length)], "Bench " + writes, "Load test ticket");
+                    primary.updateStatus(r, "IN_PROGRESS", "bench");
+                    writes += 2;
+                }
+                long target = server.seq.get();
+                long waitStart = System.nanoTime();
+                while (follower.lastSeq() < target && System.nanoTime() - waitStart < 30_000_000_000L) Thread.sleep(10);
+                Histogram lag = follower.lagSnapshot();
+                System.out.printf("Writes: %d in %ds (%.0f/s), records shipped: %d%n", writes, seconds, writes / (double) seconds, target);
+                System.out.printf("Replication lag (us): p50=%d p90=%d p99=%d%n", lag.percentile(50), lag.percentile(90), lag.percentile(99));
+                System.out.printf("Catch-up after load stopped: %d ms%n", (System.nanoTime() - waitStart) / 1_000_000);
+                System.out.println("Primary tickets: " + primary.listAll().size() + ", standby tickets: " + standby.listAll().size());
+                follower.close();
+                server.close();
+            } catch (Exception e) {
+                System.out.println("[ERROR] Replication bench failed: " + e);
+            }
+        }
+    }
+
+    // ====== Batch Mode ======
+    // Runs a command file without prompts: --batch <file>, or --batch - to read stdin. One command
+    // per line, fields separated by '|' (the last field may itself contain '|'); blank lines and
+    // lines starting with '#' are skipped.
+    //   user|email|name|dept|role|phone
+    //   submit|email|name|dept|phone|category|priority|subject|description
+    //     (reports possible duplicates; nothing is linked unless a link command follows)
+    //   link|ticketId|originalId   (marks ticketId as a duplicate of originalId)
+    //   assign|ticketId|agent
+    //   status|ticketId|status[|actor[|resolution note]]
+    //   comment|ticketId|text
+    //   delete|ticketId
+    //   bulk|status|<status>|<selection>   bulk|assign|<agent>|<selection>   bulk|comment|<text>|<selection>
+    //     (selection: ticket IDs separated by commas or spaces, or query language text)
+    //   query|<query language text>
+    //   maintain   (one maintenance run: auto-close, archive, history pruning)
+    //   notify     (send pending owner notifications now; otherwise they wait for the next interactive run)
+    //   report|summary|category|priority|department|average
+    //   report|percentiles[|from|to]   report|trend[|from|to[|hourly]]   (dates yyyy-MM-dd)
+    //   report|agents[|from|to]   report|demand[|from|to]
+    //   export|csv   export|rollups[|from|to]   export|<ticketId>
+    // Data is loaded once before the first command and saved once after the last.
+    static class BatchRunner {
+        private final RequestManager rm;
+        private final ReportGenerator reports;
+        private final FileHandler files;
+        private final Map<String, long[]> stats = new TreeMap<>(); // command -> {count, totalNanos, maxNanos}
+        private int failed;
+
+        BatchRunner(RequestManager rm, ReportGenerator reports, FileHandler files) {
+            this.rm = rm;
+            this.reports = reports;
+            this.files = files;
+        }
+
+        // Returns the number of failed commands.
+        int run(String source) throws IOException {
+            long t0 = System.nanoTime();
+            files.loadData();
+            System.out.printf("Loaded %d requests in %.1f ms%n", rm.size(), (System.nanoTime() - t0) / 1e6);
+            int lineNo = 0;
+            try (BufferedReader br = source.equals("-")
+                    ? new BufferedReader(new InputStreamReader(System.in))
+                    : Files.newBufferedReader(Paths.get(source), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    lineNo++;
+                    String trimmed = line.trim();
+                    if (trimmed.isEmpty() || trimmed.startsWith("#")) continue;
+                    execute(lineNo, trimmed);
+                }
+            }
+            if (rm.hasChanges()) {
+                t0 = System.nanoTime();
+                files.saveData();
+                System.out.printf("Saved in %.1f ms%n", (System.nanoTime() - t0) / 1e6);
+            }
+            printTimings();
+            return failed;
+        }
+
+        private void execute(int lineNo, String line) {
+            String cmd = line.split("\\|", 2)[0].trim().toLowerCase(Locale.ROOT);
+            long t0 = System.nanoTime();
+            String result;
+            try {
+                result = dispatch(cmd, line);
+            } catch (RuntimeException | IOException e) {
+                failed++;
+                System.out.println("[ERROR] line " + lineNo + ": " + e.getMessage());
+                return;
+            }
+            long took = System.nanoTime() - t0;
+            long[] s = stats.computeIfAbsent(cmd, k -> new long[3]);
+            s[0]++;
+            s[1] += took;
+            s[2] = Math.max(s[2], took);
+            System.out.printf("%6d %-8s %9.3f ms  %s%n", lineNo, cmd, took / 1e6, result);
+        }
+
+        private String dispatch(String cmd, String line) throws IOException {
+            switch (cmd) {
+                case "user": {
+                    String[] f = fields(line, 6);
+                    User u = rm.createUser(f[2], f[3], oneOf(f[4], new String[]{"USER", "AGENT", "ADMIN"}, "role"), f[1], f[5]);
+                    return u.userId;
+                }
+                case "submit": {
+                    String[] f = fields(line, 9);
+                    String category = oneOf(f[5], CATEGORY_GROUPS, "category");
+                    String priority = oneOf(f[6], PRIORITIES, "priority");
+                    List<DuplicateIndex.Match> duplicates = rm.findDuplicates(category, f[7], f[8]);
+                    User u = rm.findOrCreateUserByEmail(f[1], f[2], f[3], "USER", f[4]);
+                    ServiceRequest r = rm.createRequest(u, category, priority, f[7], f[8]);
+                    if (duplicates.isEmpty()) return r.ticketId;
+                    return r.ticketId + " (possible duplicate of " + duplicates.get(0).request.ticketId + ")";
+                }
+                case "link": {
+                    String[] f = fields(line, 3);
+                    ServiceRequest duplicate = ticket(f[1]), original = ticket(f[2]);
+                    if (duplicate == original) throw new IllegalArgumentException("A ticket cannot duplicate itself");
+                    rm.linkDuplicate(duplicate, original);
+                    return f[1] + " linked to " + f[2];
+                }
+                case "assign": {
+                    String[] f = fields(line, 3);
+                    rm.assignRequest(ticket(f[1]), f[2]);
+                    return "assigned to " + f[2];
+                }
+                case "status": {
+                    String[] f = fields(line, 3, 5);
+                    ServiceRequest r = ticket(f[1]);
+                    String status = oneOf(f[2], STATUSES, "status");
+                    rm.updateStatus(r, status, f.length > 3 ? f[3] : "ADMIN");
+                    if ("RESOLVED".equals(status) && f.length > 4) {
+                        rm.setResolutionNotes(r, f[4]);
+                        rm.addComment(r, "[RESOLVED] " + f[4]);
+                    }
+                    return status;
+                }
+                case "comment": {
+                    String[] f = fields(line, 3);
+                    rm.addComment(ticket(f[1]), f[2]);
+                    return "comment added";
+                }
+                case "delete": {
+                    String[] f = fields(line, 2);
+                    if (!rm.deleteRequest(f[1].toUpperCase(Locale.ROOT))) throw new IllegalArgumentException("Ticket not found: " + f[1]);
+                    return "deleted";
+                }
+                case "bulk": {
+                    String[] f = fields(line, 4);
+                    BulkChange change;
+                    switch (f[1].toLowerCase(Locale.ROOT)) {
+                        case "status": change = BulkChange.status(oneOf(f[2], STATUSES, "status"), "ADMIN", null); break;
+                        case "assign": change = BulkChange.assign(f[2]); break;
+                        case "comment": change = BulkChange.comment(f[2]); break;
+                        default: throw new IllegalArgumentException("Unknown bulk operation: " + f[1]);
+                    }
+                    List<String> missing = new ArrayList<>();
+                    List<ServiceRequest> targets = rm.selectForBulk(f[3], missing);
+                    if (!missing.isEmpty()) throw new IllegalArgumentException("Ticket not found: " + String.join(", ", missing));
+                    return rm.bulkUpdate(targets, change, Progress.NONE).toString();
+                }
+                case "maintain":
+                    return Maintenance.fromProperties(rm, files).run(Progress.NONE).toString();
+                case "notify":
+                    return NotificationDispatcher.fromProperties(rm.outbox(), files.dataDir()).flush() + " notifications sent";
+                case "query": {
+                    String[] f = fields(line, 2);
+                    RequestQuery q = rm.planQuery(f[1]).query;
+                    Page page = rm.query(q);
+                    StringBuilder sb = RequestRenderer.buffer();
+                    RequestRenderer.appendTable(sb, page.items, 0);
+                    System.out.print(sb);
+                    return page.items.size() + (page.nextCursor != null ? "+" : "") + " rows";
+                }
+                case "report":
+                    return report(fields(line, 2, 5));
+                case "export": {
+                    String[] f = fields(line, 2, 4);
+                    if (f[1].equalsIgnoreCase("csv")) return files.exportAllRequestsCsv().toString();
+                    if (f[1].equalsIgnoreCase("rollups")) {
+                        return files.exportRollupsCsv(f.length > 2 && !f[2].isEmpty() ? LocalDate.parse(f[2]) : null,
+                                f.length > 3 && !f[3].isEmpty() ? LocalDate.parse(f[3]) : null).toString();
+                    }
+                    return files.exportRequestDetails(ticket(f[1])).toString();
+                }
+                default:
+                    throw new IllegalArgumentException("Unknown command: " + cmd);
+            }
+        }
+
+        private String report(String[] f) {
+            String name = f[1].toLowerCase(Locale.ROOT);
+            LocalDate from = f.length > 2 && !f[2].isEmpty() ? LocalDate.parse(f[2]) : null;
+            LocalDate to = f.length > 3 && !f[3].isEmpty() ? LocalDate.parse(f[3]) : null;
+            switch (name) {
+                case "summary": reports.printSummaryStatistics(); break;
+                case "category": reports.printByCategory(); break;
+                case "priority": reports.printByPriority(); break;
+                case "department": reports.printByDepartment(); break;
+                case "average": reports.printAverageResolutionTime(); break;
+                case "percentiles": reports.printResolutionPercentiles(from, to); break;
+                case "trend": reports.printThroughputTrend(from, to, f.length > 4 && f[4].equalsIgnoreCase("hourly")); break;
+                case "agents": reports.printAgentPerformance(from, to); break;
+                case "demand": reports.printDepartmentDemand(from, to); break;
+                default: throw new IllegalArgumentException("Unknown report: " + f[1]);
+            }
+            return name;
+        }
+
+        private ServiceRequest ticket(String id) {
+            ServiceRequest r = rm.findById(id.trim().toUpperCase(Locale.ROOT));
+            if (r == null) throw new IllegalArgumentException("Ticket not found: " + id);
+            return r;
+        }
+
+        private static String oneOf(String value, String[] allowed, String label) {
+            for (String a : allowed) if (a.equalsIgnoreCase(value.trim())) return a;
+            throw new IllegalArgumentException("Invalid " + label + ": " + value);
+        }
+
+        private static String[] fields(String line, int n) { return fields(line, n, n); }
+
+        // Splits into at most max fields (the last keeps any remaining '|') and requires at least min.
+        private static String[] fields(String line, int min, int max) {
+            String[] f = line.split("\\|", max);
+            if (f.length < min) throw new IllegalArgumentException("Expected " + (min - 1) + " field(s) after '" + f[0].trim() + "'");
+            for (int i = 0; i < f.length; i++) f[i] = f[i].trim();
+            return f;
+        }
+
+        private void printTimings() {
+            System.out.println("\n=== Batch Timings ===");
+            System.out.printf("%-10s %8s %12s %12s %12s%n", "Command", "Count", "Total ms", "Mean ms", "Max ms");
+            long count = 0;
+            for (Map.Entry<String, long[]> e : stats.entrySet()) {
+                long[] s = e.getValue();
+                count += s[0];
+                System.out.printf("%-10s %8d %12.3f %12.3f %12.3f%n", e.getKey(), s[0], s[1] / 1e6, s[1] / 1e6 / s[0], s[2] / 1e6);
+            }
+            System.out.println(count + " command(s) succeeded, " + failed + " failed.");
+        }
+    }
+
+    // ====== Benchmark ======
+    // In-memory workload covering writes, index lookups, paged queries, keyword search and reports.
+    // Rounds alternate with metrics on and off; the best round of each is compared.
+    static class Benchmark {
+        static void run(int tickets) {
+            PrintStream console = System.out;
+            runRound(Math.max(100, tickets / 4), true); // warm-up
+            long bestOn = Long.MAX_VALUE, bestOff = Long.MAX_VALUE;
+            for (int i = 0; i < 20; i++) {
+                boolean on = i % 2 == 1; // finish on a measured round so its metrics are printed below
+                long t = runRound(tickets, on);
+                if (on) bestOn = Math.min(bestOn, t); else bestOff = Math.min(bestOff, t);
+            }
+            Metrics.enabled = true;
+            console.printf("Workload (%d tickets): %.1f ms with metrics, %.1f ms without, difference %.2f%%%n",
+                    tickets, bestOn / 1e6, bestOff / 1e6, 100.0 * (bestOn - bestOff) / bestOff);
+            // Wall-clock differences are within run-to-run noise, so also price the instrumentation directly.
+            Map<Integer, Double> costByRate = new HashMap<>();
+            long ops = 0;
+            double cost = 0;
+            for (Metrics.Timer t : Metrics.timers().values()) {
+                double perCall = costByRate.computeIfAbsent(t.sampleRate(), Benchmark::probeNanos);
+                ops += t.calls();
+                cost += t.calls() * perCall;
+            }
+            console.printf("Instrumentation: %d timed calls, %.2f ms (%.3f%% of the workload)%n",
+                    ops, cost / 1e6, 100.0 * cost / bestOff);
+            console.println();
+            Metrics.printSummary();
+        }
+
+        // Average cost of one start/stop pair on a timer with the given sampling rate.
+        private static double probeNanos(int sampleRate) {
+            Metrics.Timer probe = new Metrics.Timer(sampleRate);
+            int n = 2_000_000;
+            long t0 = System.nanoTime();
+            for (int i = 0; i < n; i++) probe.stop(probe.start());
+            return (System.nanoTime() - t0) / (double) n;
+        }
+
+        private static long runRound(int tickets, boolean metrics) {
+            System.gc();
+            Metrics.enabled = metrics;
+            Metrics.reset();
+            PrintStream console = System.out;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            try {
+                long t0 = System.nanoTime();
+                RequestManager rm = new RequestManager();
+                ReportGenerator reports = new ReportGenerator(rm);
+                User u = rm.createUser("Bench User", "QA", "USER", "bench@example.com", "000");
+                List<ServiceRequest> created = new ArrayList<>(tickets);
+                for (int i = 0; i < tickets; i++) {
+                    created.add(rm.createRequest(u, CATEGORY_GROUPS[i % CATEGORY_GROUPS.length], PRIORITIES[i % PRIORITIES.length],
+                            "Bench subject " + i + (i % 7 == 0 ? " vpn" : ""), "Benchmark ticket body " + i));
+                }
+                for (int i = 0; i < created.size(); i++) {
+                    ServiceRequest r = created.get(i);
+                    if (i % 2 == 0) rm.assignRequest(r, "Agent " + (i % 5));
+                    rm.updateStatus(r, STATUSES[1 + i % (STATUSES.length - 1)], "bench");
+                    rm.addComment(r, "Follow-up " + i);
+                }
+                for (int i = 0; i < 200; i++) {
+                    rm.filterByStatus(STATUSES[i % STATUSES.length]);
+                    rm.filterByPriority(PRIORITIES[i % PRIORITIES.length]);
+                    RequestQuery q = rm.queryByStatus("RESOLVED");
+                    q.sort = SortKey.CREATED;
+                    rm.query(q);
+                }
+                for (int i = 0; i < 50; i++) rm.searchByKeyword("vpn");
+                for (int i = 0; i < 20; i++) {
+                    reports.printSummaryStatistics();
+                    reports.printByCategory();
+                    reports.printByPriority();
+                    reports.printResolutionPercentiles(null, null);
+                }
+                return System.nanoTime() - t0;
+            } finally {
+                System.setOut(console);
+            }
+        }
     }
 }